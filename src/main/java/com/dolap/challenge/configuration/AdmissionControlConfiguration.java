@@ -0,0 +1,38 @@
+package com.dolap.challenge.configuration;
+
+import com.dolap.challenge.util.AdaptiveConcurrencyLimiter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class AdmissionControlConfiguration {
+
+    public static final String PAYMENT_LIMITER_BEAN_NAME = "paymentLimiter";
+
+    @Value("${payment.admission.initial-limit}")
+    private int initialLimit;
+
+    @Value("${payment.admission.min-limit}")
+    private int minLimit;
+
+    @Value("${payment.admission.max-limit}")
+    private int maxLimit;
+
+    @Value("${payment.admission.latency-threshold-millis}")
+    private long latencyThresholdMillis;
+
+    @Value("${payment.admission.backoff-ratio}")
+    private double backoffRatio;
+
+    /**
+     * Limits the payments in progress to what the app and the bank can serve in time, the payments over the limit
+     * are rejected before any stock is reserved instead of queueing up behind the others
+     *
+     * @return the limiter the payment endpoints are guarded with
+     */
+    @Bean(name = PAYMENT_LIMITER_BEAN_NAME)
+    public AdaptiveConcurrencyLimiter paymentLimiter() {
+        return new AdaptiveConcurrencyLimiter("payments", initialLimit, minLimit, maxLimit, latencyThresholdMillis, backoffRatio);
+    }
+}
@@ -0,0 +1,59 @@
+package com.dolap.challenge.configuration;
+
+import com.dolap.challenge.service.BankClient;
+import com.dolap.challenge.service.BankSimulator;
+import com.dolap.challenge.util.CircuitBreaker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class BankConfiguration {
+
+    public static final String ALTERNATE_BANK_CLIENT_BEAN_NAME = "alternateBankClient";
+    public static final String BANK_CIRCUIT_BREAKER_BEAN_NAME = "bankCircuitBreaker";
+
+    @Value("${bank.circuit-breaker.window-size}")
+    private int windowSize;
+
+    @Value("${bank.circuit-breaker.minimum-calls}")
+    private int minimumCalls;
+
+    @Value("${bank.circuit-breaker.failure-rate-threshold}")
+    private double failureRateThreshold;
+
+    @Value("${bank.circuit-breaker.slow-call-rate-threshold}")
+    private double slowCallRateThreshold;
+
+    @Value("${bank.circuit-breaker.slow-call-millis}")
+    private long slowCallMillis;
+
+    @Value("${bank.circuit-breaker.open-millis}")
+    private long openMillis;
+
+    @Value("${bank.circuit-breaker.probe-calls}")
+    private int probeCalls;
+
+    /**
+     * Circuit around the bank, it opens when too many of the recent bank calls fail or are slow,
+     * so the payments fail fast and release their stocks right away instead of waiting for a degraded bank
+     *
+     * @return the circuit breaker the bank calls are made through
+     */
+    @Bean(name = BANK_CIRCUIT_BREAKER_BEAN_NAME)
+    public CircuitBreaker bankCircuitBreaker() {
+        return new CircuitBreaker("bank", windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold,
+                slowCallMillis, openMillis, probeCalls);
+    }
+
+    /**
+     * Second instance of the bank the hedged payments are sent to, another simulated bank with the same settings
+     *
+     * @param bankSimulator is the simulated bank the settings are taken from
+     * @return the alternate bank client
+     */
+    @Bean(name = ALTERNATE_BANK_CLIENT_BEAN_NAME, destroyMethod = "shutdown")
+    public BankClient alternateBankClient(BankSimulator bankSimulator) {
+        return bankSimulator.copy();
+    }
+}
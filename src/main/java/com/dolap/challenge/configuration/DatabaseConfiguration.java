@@ -7,6 +7,7 @@ import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 
 import javax.sql.DataSource;
@@ -17,6 +18,8 @@ import javax.sql.DataSource;
 @EnableJpaRepositories("com.dolap.challenge")
 public class DatabaseConfiguration {
 
+    public static final String FLASH_SALE_DATA_SOURCE_BEAN_NAME = "flashSaleDataSource";
+
     @Value("${spring.datasource.driverClassName}")
     private String driverClassName;
 
@@ -29,19 +32,36 @@ public class DatabaseConfiguration {
     @Value("${spring.datasource.password}")
     private String password;
 
+    @Value("${stock.reservation.flash-sale.worker-threads}")
+    private int flashSaleWorkerThreads;
+
     @Bean
+    @Primary
     public DataSource dataSource() {
-        return new HikariDataSource(hikariConfig());
+        return new HikariDataSource(hikariConfig("my db pool", 2));
+    }
+
+    /**
+     * Separate pool for the flash sale workers, so they can take the stocks while the connections of the main pool
+     * are busy recording the reservations. One more than the workers to give the stocks back.
+     *
+     * @return the data source of the flash sale workers
+     */
+    @Bean(name = FLASH_SALE_DATA_SOURCE_BEAN_NAME)
+    public DataSource flashSaleDataSource() {
+        HikariConfig config = hikariConfig("flash sale pool", flashSaleWorkerThreads + 1);
+        config.setMinimumIdle(0);
+        return new HikariDataSource(config);
     }
 
-    private HikariConfig hikariConfig() {
+    private HikariConfig hikariConfig(String poolName, int maximumPoolSize) {
         HikariConfig config = new HikariConfig();
         config.setDriverClassName(driverClassName);
         config.setJdbcUrl(url);
         config.setUsername(username);
         config.setPassword(password);
-        config.setPoolName("my db pool");
-        config.setMaximumPoolSize(2);
+        config.setPoolName(poolName);
+        config.setMaximumPoolSize(maximumPoolSize);
         return config;
     }
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+package com.dolap.challenge.configuration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class PaymentExecutorConfiguration {
+
+    public static final String PAYMENT_EXECUTOR_BEAN_NAME = "paymentExecutor";
+
+    @Value("${payment.executor.core-pool-size}")
+    private int corePoolSize;
+
+    @Value("${payment.executor.max-pool-size}")
+    private int maxPoolSize;
+
+    @Value("${payment.executor.queue-capacity}")
+    private int queueCapacity;
+
+    /**
+     * Dedicated and bounded executor that saves the payment logs of the asynchronous payments
+     * once the bank responds, so that neither the servlet threads nor the bank threads do the database work.
+     * When both the pool and the queue are full the task is rejected rather than run on the calling thread,
+     * which is the single thread that completes the bank calls. The payments check for room before calling the bank,
+     * and a payment rejected after the bank responds stays CHARGING for the recovery to complete,
+     * see {@link com.dolap.challenge.service.PaymentSagaService}.
+     *
+     * @return the executor used to process the asynchronous payments
+     */
+    @Bean(name = PAYMENT_EXECUTOR_BEAN_NAME)
+    public ThreadPoolTaskExecutor paymentExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(maxPoolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("payment-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+}
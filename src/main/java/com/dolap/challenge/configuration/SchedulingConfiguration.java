@@ -0,0 +1,12 @@
+package com.dolap.challenge.configuration;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables the background jobs of the app, like returning the expired stock reservations
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfiguration {
+}
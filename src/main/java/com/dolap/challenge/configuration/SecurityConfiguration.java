@@ -69,7 +69,8 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
      * Configures the HttpSecurity of the API
      * Whitelists and Blacklists the endpoints depending on the role and the endpoint itself
      * /auth/** are permitted all - and are public
-     * /payments are permitted all - and are public
+     * /payments and /payments/** are permitted all - and are public
+     * /waiting-room/** are permitted all - and are public
      * GET /products and /products/** are public
      * GET /categories and /categories/** are public
      * POST, PUT and DELETE to /products and /categories are not permitted unless you're authroized as ADMIN
@@ -82,7 +83,10 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
         http.csrf().disable()
                 .authorizeRequests()
                 .antMatchers("/auth/**").permitAll()
-                .antMatchers("/payments").permitAll()
+                .antMatchers("/payments/export/**").hasAuthority(User.ROLE_ADMIN)
+                .antMatchers("/revenue", "/revenue/**").hasAuthority(User.ROLE_ADMIN)
+                .antMatchers("/payments", "/payments/**").permitAll()
+                .antMatchers("/waiting-room/**").permitAll()
                 .antMatchers(HttpMethod.GET, "/products", "/products/**").permitAll()
                 .antMatchers(HttpMethod.GET, "/categories", "/categories/**").permitAll()
                 .antMatchers("/products", "/products/**").hasAuthority(User.ROLE_ADMIN)
@@ -2,8 +2,14 @@ package com.dolap.challenge.controller;
 
 import com.dolap.challenge.exception.ApiExceptionResponse;
 import com.dolap.challenge.exception.CategoryNotFoundException;
+import com.dolap.challenge.exception.IdempotencyKeyConflictException;
+import com.dolap.challenge.exception.InvalidCategoryParentException;
+import com.dolap.challenge.exception.InvalidCursorException;
 import com.dolap.challenge.exception.OutOfStockException;
 import com.dolap.challenge.exception.ProductNotFoundException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.exception.WaitingRoomTicketException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.BindingResult;
@@ -11,6 +17,7 @@ import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 
 import java.time.LocalDateTime;
+import java.util.concurrent.CompletionException;
 
 /**
  * Defines the base controller of the API where all other controllers will extend
@@ -27,12 +34,20 @@ public class BaseController {
      */
     @ExceptionHandler
     public ResponseEntity<Object> handleException(Exception exception) {
+        if (exception instanceof CompletionException && exception.getCause() instanceof Exception) {
+            // asynchronous endpoints complete with the wrapped exception
+            exception = (Exception) exception.getCause();
+        }
         ApiExceptionResponse apiExceptionResponse = new ApiExceptionResponse();
         apiExceptionResponse.setTimestamp(LocalDateTime.now());
         apiExceptionResponse.setStatus(statusCodeForException(exception));
         apiExceptionResponse.setMessage(messageForException(exception));
 
-        return new ResponseEntity<>(apiExceptionResponse, apiExceptionResponse.getStatus());
+        HttpHeaders headers = new HttpHeaders();
+        if (exception instanceof ServiceBusyException && ((ServiceBusyException) exception).getRetryAfterSeconds() != null) {
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(((ServiceBusyException) exception).getRetryAfterSeconds()));
+        }
+        return new ResponseEntity<>(apiExceptionResponse, headers, apiExceptionResponse.getStatus());
     }
 
     /**
@@ -61,9 +76,20 @@ public class BaseController {
         if (exception instanceof OutOfStockException
                 || exception instanceof ProductNotFoundException
                 || exception instanceof CategoryNotFoundException
+                || exception instanceof InvalidCursorException
+                || exception instanceof InvalidCategoryParentException
                 || exception instanceof MethodArgumentNotValidException) {
             return HttpStatus.BAD_REQUEST;
         }
+        if (exception instanceof ServiceBusyException) {
+            return HttpStatus.SERVICE_UNAVAILABLE;
+        }
+        if (exception instanceof IdempotencyKeyConflictException) {
+            return HttpStatus.CONFLICT;
+        }
+        if (exception instanceof WaitingRoomTicketException) {
+            return HttpStatus.FORBIDDEN;
+        }
         return HttpStatus.INTERNAL_SERVER_ERROR;
     }
 }
@@ -59,13 +59,15 @@ public class CategoriesController extends BaseController{
 
     /**
      * Retrieves a single category by the id
+     * Sub categories are included down to {@code depth} levels, the ones at the last level come with a null sub category list.
      *
      * @param id you want to retrieve as a category
+     * @param depth is the number of the levels of sub categories to include, 0 for none, all levels when omitted
      * @return the category retrieved
      */
     @GetMapping("/{id}")
-    public Category findCategory(@PathVariable Long id) {
-        return categoryService.findCategory(id);
+    public Category findCategory(@PathVariable Long id, @RequestParam(required = false) Integer depth) {
+        return categoryService.findCategory(id, depth);
     }
 
     /**
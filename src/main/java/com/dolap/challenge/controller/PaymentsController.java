@@ -1,32 +1,94 @@
 package com.dolap.challenge.controller;
 
+import com.dolap.challenge.configuration.AdmissionControlConfiguration;
+import com.dolap.challenge.configuration.Messages;
 import com.dolap.challenge.entity.Payment;
+import com.dolap.challenge.exception.OutOfStockException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.model.Cart;
 import com.dolap.challenge.model.PaymentItem;
-import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.model.PaymentPage;
+import com.dolap.challenge.service.IdempotencyService;
+import com.dolap.challenge.service.PaymentExportService;
+import com.dolap.challenge.service.PaymentSagaService;
 import com.dolap.challenge.service.PaymentService;
-import com.dolap.challenge.service.ProductService;
+import com.dolap.challenge.service.SoldOutCache;
+import com.dolap.challenge.service.WaitingRoomService;
+import com.dolap.challenge.util.AdaptiveConcurrencyLimiter;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.validation.Valid;
-import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/payments")
 public class PaymentsController extends BaseController{
+
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    public static final String WAITING_ROOM_TICKET_HEADER = "Waiting-Room-Ticket";
+
     private PaymentService paymentService;
 
-    private ProductService productService;
+    private PaymentSagaService paymentSagaService;
+
+    private IdempotencyService idempotencyService;
+
+    private PaymentExportService paymentExportService;
+
+    private WaitingRoomService waitingRoomService;
+
+    private SoldOutCache soldOutCache;
+
+    private AdaptiveConcurrencyLimiter paymentLimiter;
+
+    private Messages messages;
+
+    private long retryAfterSeconds;
 
     /**
-     * Constructs a PaymentController with paymentService and productService injected
+     * Constructs a PaymentController with paymentService, paymentSagaService, idempotencyService,
+     * paymentExportService, waitingRoomService, soldOutCache and paymentLimiter injected
      *
-     * @param paymentService used to process the payments
-     * @param productService used to process the products like reserve and release
+     * @param paymentService used to list the payments
+     * @param paymentSagaService used to make the payments, so they are recovered after a crash
+     * @param idempotencyService used to make a single payment for the retries of the same request
+     * @param paymentExportService used to export the payments
+     * @param waitingRoomService used to let in only the admitted buyers of the products on flash sale
+     * @param soldOutCache used to reject the payments of the sold out products without touching the database
+     * @param paymentLimiter used to shed the payments over the adaptive concurrency limit
+     * @param messages the interface we used to pull the relevant messages depending on the locale set
+     * @param retryAfterSeconds is how long the clients are asked to wait before retrying a payment that's shed
      */
-    public PaymentsController(PaymentService paymentService, ProductService productService) {
-        this.productService = productService;
+    public PaymentsController(PaymentService paymentService, PaymentSagaService paymentSagaService,
+                              IdempotencyService idempotencyService, PaymentExportService paymentExportService,
+                              WaitingRoomService waitingRoomService, SoldOutCache soldOutCache,
+                              @Qualifier(AdmissionControlConfiguration.PAYMENT_LIMITER_BEAN_NAME) AdaptiveConcurrencyLimiter paymentLimiter,
+                              Messages messages,
+                              @Value("${payment.admission.retry-after-seconds}") long retryAfterSeconds) {
         this.paymentService = paymentService;
+        this.paymentSagaService = paymentSagaService;
+        this.idempotencyService = idempotencyService;
+        this.paymentExportService = paymentExportService;
+        this.waitingRoomService = waitingRoomService;
+        this.soldOutCache = soldOutCache;
+        this.paymentLimiter = paymentLimiter;
+        this.messages = messages;
+        this.retryAfterSeconds = retryAfterSeconds;
     }
 
     /**
@@ -35,32 +97,201 @@ public class PaymentsController extends BaseController{
      * and this happens "atomic". If the payment is successfully processed a payment log is saved
      * and returned to the client. If the payment is not successfully processed, the products that are
      * reserved for this specific requests are released back so that any other processes can access
-     * to those resources.
+     * to those resources. The same happens when the bank times out or fails.
+     * Every step of the payment is recorded, so if the app crashes in the middle the payment is finished or undone
+     * by the recovery, see {@link PaymentSagaService}.
+     * When the client sends an Idempotency-Key, the retries with the same key return the same payment log
+     * instead of paying again.
+     * When there are already more payments in progress than the adaptive limit, the payment is rejected with 503
+     * and a Retry-After header before any stock is reserved.
+     * The products on flash sale are paid for only with a ticket admitted by the waiting room, see {@link WaitingRoomService}.
+     * The payments of the products known to be sold out are rejected before any transaction is opened.
      *
+     * @param idempotencyKey is the optional key the client retries the request with
+     * @param waitingRoomTickets are the admitted waiting room tickets, required for the products on flash sale
      * @param paymentItem defines the product and quantity we want to process the payment for
      * @return the payment log for the purchase
      */
     @PostMapping
-    public Payment pay(@Valid @RequestBody PaymentItem paymentItem) {
-        productService.reserveStockForProduct(paymentItem.getProductId(), paymentItem.getQuantity());
-        try {
-            Product product = productService.findProduct(paymentItem.getProductId());
-            BigDecimal totalPrice = product.getPrice().multiply(new BigDecimal(paymentItem.getQuantity()));
+    public Payment pay(@RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                       @RequestHeader(value = WAITING_ROOM_TICKET_HEADER, required = false) List<String> waitingRoomTickets,
+                       @Valid @RequestBody PaymentItem paymentItem) {
+        return admit(() -> idempotencyService.execute(idempotencyKey, fingerprint("/payments", paymentItem),
+                () -> CompletableFuture.completedFuture(pay(waitingRoomTickets, paymentItem, idempotencyKey)))).join();
+    }
 
-            return paymentService.pay(totalPrice);
-        } catch (Exception exception) {
-            productService.releaseReservedStockForProduct(paymentItem.getProductId(), paymentItem.getQuantity());
+    private Payment pay(List<String> waitingRoomTickets, PaymentItem paymentItem, String idempotencyKey) {
+        rejectSoldOut(Collections.singletonList(paymentItem.getProductId()));
+        waitingRoomService.enter(waitingRoomTickets, Collections.singletonList(paymentItem.getProductId()));
+        return paymentSagaService.pay(Collections.singletonList(paymentItem), idempotencyKey);
+    }
+
+    /**
+     * Asynchronous version of {@link #pay(List, PaymentItem, String)}
+     * The product is reserved on the request thread, so the stock errors are still returned right away,
+     * then the bank is called without blocking and the payment log is saved on the payment executor. The servlet thread
+     * is released during the bank call and the response is written once the payment completes.
+     * If the payment fails or the bank is busy, the reserved products are released back.
+     * The retries with the same Idempotency-Key wait for the payment in progress.
+     * The payments over the adaptive limit and the waiting room tickets are handled the same way as {@link #pay}.
+     *
+     * @param idempotencyKey is the optional key the client retries the request with
+     * @param waitingRoomTickets are the admitted waiting room tickets, required for the products on flash sale
+     * @param paymentItem defines the product and quantity we want to process the payment for
+     * @return a future that completes with the payment log for the purchase
+     */
+    @PostMapping("/async")
+    public CompletableFuture<Payment> payAsync(@RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                               @RequestHeader(value = WAITING_ROOM_TICKET_HEADER, required = false) List<String> waitingRoomTickets,
+                                               @Valid @RequestBody PaymentItem paymentItem) {
+        return admit(() -> idempotencyService.execute(idempotencyKey, fingerprint("/payments", paymentItem),
+                () -> payAsync(waitingRoomTickets, paymentItem, idempotencyKey)));
+    }
+
+    private CompletableFuture<Payment> payAsync(List<String> waitingRoomTickets, PaymentItem paymentItem, String idempotencyKey) {
+        rejectSoldOut(Collections.singletonList(paymentItem.getProductId()));
+        waitingRoomService.enter(waitingRoomTickets, Collections.singletonList(paymentItem.getProductId()));
+        return paymentSagaService.payAsync(Collections.singletonList(paymentItem), idempotencyKey);
+    }
+
+    /**
+     * Pays for all the products in the cart with a single bank call
+     * All the lines are reserved in a single transaction, so either the whole cart is reserved or nothing.
+     * The total price is charged at once and a single payment log is saved for the cart. If the payment
+     * fails, all the lines are released back together. Idempotency-Key, the adaptive limit and the waiting room
+     * work the same way as {@link #pay}, a ticket is needed for each product on flash sale in the cart.
+     *
+     * @param idempotencyKey is the optional key the client retries the request with
+     * @param waitingRoomTickets are the admitted waiting room tickets, required for the products on flash sale
+     * @param cart defines the products and quantities we want to process the payment for
+     * @return the payment log for the whole cart
+     */
+    @PostMapping("/cart")
+    public Payment payCart(@RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                           @RequestHeader(value = WAITING_ROOM_TICKET_HEADER, required = false) List<String> waitingRoomTickets,
+                           @Valid @RequestBody Cart cart) {
+        return admit(() -> idempotencyService.execute(idempotencyKey, fingerprint("/payments/cart", cart.getItems().toArray(new PaymentItem[0])),
+                () -> CompletableFuture.completedFuture(payCart(waitingRoomTickets, cart, idempotencyKey)))).join();
+    }
+
+    private Payment payCart(List<String> waitingRoomTickets, Cart cart, String idempotencyKey) {
+        List<Long> productIds = cart.getItems().stream().map(PaymentItem::getProductId).collect(Collectors.toList());
+        rejectSoldOut(productIds);
+        waitingRoomService.enter(waitingRoomTickets, productIds);
+        return paymentSagaService.pay(cart.getItems(), idempotencyKey);
+    }
+
+    /**
+     * Exports the payments as newline delimited JSON, one payment per line
+     * The payments are streamed from the database to the client, see {@link PaymentExportService}.
+     *
+     * @param from is the inclusive start of the creation time range, optional
+     * @param to is the exclusive end of the creation time range, optional
+     * @return the response streaming the payments
+     */
+    @GetMapping("/export/ndjson")
+    public ResponseEntity<StreamingResponseBody> exportPaymentsAsNdjson(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        return export(PaymentExportService.Format.NDJSON, from, to);
+    }
+
+    /**
+     * Exports the payments as CSV with a header line, see {@link #exportPaymentsAsNdjson}
+     *
+     * @param from is the inclusive start of the creation time range, optional
+     * @param to is the exclusive end of the creation time range, optional
+     * @return the response streaming the payments
+     */
+    @GetMapping("/export/csv")
+    public ResponseEntity<StreamingResponseBody> exportPaymentsAsCsv(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        return export(PaymentExportService.Format.CSV, from, to);
+    }
+
+    private ResponseEntity<StreamingResponseBody> export(PaymentExportService.Format format, LocalDateTime from, LocalDateTime to) {
+        StreamingResponseBody body = outputStream -> paymentExportService.export(outputStream, format, from, to);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(format.getContentType()))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=payments." + format.name().toLowerCase(Locale.ENGLISH))
+                .body(body);
+    }
+
+    /**
+     * Runs the payment within the adaptive concurrency limit, the limit adapts to how long the payment takes
+     * and whether it's dropped because the bank is busy
+     *
+     * @param payment makes the payment
+     * @return the future of the payment
+     * @throws ServiceBusyException when the payment is over the limit
+     */
+    private CompletableFuture<Payment> admit(Supplier<CompletableFuture<Payment>> payment) throws ServiceBusyException {
+        long start = paymentLimiter.tryAcquire();
+        if (start == AdaptiveConcurrencyLimiter.REJECTED) {
+            throw new ServiceBusyException(messages.get(ServiceBusyException.SERVICE_BUSY_EXCEPTION_MESSAGE_KEY), retryAfterSeconds);
+        }
+        CompletableFuture<Payment> future;
+        try {
+            future = payment.get();
+        } catch (RuntimeException exception) {
+            paymentLimiter.onComplete(start, isDropped(exception));
             throw exception;
         }
+        return future.whenComplete((completedPayment, throwable) -> paymentLimiter.onComplete(start, isDropped(throwable)));
+    }
+
+    /**
+     * Rejects the payment when any of its products is known to be sold out, see {@link SoldOutCache}
+     *
+     * @param productIds are the products paid for
+     * @throws OutOfStockException when a product is sold out
+     */
+    private void rejectSoldOut(List<Long> productIds) throws OutOfStockException {
+        if (productIds.stream().anyMatch(soldOutCache::isSoldOut)) {
+            throw new OutOfStockException(messages.get(OutOfStockException.OUT_OF_STOCK_EXCEPTION_MESSAGE_KEY));
+        }
+    }
+
+    private boolean isDropped(Throwable throwable) {
+        if (throwable instanceof CompletionException) {
+            throwable = throwable.getCause();
+        }
+        return throwable instanceof ServiceBusyException;
+    }
+
+    /**
+     * Identifies the payment request, so an Idempotency-Key can't be reused for a different one.
+     * The synchronous and asynchronous payments share the fingerprint, since the client gets the same payment from both.
+     *
+     * @param path is the path of the request
+     * @param paymentItems are the products and quantities paid for
+     * @return the fingerprint of the request
+     */
+    private String fingerprint(String path, PaymentItem... paymentItems) {
+        StringBuilder fingerprint = new StringBuilder(path);
+        for (PaymentItem paymentItem : paymentItems) {
+            fingerprint.append(' ').append(paymentItem.getProductId()).append('x').append(paymentItem.getQuantity());
+        }
+        return fingerprint.toString();
     }
 
     /**
-     * Provides a list of all the payments to-date
+     * Provides the payments page by page, newest first
+     * Pass the nextCursor of a page as the cursor to get the next one.
      *
-     * @return list of payments
+     * @param cursor is the nextCursor of the previous page, omit it for the first page
+     * @param from is the inclusive start of the creation time range, e.g. 2018-03-01T00:00:00
+     * @param to is the exclusive end of the creation time range
+     * @param limit is the number of payments in the page, at most {@link PaymentService#MAX_PAGE_SIZE}
+     * @return the page of payments
      */
     @GetMapping
-    public List<Payment> getPayments() {
-        return paymentService.getPayments();
+    public PaymentPage getPayments(
+            @RequestParam(required = false) Long cursor,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(defaultValue = "20", required = false) Integer limit) {
+        return paymentService.getPayments(cursor, from, to, limit);
     }
 }
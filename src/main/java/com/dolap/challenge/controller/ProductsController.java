@@ -1,6 +1,7 @@
 package com.dolap.challenge.controller;
 
 import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.model.ProductPage;
 import com.dolap.challenge.service.ProductService;
 import org.springframework.data.domain.Page;
 import org.springframework.web.bind.annotation.*;
@@ -56,6 +57,28 @@ public class ProductsController extends BaseController {
         return productService.getAll(categoryId, sortBy, sortOrder, page, limit);
     }
 
+    /**
+     * Retrieves the products of the given category page by page, keyed by a cursor instead of an offset
+     * Pass the next cursor of a page as the cursor to get the next one, along with the same sortBy and sortOrder.
+     * Defaults to order by id desc limit 20
+     *
+     * @param categoryId is the category id of the product (required)
+     * @param cursor is the next cursor of the previous page, leave it empty for the first page
+     * @param sortBy is the sort column, one of id, name, description, price and remainingStockCount
+     * @param sortOrder is the direction of the sort - asc or desc
+     * @param limit is the number of products in the page, at most {@link ProductService#MAX_PAGE_SIZE}
+     * @return the page of products
+     */
+    @GetMapping(params = "cursor")
+    public ProductPage getProductsByCursor(
+            @RequestParam Long categoryId,
+            @RequestParam String cursor,
+            @RequestParam(defaultValue = "id", required = false) String sortBy,
+            @RequestParam(defaultValue = "desc", required = false) String sortOrder,
+            @RequestParam(defaultValue = "20", required = false) Integer limit) {
+        return productService.getAllByCursor(categoryId, sortBy, sortOrder, cursor, limit);
+    }
+
     /**
      * Updates a product
      * Category information is necessary.
@@ -0,0 +1,67 @@
+package com.dolap.challenge.controller;
+
+import com.dolap.challenge.entity.RevenueRollup;
+import com.dolap.challenge.model.RevenueBucket;
+import com.dolap.challenge.service.RevenueRollupService;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@RestController
+@RequestMapping("/revenue")
+public class RevenueController extends BaseController{
+
+    private RevenueRollupService revenueRollupService;
+
+    /**
+     * Constructs a RevenueController with revenueRollupService injected
+     *
+     * @param revenueRollupService is the service the revenue is read from
+     */
+    public RevenueController(RevenueRollupService revenueRollupService) {
+        this.revenueRollupService = revenueRollupService;
+    }
+
+    /**
+     * Retrieves the number of payments and the revenue of all the products per bucket
+     * The answer is read from the rollups, so it costs one row per bucket instead of one row per payment.
+     *
+     * @param granularity is the size of the buckets, MINUTE, HOUR or DAY
+     * @param from is the inclusive start of the range, e.g. 2018-03-01T00:00:00, 24 hours ago by default
+     * @param to is the exclusive end of the range, now by default
+     * @return the buckets with payments in ascending time order
+     */
+    @GetMapping
+    public List<RevenueBucket> getRevenue(
+            @RequestParam(defaultValue = "HOUR", required = false) RevenueRollup.Granularity granularity,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        return getBuckets(RevenueRollup.ALL_PRODUCTS, granularity, from, to);
+    }
+
+    /**
+     * Retrieves the number of payments and the revenue of a product per bucket, see {@link #getRevenue}
+     * A cart payment counts once for every product in it.
+     *
+     * @param productId is the id of the product
+     * @param granularity is the size of the buckets, MINUTE, HOUR or DAY
+     * @param from is the inclusive start of the range, 24 hours ago by default
+     * @param to is the exclusive end of the range, now by default
+     * @return the buckets with payments in ascending time order
+     */
+    @GetMapping("/products/{productId}")
+    public List<RevenueBucket> getProductRevenue(
+            @PathVariable Long productId,
+            @RequestParam(defaultValue = "HOUR", required = false) RevenueRollup.Granularity granularity,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        return getBuckets(productId, granularity, from, to);
+    }
+
+    private List<RevenueBucket> getBuckets(Long productId, RevenueRollup.Granularity granularity, LocalDateTime from, LocalDateTime to) {
+        LocalDateTime end = to != null ? to : LocalDateTime.now();
+        return revenueRollupService.getBuckets(productId, granularity, from != null ? from : end.minusDays(1), end);
+    }
+}
@@ -0,0 +1,57 @@
+package com.dolap.challenge.controller;
+
+import com.dolap.challenge.model.WaitingRoomTicket;
+import com.dolap.challenge.service.WaitingRoomService;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+@RestController
+@RequestMapping("/waiting-room")
+public class WaitingRoomController extends BaseController{
+
+    private WaitingRoomService waitingRoomService;
+
+    /**
+     * Constructs a WaitingRoomController with waitingRoomService injected
+     *
+     * @param waitingRoomService is the service the buyers wait in
+     */
+    public WaitingRoomController(WaitingRoomService waitingRoomService) {
+        this.waitingRoomService = waitingRoomService;
+    }
+
+    /**
+     * Takes a ticket for the product, the buyer is put at the end of its queue when it's on flash sale.
+     * Pay with the ticket in the {@link PaymentsController#WAITING_ROOM_TICKET_HEADER} header once it's admitted.
+     *
+     * @param productId is the id of the product the buyer wants to pay for
+     * @return the ticket and its place in the queue
+     */
+    @PostMapping("/products/{productId}/tickets")
+    public WaitingRoomTicket join(@PathVariable Long productId) {
+        return waitingRoomService.join(productId);
+    }
+
+    /**
+     * Retrieves the place of the ticket in the queue
+     *
+     * @param ticket is the ticket taken
+     * @return the ticket and its place in the queue
+     */
+    @GetMapping("/tickets/{ticket}")
+    public WaitingRoomTicket getTicket(@PathVariable String ticket) {
+        return waitingRoomService.getTicket(ticket);
+    }
+
+    /**
+     * Streams the place of the ticket in the queue as Server-Sent Events until it's admitted
+     *
+     * @param ticket is the ticket taken
+     * @return the stream of the events
+     */
+    @GetMapping(value = "/tickets/{ticket}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter followTicket(@PathVariable String ticket) {
+        return waitingRoomService.subscribe(ticket);
+    }
+}
@@ -28,10 +28,11 @@ public class Category {
     private String description;
 
     /**
-     * Sub category list of the category fetched EAGER.
+     * Sub category list of the category fetched LAZY, loading it for every node would take a query per category.
+     * The trees handed out are assembled from a single flat query instead, see {@link com.dolap.challenge.model.CategoryTree}.
      * Sub categories are listed in ASC order in a parent category.
      */
-    @OneToMany(mappedBy = "parentCategory", fetch = FetchType.EAGER, cascade = CascadeType.ALL, orphanRemoval = true)
+    @OneToMany(mappedBy = "parentCategory", fetch = FetchType.LAZY, cascade = CascadeType.ALL, orphanRemoval = true)
     @OrderBy("orderNum ASC")
     private List<Category> subCategoryList;
 
@@ -0,0 +1,77 @@
+package com.dolap.challenge.entity;
+
+import javax.persistence.*;
+
+/**
+ * A row of the closure table of the category hierarchy: links a category to every category below it,
+ * including itself at depth 0. Kept up to date by {@link com.dolap.challenge.service.CategoryService},
+ * so the products of a whole subtree are listed with a single join instead of walking the tree.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_category_closure_ancestor_descendant", columnNames = {"ancestorId", "descendantId"}),
+        indexes = @Index(name = "idx_category_closure_descendant_id", columnList = "descendantId"))
+public class CategoryClosure {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * Id of the category on top
+     */
+    @Column(nullable = false)
+    private Long ancestorId;
+
+    /**
+     * Id of the category below the ancestor, or the ancestor itself
+     */
+    @Column(nullable = false)
+    private Long descendantId;
+
+    /**
+     * Number of levels between the ancestor and the descendant, 0 when they are the same category
+     */
+    @Column(nullable = false)
+    private Integer depth;
+
+    public CategoryClosure() {
+    }
+
+    public CategoryClosure(Long ancestorId, Long descendantId, Integer depth) {
+        this.ancestorId = ancestorId;
+        this.descendantId = descendantId;
+        this.depth = depth;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getAncestorId() {
+        return ancestorId;
+    }
+
+    public void setAncestorId(Long ancestorId) {
+        this.ancestorId = ancestorId;
+    }
+
+    public Long getDescendantId() {
+        return descendantId;
+    }
+
+    public void setDescendantId(Long descendantId) {
+        this.descendantId = descendantId;
+    }
+
+    public Integer getDepth() {
+        return depth;
+    }
+
+    public void setDepth(Integer depth) {
+        this.depth = depth;
+    }
+}
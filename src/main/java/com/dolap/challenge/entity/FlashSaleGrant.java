@@ -0,0 +1,62 @@
+package com.dolap.challenge.entity;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.LocalDateTime;
+
+/**
+ * Stocks a flash sale worker has taken from a product for a buyer that hasn't recorded its reservation yet.
+ * The worker writes it in the same transaction it takes the stocks in, and the buyer deletes it in the transaction
+ * that records its {@link StockReservation}. One left behind, e.g. because the app crashed in between,
+ * is given back to the product by the sweeper.
+ */
+@Entity
+@Table(indexes = @Index(name = "idx_flash_sale_grant_created_at", columnList = "createdAt"))
+public class FlashSaleGrant {
+
+    /**
+     * Assigned by the worker, which writes the grants without going through the persistence context
+     */
+    @Id
+    private String id;
+
+    private Long productId;
+
+    private Integer quantity;
+
+    private LocalDateTime createdAt;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Long productId) {
+        this.productId = productId;
+    }
+
+    public Integer getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(Integer quantity) {
+        this.quantity = quantity;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+}
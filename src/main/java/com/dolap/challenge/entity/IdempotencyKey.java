@@ -0,0 +1,78 @@
+package com.dolap.challenge.entity;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Idempotency key sent by a client with a payment request, so the retries of the same request
+ * return the original payment instead of charging the bank again.
+ * The unique index guarantees that only one request claims a key, even across the instances of the app.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_idempotency_key_idempotency_key", columnNames = "idempotencyKey"),
+        indexes = @Index(name = "idx_idempotency_key_created_at", columnList = "createdAt"))
+public class IdempotencyKey {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * Value of the Idempotency-Key header
+     */
+    @Column(nullable = false)
+    private String idempotencyKey;
+
+    /**
+     * Endpoint and body of the request the key is first used with, the key can't be reused for another request
+     */
+    @Column(nullable = false, length = 4000)
+    private String fingerprint;
+
+    /**
+     * Id of the payment made for the request, null while the payment is in progress
+     */
+    private Long paymentId;
+
+    private LocalDateTime createdAt;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public Long getPaymentId() {
+        return paymentId;
+    }
+
+    public void setPaymentId(Long paymentId) {
+        this.paymentId = paymentId;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+}
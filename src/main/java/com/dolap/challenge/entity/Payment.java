@@ -1,22 +1,42 @@
 package com.dolap.challenge.entity;
 
+import com.dolap.challenge.model.BankPaymentResponse;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
 
 /**
  * Log of the payment that's been processed
  */
 @Entity
+@Table(indexes = @Index(name = "idx_payment_created_at", columnList = "createdAt"))
 public class Payment {
 
     @Id
     @GeneratedValue
     private Long id;
     private BigDecimal price;
+
+    /**
+     * Result code of the bank, {@link BankPaymentResponse#RESULT_CODE_SUCCESS} or
+     * {@link BankPaymentResponse#RESULT_CODE_DECLINED}. The payments the bank times out or fails on get no payment log,
+     * they stay CHARGING on their {@link PaymentSaga} until the recovery gets an answer from the bank.
+     * The logs saved before that may still hold {@link BankPaymentResponse#RESULT_CODE_TIMEOUT}
+     * or {@link BankPaymentResponse#RESULT_CODE_ERROR}.
+     */
     private String bankResponse;
 
+    /**
+     * The time the payment log is saved
+     */
+    private LocalDateTime createdAt;
+
     public Long getId() {
         return id;
     }
@@ -40,4 +60,20 @@ public class Payment {
     public void setBankResponse(String bankResponse) {
         this.bankResponse = bankResponse;
     }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * @return whether the money is captured by the bank or not
+     */
+    @JsonIgnore
+    public boolean isSuccessful() {
+        return BankPaymentResponse.RESULT_CODE_SUCCESS.equals(bankResponse);
+    }
 }
@@ -0,0 +1,122 @@
+package com.dolap.challenge.entity;
+
+import javax.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Durable state of a payment, so a payment interrupted by a crash is finished or undone by the recovery.
+ * A payment starts as RESERVED together with its {@link StockReservation}s, and is CHARGING right before the bank
+ * is called. The bank's response ends it as CHARGED or FAILED together with the payment log, and a payment the bank
+ * is never asked for, e.g. because the bank is busy, ends as RELEASED with its stocks given back.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_payment_saga_request_id", columnNames = "requestId"),
+        indexes = {@Index(name = "idx_payment_saga_state_updated_at", columnList = "state,updatedAt"),
+                @Index(name = "idx_payment_saga_idempotency_key", columnList = "idempotencyKey")})
+public class PaymentSaga {
+
+    public enum State {
+        RESERVED, CHARGING, CHARGED, RELEASED, FAILED
+    }
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * Identifies the payment at the bank, the bank is asked again with the same id when the payment is resumed
+     */
+    @Column(nullable = false)
+    private String requestId;
+
+    /**
+     * Idempotency-Key the client sent with the payment, if any. The key is pointed to the payment log
+     * when the payment completes, including when it's completed by the recovery.
+     */
+    private String idempotencyKey;
+
+    /**
+     * Total price of the reservations of the payment
+     */
+    private BigDecimal price;
+
+    @Enumerated(EnumType.STRING)
+    private State state;
+
+    /**
+     * Id of the payment log, set once the bank responds
+     */
+    private Long paymentId;
+
+    private LocalDateTime createdAt;
+
+    /**
+     * The time the state last changed or the recovery last picked the payment up
+     */
+    private LocalDateTime updatedAt;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public BigDecimal getPrice() {
+        return price;
+    }
+
+    public void setPrice(BigDecimal price) {
+        this.price = price;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    public Long getPaymentId() {
+        return paymentId;
+    }
+
+    public void setPaymentId(Long paymentId) {
+        this.paymentId = paymentId;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
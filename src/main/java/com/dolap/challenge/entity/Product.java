@@ -1,11 +1,18 @@
 package com.dolap.challenge.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
@@ -17,6 +24,10 @@ import java.math.BigDecimal;
  * and "customers" can purchase.
  */
 @Entity
+@Table(indexes = {
+        @Index(name = "idx_product_category_name", columnList = "category_id,name,id"),
+        @Index(name = "idx_product_category_price", columnList = "category_id,price,id"),
+        @Index(name = "idx_product_category_remaining_stock_count", columnList = "category_id,remainingStockCount,id")})
 public class Product {
 
     @Id
@@ -43,6 +54,30 @@ public class Product {
     @Min(value = 0, message = "{com.dolap.challenge.entity.Product.remainingStockCount.validation.minMessage}")
     private Integer remainingStockCount;
 
+    /**
+     * Number of rows the stocks are split into, see {@link ProductStockShard}.
+     * Leave it 1 for the products that don't sell out in seconds.
+     */
+    @NotNull(message = "{com.dolap.challenge.entity.Product.stockShardCount.validation.notNullMessage}")
+    @Min(value = 1, message = "{com.dolap.challenge.entity.Product.stockShardCount.validation.minMessage}")
+    @Max(value = 64, message = "{com.dolap.challenge.entity.Product.stockShardCount.validation.maxMessage}")
+    @Column(columnDefinition = "integer default 1")
+    private Integer stockShardCount = 1;
+
+    /**
+     * Whether the reservations of the product go through a queue drained by a single worker,
+     * see {@link com.dolap.challenge.service.FlashSaleService}. Set it for the products on flash sale.
+     */
+    @Column(columnDefinition = "boolean default false")
+    private boolean flashSale;
+
+    /**
+     * Sum of the stocks in the shards, filled in when a sharded product is read
+     */
+    @Transient
+    @JsonIgnore
+    private Integer shardedStockCount;
+
     /**
      * Price of an individual product
      */
@@ -58,6 +93,15 @@ public class Product {
     @JsonIgnoreProperties({"subCategoryList", "orderNum"})
     private Category category;
 
+    /**
+     * Version of the product increased on every change, including the stock updates
+     * Used to detect concurrent changes without locking the record
+     */
+    @Version
+    @JsonIgnore
+    @Column(columnDefinition = "bigint default 0 not null")
+    private Long version;
+
     public Long getId() {
         return id;
     }
@@ -82,14 +126,37 @@ public class Product {
         this.description = description;
     }
 
+    /**
+     * @return the stocks of the product, summed up from the shards when the stocks are sharded
+     */
     public Integer getRemainingStockCount() {
-        return remainingStockCount;
+        return shardedStockCount != null ? shardedStockCount : remainingStockCount;
     }
 
     public void setRemainingStockCount(Integer remainingStockCount) {
         this.remainingStockCount = remainingStockCount;
     }
 
+    public void setShardedStockCount(Integer shardedStockCount) {
+        this.shardedStockCount = shardedStockCount;
+    }
+
+    public boolean isFlashSale() {
+        return flashSale;
+    }
+
+    public void setFlashSale(boolean flashSale) {
+        this.flashSale = flashSale;
+    }
+
+    public Integer getStockShardCount() {
+        return stockShardCount;
+    }
+
+    public void setStockShardCount(Integer stockShardCount) {
+        this.stockShardCount = stockShardCount;
+    }
+
     public BigDecimal getPrice() {
         return price;
     }
@@ -98,6 +165,14 @@ public class Product {
         this.price = price;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public Category getCategory() {
         return category;
     }
@@ -0,0 +1,63 @@
+package com.dolap.challenge.entity;
+
+import javax.persistence.*;
+
+/**
+ * Part of the stocks of a product that's split into {@link Product#getStockShardCount()} rows,
+ * so that the concurrent reservations of a hot product lock different rows instead of queuing up on the same one.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_product_stock_shard_product_id_shard_index", columnNames = {"productId", "shardIndex"}))
+public class ProductStockShard {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * Id of the product the stocks belong to
+     */
+    private Long productId;
+
+    /**
+     * Index of the shard, from 0 to the shard count of the product
+     */
+    private Integer shardIndex;
+
+    /**
+     * Stocks available in this shard
+     */
+    private Integer remainingStockCount;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Long productId) {
+        this.productId = productId;
+    }
+
+    public Integer getShardIndex() {
+        return shardIndex;
+    }
+
+    public void setShardIndex(Integer shardIndex) {
+        this.shardIndex = shardIndex;
+    }
+
+    public Integer getRemainingStockCount() {
+        return remainingStockCount;
+    }
+
+    public void setRemainingStockCount(Integer remainingStockCount) {
+        this.remainingStockCount = remainingStockCount;
+    }
+}
@@ -0,0 +1,102 @@
+package com.dolap.challenge.entity;
+
+import javax.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Number of payments and the revenue of a product in a time bucket, kept up to date as the payments are made,
+ * so the revenue questions are answered by reading a few buckets instead of scanning the payments.
+ * The buckets of {@link #ALL_PRODUCTS} hold the totals of all the products.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_revenue_rollup_product_id_granularity_bucket_start",
+        columnNames = {"productId", "granularity", "bucketStart"}))
+public class RevenueRollup {
+
+    public static final Long ALL_PRODUCTS = 0L;
+
+    public enum Granularity {
+        MINUTE(ChronoUnit.MINUTES), HOUR(ChronoUnit.HOURS), DAY(ChronoUnit.DAYS);
+
+        private final ChronoUnit unit;
+
+        Granularity(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        /**
+         * @return the start of the bucket the given time falls into
+         */
+        public LocalDateTime bucketStart(LocalDateTime time) {
+            return time.truncatedTo(unit);
+        }
+    }
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * Id of the product, {@link #ALL_PRODUCTS} for the totals
+     */
+    private Long productId;
+
+    @Enumerated(EnumType.STRING)
+    private Granularity granularity;
+
+    private LocalDateTime bucketStart;
+
+    private Long paymentCount;
+
+    private BigDecimal revenue;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Long productId) {
+        this.productId = productId;
+    }
+
+    public Granularity getGranularity() {
+        return granularity;
+    }
+
+    public void setGranularity(Granularity granularity) {
+        this.granularity = granularity;
+    }
+
+    public LocalDateTime getBucketStart() {
+        return bucketStart;
+    }
+
+    public void setBucketStart(LocalDateTime bucketStart) {
+        this.bucketStart = bucketStart;
+    }
+
+    public Long getPaymentCount() {
+        return paymentCount;
+    }
+
+    public void setPaymentCount(Long paymentCount) {
+        this.paymentCount = paymentCount;
+    }
+
+    public BigDecimal getRevenue() {
+        return revenue;
+    }
+
+    public void setRevenue(BigDecimal revenue) {
+        this.revenue = revenue;
+    }
+}
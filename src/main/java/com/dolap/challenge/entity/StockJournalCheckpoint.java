@@ -0,0 +1,36 @@
+package com.dolap.challenge.entity;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Keeps the number of the last stock journal segment written to the database.
+ * It's updated in the same transaction with the stocks, so a segment is never applied twice
+ * even if the app crashes before deleting it.
+ */
+@Entity
+public class StockJournalCheckpoint {
+
+    public static final Long ID = 1L;
+
+    @Id
+    private Long id = ID;
+
+    private Long lastSegment;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getLastSegment() {
+        return lastSegment;
+    }
+
+    public void setLastSegment(Long lastSegment) {
+        this.lastSegment = lastSegment;
+    }
+}
@@ -0,0 +1,115 @@
+package com.dolap.challenge.entity;
+
+import javax.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Hold on the stocks of a product for a payment that's in progress.
+ * A reservation is either confirmed once the payment succeeds, released when it fails
+ * or expired by the sweeper when nobody confirms or releases it in time - e.g. the app crashes during the bank call.
+ */
+@Entity
+@Table(indexes = {@Index(name = "idx_stock_reservation_state_expires_at", columnList = "state,expiresAt"),
+        @Index(name = "idx_stock_reservation_saga_id", columnList = "sagaId")})
+public class StockReservation {
+
+    public enum State {
+        RESERVED, CONFIRMED, RELEASED, EXPIRED
+    }
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * Id of the product the stocks are held for
+     */
+    private Long productId;
+
+    /**
+     * Amount of the stocks held
+     */
+    private Integer quantity;
+
+    /**
+     * Price of an individual product at the time of the reservation
+     */
+    private BigDecimal unitPrice;
+
+    /**
+     * The time the hold is returned back to the stocks unless it's confirmed or released before
+     */
+    private LocalDateTime expiresAt;
+
+    @Enumerated(EnumType.STRING)
+    private State state;
+
+    /**
+     * Id of the {@link PaymentSaga} the stocks are held for
+     */
+    private Long sagaId;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Long productId) {
+        this.productId = productId;
+    }
+
+    public Integer getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(Integer quantity) {
+        this.quantity = quantity;
+    }
+
+    public BigDecimal getUnitPrice() {
+        return unitPrice;
+    }
+
+    public void setUnitPrice(BigDecimal unitPrice) {
+        this.unitPrice = unitPrice;
+    }
+
+    /**
+     * @return the total price of the reserved stocks
+     */
+    public BigDecimal getTotalPrice() {
+        return unitPrice.multiply(new BigDecimal(quantity));
+    }
+
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(LocalDateTime expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    public Long getSagaId() {
+        return sagaId;
+    }
+
+    public void setSagaId(Long sagaId) {
+        this.sagaId = sagaId;
+    }
+}
@@ -0,0 +1,20 @@
+package com.dolap.challenge.exception;
+
+/**
+ * Thrown without calling the bank while the circuit around it is open,
+ * it's a {@link ServiceBusyException} so the callers release the stocks and answer 503 the same way
+ */
+public class BankUnavailableException extends ServiceBusyException{
+
+    public static final String BANK_UNAVAILABLE_EXCEPTION_MESSAGE_KEY = "com.dolap.challenge.exception.BankUnavailableException.message";
+
+    /**
+     * Constructs a {@link ServiceBusyException} with the provided message
+     *
+     * @param message is the message that's set as a cause and later could be retrieved by
+     *                the method {@link BankUnavailableException#getMessage()}
+     */
+    public BankUnavailableException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,16 @@
+package com.dolap.challenge.exception;
+
+public class IdempotencyKeyConflictException extends RuntimeException{
+
+    public static final String IDEMPOTENCY_KEY_CONFLICT_EXCEPTION_MESSAGE_KEY = "com.dolap.challenge.exception.IdempotencyKeyConflictException.message";
+
+    /**
+     * Constructs a {@link RuntimeException} with the provided message
+     *
+     * @param message is the message that's set as a cause and later could be retrieved by
+     *                the method {@link IdempotencyKeyConflictException#getMessage()}
+     */
+    public IdempotencyKeyConflictException(String message){
+        super(message);
+    }
+}
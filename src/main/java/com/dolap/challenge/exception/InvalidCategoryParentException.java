@@ -0,0 +1,16 @@
+package com.dolap.challenge.exception;
+
+public class InvalidCategoryParentException extends RuntimeException{
+
+    public static final String INVALID_CATEGORY_PARENT_EXCEPTION_MESSAGE_KEY = "com.dolap.challenge.exception.InvalidCategoryParentException.message";
+
+    /**
+     * Constructs a {@link RuntimeException} with the provided message
+     *
+     * @param message is the message that's set as a cause and later could be retrieved by
+     *                the method {@link InvalidCategoryParentException#getMessage()}
+     */
+    public InvalidCategoryParentException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,16 @@
+package com.dolap.challenge.exception;
+
+public class InvalidCursorException extends RuntimeException{
+
+    public static final String INVALID_CURSOR_EXCEPTION_MESSAGE_KEY = "com.dolap.challenge.exception.InvalidCursorException.message";
+
+    /**
+     * Constructs a {@link RuntimeException} with the provided message
+     *
+     * @param message is the message that's set as a cause and later could be retrieved by
+     *                the method {@link InvalidCursorException#getMessage()}
+     */
+    public InvalidCursorException(String message) {
+        super(message);
+    }
+}
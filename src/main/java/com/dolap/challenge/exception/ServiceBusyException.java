@@ -0,0 +1,34 @@
+package com.dolap.challenge.exception;
+
+public class ServiceBusyException extends RuntimeException{
+
+    public static final String SERVICE_BUSY_EXCEPTION_MESSAGE_KEY = "com.dolap.challenge.exception.ServiceBusyException.message";
+
+    private Long retryAfterSeconds;
+
+    /**
+     * Constructs a {@link RuntimeException} with the provided message
+     *
+     * @param message is the message that's set as a cause and later could be retrieved by
+     *                the method {@link ServiceBusyException#getMessage()}
+     */
+    public ServiceBusyException(String message){
+        super(message);
+    }
+
+    /**
+     * Constructs a {@link RuntimeException} with the provided message that tells the client when to retry
+     *
+     * @param message is the message that's set as a cause and later could be retrieved by
+     *                the method {@link ServiceBusyException#getMessage()}
+     * @param retryAfterSeconds is how long the client should wait before retrying, sent as the Retry-After header
+     */
+    public ServiceBusyException(String message, Long retryAfterSeconds){
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public Long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,16 @@
+package com.dolap.challenge.exception;
+
+public class WaitingRoomTicketException extends RuntimeException{
+
+    public static final String WAITING_ROOM_TICKET_EXCEPTION_MESSAGE_KEY = "com.dolap.challenge.exception.WaitingRoomTicketException.message";
+
+    /**
+     * Constructs a {@link RuntimeException} with the provided message
+     *
+     * @param message is the message that's set as a cause and later could be retrieved by
+     *                the method {@link WaitingRoomTicketException#getMessage()}
+     */
+    public WaitingRoomTicketException(String message) {
+        super(message);
+    }
+}
@@ -4,8 +4,22 @@ import java.math.BigDecimal;
 
 public class BankPaymentRequest {
 
+    /**
+     * Identifies the payment at the bank, which charges an id once, see {@link com.dolap.challenge.service.BankClient}.
+     * The hedged requests and the retries of the same payment share it.
+     */
+    private String requestId;
+
     private BigDecimal price;
 
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
     public BigDecimal getPrice() {
         return price;
     }
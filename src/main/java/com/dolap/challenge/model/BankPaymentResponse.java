@@ -2,6 +2,11 @@ package com.dolap.challenge.model;
 
 public class BankPaymentResponse {
 
+    public static final String RESULT_CODE_SUCCESS = "200";
+    public static final String RESULT_CODE_TIMEOUT = "TIMEOUT";
+    public static final String RESULT_CODE_ERROR = "ERROR";
+    public static final String RESULT_CODE_DECLINED = "DECLINED";
+
     private String resultCode;
 
     public BankPaymentResponse(String resultCode) {
@@ -15,6 +20,16 @@ public class BankPaymentResponse {
     public void setResultCode(String resultCode) {
         this.resultCode = resultCode;
     }
-}
 
+    public boolean isSuccessful() {
+        return RESULT_CODE_SUCCESS.equals(resultCode);
+    }
 
+    /**
+     * @return whether the bank failed to process the payment, so it's unknown whether it's charged.
+     * A declined payment is a proper answer of the bank.
+     */
+    public boolean isFailure() {
+        return RESULT_CODE_TIMEOUT.equals(resultCode) || RESULT_CODE_ERROR.equals(resultCode);
+    }
+}
@@ -0,0 +1,28 @@
+package com.dolap.challenge.model;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+/**
+ * Products the "customers" are paying for at once, charged with a single payment
+ */
+public class Cart {
+
+    /**
+     * Products and quantities in the cart, the same product can appear more than once
+     */
+    @Valid
+    @NotEmpty(message = "{com.dolap.challenge.model.Cart.items.validation.notEmptyMessage}")
+    @Size(max = 100, message = "{com.dolap.challenge.model.Cart.items.validation.sizeMessage}")
+    private List<PaymentItem> items;
+
+    public List<PaymentItem> getItems() {
+        return items;
+    }
+
+    public void setItems(List<PaymentItem> items) {
+        this.items = items;
+    }
+}
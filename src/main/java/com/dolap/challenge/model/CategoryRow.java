@@ -0,0 +1,18 @@
+package com.dolap.challenge.model;
+
+/**
+ * Projection of a category without its sub categories, together with the id of its parent,
+ * null for the top level categories
+ */
+public interface CategoryRow {
+
+    Long getId();
+
+    String getName();
+
+    String getDescription();
+
+    Integer getOrderNum();
+
+    Long getParentId();
+}
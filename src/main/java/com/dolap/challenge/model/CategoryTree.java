@@ -0,0 +1,216 @@
+package com.dolap.challenge.model;
+
+import com.dolap.challenge.entity.Category;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the whole category tree or a subtree, built from a single flat query and never changed afterwards.
+ * A change to the categories builds a new snapshot instead, see {@link com.dolap.challenge.service.CategoryTreeCache},
+ * so the readers never lock and never see a half applied change.
+ *
+ * The categories are kept in arrays indexed in the order of "orderNum" then id, with the index of the parent
+ * and the indexes of the children in the same order. The categories handed out are fresh copies,
+ * so the callers can't change the snapshot through them.
+ */
+public class CategoryTree {
+
+    private static final int[] NO_CHILDREN = new int[0];
+
+    private final long[] ids;
+    private final String[] names;
+    private final String[] descriptions;
+    private final int[] orderNums;
+    private final int[] parents;
+    private final int[][] children;
+    private final int[] roots;
+    private final Map<Long, Integer> indexes;
+
+    /**
+     * Ids of the parents, 0 for the top level categories. The parent of a subtree is outside of it.
+     */
+    private final long[] parentIds;
+
+    /**
+     * Number of the changes to the categories the snapshot is built after,
+     * see {@link com.dolap.challenge.service.CategoryTreeCache}
+     */
+    private final long generation;
+
+    /**
+     * Time the snapshot is built at, in millis
+     */
+    private final long builtAt;
+
+    /**
+     * Builds the snapshot of a subtree from its categories
+     *
+     * @param rows is the categories of the subtree, ordered by "orderNum" then id
+     */
+    public CategoryTree(List<CategoryRow> rows) {
+        this(rows, 0);
+    }
+
+    /**
+     * Builds the snapshot from the categories
+     *
+     * @param rows is every category, ordered by "orderNum" then id
+     * @param generation is the number of the changes to the categories before the rows are read
+     */
+    public CategoryTree(List<CategoryRow> rows, long generation) {
+        int size = rows.size();
+        ids = new long[size];
+        names = new String[size];
+        descriptions = new String[size];
+        orderNums = new int[size];
+        parents = new int[size];
+        parentIds = new long[size];
+        children = new int[size][];
+        indexes = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            CategoryRow row = rows.get(i);
+            ids[i] = row.getId();
+            names[i] = row.getName();
+            descriptions[i] = row.getDescription();
+            orderNums[i] = row.getOrderNum();
+            parentIds[i] = row.getParentId() != null ? row.getParentId() : 0;
+            indexes.put(row.getId(), i);
+        }
+
+        int[] childCounts = new int[size];
+        int rootCount = 0;
+        for (int i = 0; i < size; i++) {
+            Integer parent = parentIds[i] != 0 ? indexes.get(parentIds[i]) : null;
+            parents[i] = parent != null ? parent : -1;
+            if (parent != null) {
+                childCounts[parent]++;
+            } else {
+                rootCount++;
+            }
+        }
+        // the rows are already in order, so the children and the roots end up in order too
+        roots = new int[rootCount];
+        for (int i = 0, root = 0; i < size; i++) {
+            children[i] = childCounts[i] == 0 ? NO_CHILDREN : new int[childCounts[i]];
+            childCounts[i] = 0;
+            if (parents[i] == -1) {
+                roots[root++] = i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (parents[i] != -1) {
+                children[parents[i]][childCounts[parents[i]]++] = i;
+            }
+        }
+        this.generation = generation;
+        this.builtAt = System.currentTimeMillis();
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getBuiltAt() {
+        return builtAt;
+    }
+
+    /**
+     * @param id is the id of the category
+     * @return whether the category exists
+     */
+    public boolean contains(Long id) {
+        return id != null && indexes.containsKey(id);
+    }
+
+    /**
+     * Copies the category out of the snapshot, together with the whole tree below it
+     *
+     * @param id is the id of the category
+     * @return the category, null when it doesn't exist
+     */
+    public Category toCategory(Long id) {
+        return toCategory(id, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Copies the category out of the snapshot, together with the tree below it down to the given depth.
+     * The categories at the depth are copied without their sub category lists, left null rather than empty
+     * so they aren't mistaken for the categories that have no sub categories.
+     *
+     * @param id is the id of the category
+     * @param depth is the number of the levels copied below the category, 0 for the category only
+     * @return the category, null when it doesn't exist
+     */
+    public Category toCategory(Long id, int depth) {
+        Integer index = id != null ? indexes.get(id) : null;
+        if (index == null) {
+            return null;
+        }
+        Category category = toCategoryTree(index, depth);
+        if (parentIds[index] != 0) {
+            Category parentCategory = new Category();
+            parentCategory.setId(parentIds[index]);
+            category.setParentCategory(parentCategory);
+        }
+        return category;
+    }
+
+    /**
+     * Copies the categories out of the snapshot, each together with the whole tree below it
+     *
+     * @param skipChildren is whether to list the top level categories only, instead of every category
+     * @return the categories in ascending order by "orderNum"
+     */
+    public List<Category> toCategories(boolean skipChildren) {
+        if (skipChildren) {
+            List<Category> categories = new ArrayList<>(roots.length);
+            for (int root : roots) {
+                categories.add(toCategoryTree(root, Integer.MAX_VALUE));
+            }
+            return categories;
+        }
+        // every category is listed, so each one is copied once and shared by its parent's copy and the list
+        Category[] categories = new Category[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            categories[i] = toCategoryNode(i);
+            categories[i].setSubCategoryList(new ArrayList<>(children[i].length));
+        }
+        for (int i = 0; i < ids.length; i++) {
+            for (int child : children[i]) {
+                categories[i].getSubCategoryList().add(categories[child]);
+                categories[child].setParentCategory(categories[i]);
+            }
+        }
+        List<Category> categoryList = new ArrayList<>(ids.length);
+        Collections.addAll(categoryList, categories);
+        return categoryList;
+    }
+
+    private Category toCategoryTree(int index, int depth) {
+        Category category = toCategoryNode(index);
+        if (depth <= 0) {
+            return category;
+        }
+        List<Category> subCategoryList = new ArrayList<>(children[index].length);
+        for (int child : children[index]) {
+            Category subCategory = toCategoryTree(child, depth - 1);
+            subCategory.setParentCategory(category);
+            subCategoryList.add(subCategory);
+        }
+        category.setSubCategoryList(subCategoryList);
+        return category;
+    }
+
+    private Category toCategoryNode(int index) {
+        Category category = new Category();
+        category.setId(ids[index]);
+        category.setName(names[index]);
+        category.setDescription(descriptions[index]);
+        category.setOrderNum(orderNums[index]);
+        return category;
+    }
+}
@@ -0,0 +1,31 @@
+package com.dolap.challenge.model;
+
+import com.dolap.challenge.entity.Payment;
+
+import java.util.List;
+
+/**
+ * A page of the payment logs, newest first
+ */
+public class PaymentPage {
+
+    private List<Payment> payments;
+
+    /**
+     * Cursor to pass to get the next page, null when this is the last page
+     */
+    private Long nextCursor;
+
+    public PaymentPage(List<Payment> payments, Long nextCursor) {
+        this.payments = payments;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Payment> getPayments() {
+        return payments;
+    }
+
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,31 @@
+package com.dolap.challenge.model;
+
+import com.dolap.challenge.entity.Product;
+
+import java.util.List;
+
+/**
+ * A page of the products listed by cursor, see {@link com.dolap.challenge.service.ProductService#getAllByCursor}
+ */
+public class ProductPage {
+
+    private List<Product> products;
+
+    /**
+     * Opaque cursor to pass to get the next page, null when this is the last page
+     */
+    private String next;
+
+    public ProductPage(List<Product> products, String next) {
+        this.products = products;
+        this.next = next;
+    }
+
+    public List<Product> getProducts() {
+        return products;
+    }
+
+    public String getNext() {
+        return next;
+    }
+}
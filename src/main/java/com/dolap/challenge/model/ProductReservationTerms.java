@@ -0,0 +1,18 @@
+package com.dolap.challenge.model;
+
+import java.math.BigDecimal;
+
+/**
+ * Projection of what's needed to reserve the stocks of a product:
+ * its current price, how many rows its stocks are split into and whether it's on flash sale
+ */
+public interface ProductReservationTerms {
+
+    Long getId();
+
+    BigDecimal getPrice();
+
+    Integer getStockShardCount();
+
+    Boolean getFlashSale();
+}
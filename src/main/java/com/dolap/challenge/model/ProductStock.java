@@ -0,0 +1,14 @@
+package com.dolap.challenge.model;
+
+/**
+ * Projection of the stock information of a product together with its version,
+ * used to update the stocks without locking the product record
+ */
+public interface ProductStock {
+
+    Long getId();
+
+    Integer getRemainingStockCount();
+
+    Long getVersion();
+}
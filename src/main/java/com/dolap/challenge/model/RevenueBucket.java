@@ -0,0 +1,32 @@
+package com.dolap.challenge.model;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Number of payments and the revenue in a time bucket
+ */
+public class RevenueBucket {
+
+    private LocalDateTime bucketStart;
+    private long paymentCount;
+    private BigDecimal revenue;
+
+    public RevenueBucket(LocalDateTime bucketStart, long paymentCount, BigDecimal revenue) {
+        this.bucketStart = bucketStart;
+        this.paymentCount = paymentCount;
+        this.revenue = revenue;
+    }
+
+    public LocalDateTime getBucketStart() {
+        return bucketStart;
+    }
+
+    public long getPaymentCount() {
+        return paymentCount;
+    }
+
+    public BigDecimal getRevenue() {
+        return revenue;
+    }
+}
@@ -0,0 +1,53 @@
+package com.dolap.challenge.model;
+
+/**
+ * Ticket of a buyer in the waiting room of a flash sale product and its place in the queue
+ */
+public class WaitingRoomTicket {
+
+    private String ticket;
+    private Long productId;
+    private long position;
+    private boolean admitted;
+    private long estimatedWaitSeconds;
+    private Long admittedUntil;
+
+    public WaitingRoomTicket(String ticket, Long productId, long position, boolean admitted, long estimatedWaitSeconds, Long admittedUntil) {
+        this.ticket = ticket;
+        this.productId = productId;
+        this.position = position;
+        this.admitted = admitted;
+        this.estimatedWaitSeconds = estimatedWaitSeconds;
+        this.admittedUntil = admittedUntil;
+    }
+
+    public String getTicket() {
+        return ticket;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    /**
+     * @return the number of buyers ahead of the ticket plus one, 0 once the ticket is admitted
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public boolean isAdmitted() {
+        return admitted;
+    }
+
+    public long getEstimatedWaitSeconds() {
+        return estimatedWaitSeconds;
+    }
+
+    /**
+     * @return the epoch millis the admitted ticket can be paid with until, null while it's waiting
+     */
+    public Long getAdmittedUntil() {
+        return admittedUntil;
+    }
+}
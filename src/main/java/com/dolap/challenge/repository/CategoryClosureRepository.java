@@ -0,0 +1,30 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.CategoryClosure;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface CategoryClosureRepository extends JpaRepository<CategoryClosure, Long> {
+
+    @Query(value = "FROM CategoryClosure c WHERE c.descendantId = :id ORDER BY c.depth")
+    public List<CategoryClosure> findAncestors(@Param("id") Long id);
+
+    @Query(value = "FROM CategoryClosure c WHERE c.ancestorId = :id ORDER BY c.depth")
+    public List<CategoryClosure> findDescendants(@Param("id") Long id);
+
+    @Query(value = "SELECT COUNT(c) FROM CategoryClosure c WHERE c.depth = 0")
+    public long countCategories();
+
+    @Modifying(flushAutomatically = true)
+    @Query(value = "DELETE FROM CategoryClosure c WHERE c.descendantId IN :ids")
+    public int deleteAllByDescendantIds(@Param("ids") Collection<Long> ids);
+
+    @Modifying(flushAutomatically = true)
+    @Query(value = "DELETE FROM CategoryClosure c WHERE c.descendantId IN :ids AND c.ancestorId NOT IN :ids")
+    public int detach(@Param("ids") Collection<Long> ids);
+}
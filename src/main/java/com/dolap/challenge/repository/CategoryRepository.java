@@ -1,14 +1,21 @@
 package com.dolap.challenge.repository;
 
 import com.dolap.challenge.entity.Category;
-import org.springframework.data.domain.Sort;
+import com.dolap.challenge.model.CategoryRow;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.util.List;
 
 public interface CategoryRepository extends JpaRepository<Category, Long> {
 
-    @Query("FROM Category c WHERE c.parentCategory IS NULL")
-    public List<Category> findAllSkipChildren(Sort sort);
+    @Query("SELECT c.id AS id, c.name AS name, c.description AS description, c.orderNum AS orderNum, p.id AS parentId"
+            + " FROM Category c LEFT JOIN c.parentCategory p ORDER BY c.orderNum, c.id")
+    public List<CategoryRow> findAllRows();
+
+    @Query("SELECT c.id AS id, c.name AS name, c.description AS description, c.orderNum AS orderNum, p.id AS parentId"
+            + " FROM Category c LEFT JOIN c.parentCategory p, CategoryClosure cc"
+            + " WHERE cc.ancestorId = :id AND c.id = cc.descendantId ORDER BY c.orderNum, c.id")
+    public List<CategoryRow> findSubtreeRows(@Param("id") Long id);
 }
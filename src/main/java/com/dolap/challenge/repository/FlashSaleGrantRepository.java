@@ -0,0 +1,16 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.FlashSaleGrant;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+public interface FlashSaleGrantRepository extends JpaRepository<FlashSaleGrant, String> {
+
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM FlashSaleGrant g WHERE g.id = :id")
+    public int deleteGrant(@Param("id") String id);
+}
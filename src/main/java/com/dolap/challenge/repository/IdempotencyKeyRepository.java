@@ -0,0 +1,30 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.IdempotencyKey;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+public interface IdempotencyKeyRepository extends JpaRepository<IdempotencyKey, Long> {
+
+    public IdempotencyKey findByIdempotencyKey(String idempotencyKey);
+
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE IdempotencyKey k SET k.paymentId = :paymentId WHERE k.idempotencyKey = :idempotencyKey")
+    public int updatePaymentId(@Param("idempotencyKey") String idempotencyKey, @Param("paymentId") Long paymentId);
+
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM IdempotencyKey k WHERE k.idempotencyKey = :idempotencyKey AND k.paymentId IS NULL")
+    public int deleteUnfinished(@Param("idempotencyKey") String idempotencyKey);
+
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM IdempotencyKey k WHERE k.createdAt < :createdAt")
+    public int deleteCreatedBefore(@Param("createdAt") LocalDateTime createdAt);
+}
@@ -1,7 +1,34 @@
 package com.dolap.challenge.repository;
 
 import com.dolap.challenge.entity.Payment;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.QueryHint;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
 
 public interface PaymentRepository extends JpaRepository<Payment, Long> {
+
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query(value = "FROM Payment p ORDER BY p.id")
+    public Stream<Payment> streamAll();
+
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "1000"), @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query(value = "FROM Payment p WHERE p.createdAt >= :from AND p.createdAt < :to ORDER BY p.id")
+    public Stream<Payment> streamAllBetween(@Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
+
+    @Query(value = "FROM Payment p WHERE p.id < :cursor ORDER BY p.id DESC")
+    public List<Payment> findAllBefore(@Param("cursor") Long cursor, Pageable pageable);
+
+    @Query(value = "FROM Payment p WHERE p.id < :cursor AND p.createdAt >= :from AND p.createdAt < :to ORDER BY p.id DESC")
+    public List<Payment> findAllBeforeBetween(@Param("cursor") Long cursor, @Param("from") LocalDateTime from,
+                                              @Param("to") LocalDateTime to, Pageable pageable);
 }
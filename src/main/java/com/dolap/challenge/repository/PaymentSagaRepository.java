@@ -0,0 +1,34 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.PaymentSaga;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface PaymentSagaRepository extends JpaRepository<PaymentSaga, Long> {
+
+    @Query(value = "FROM PaymentSaga s WHERE s.state IN :states AND s.updatedAt < :before ORDER BY s.id")
+    public List<PaymentSaga> findStuck(@Param("states") List<PaymentSaga.State> states, @Param("before") LocalDateTime before, Pageable pageable);
+
+    public boolean existsByIdempotencyKeyAndState(String idempotencyKey, PaymentSaga.State state);
+
+    @Modifying
+    @Query(value = "UPDATE PaymentSaga s SET s.state = :newState, s.updatedAt = :now WHERE s.id = :id AND s.state = :currentState")
+    public int updateState(@Param("id") Long id, @Param("currentState") PaymentSaga.State currentState,
+                           @Param("newState") PaymentSaga.State newState, @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query(value = "UPDATE PaymentSaga s SET s.state = :newState, s.paymentId = :paymentId, s.updatedAt = :now WHERE s.id = :id AND s.state = :currentState")
+    public int complete(@Param("id") Long id, @Param("currentState") PaymentSaga.State currentState,
+                        @Param("newState") PaymentSaga.State newState, @Param("paymentId") Long paymentId, @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query(value = "UPDATE PaymentSaga s SET s.updatedAt = :now WHERE s.id = :id AND s.state = :state AND s.updatedAt = :updatedAt")
+    public int claim(@Param("id") Long id, @Param("state") PaymentSaga.State state,
+                     @Param("updatedAt") LocalDateTime updatedAt, @Param("now") LocalDateTime now);
+}
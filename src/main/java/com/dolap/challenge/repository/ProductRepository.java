@@ -1,16 +1,48 @@
 package com.dolap.challenge.repository;
 
 import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.model.ProductReservationTerms;
+import com.dolap.challenge.model.ProductStock;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
+import java.util.Collection;
 import java.util.List;
 
-public interface ProductRepository extends JpaRepository<Product, Long> {
+public interface ProductRepository extends JpaRepository<Product, Long>, ProductRepositoryCustom {
 
-    @Query(value = "FROM Product p WHERE p.category.id IN :categoryList")
-    public Page<Product> findAllByCategory(@Param("categoryList") List<Long> ids, Pageable pageable);
+    @Query(value = "SELECT p FROM Product p, CategoryClosure c WHERE c.ancestorId = :categoryId AND p.category.id = c.descendantId",
+            countQuery = "SELECT COUNT(p) FROM Product p, CategoryClosure c WHERE c.ancestorId = :categoryId AND p.category.id = c.descendantId")
+    public Page<Product> findAllByCategoryTree(@Param("categoryId") Long categoryId, Pageable pageable);
+
+    @Query(value = "SELECT p.id AS id, p.price AS price, p.stockShardCount AS stockShardCount, p.flashSale AS flashSale FROM Product p WHERE p.id = :id")
+    public ProductReservationTerms findReservationTermsById(@Param("id") Long id);
+
+    @Query(value = "SELECT p.id AS id, p.price AS price, p.stockShardCount AS stockShardCount, p.flashSale AS flashSale FROM Product p WHERE p.id IN :ids")
+    public List<ProductReservationTerms> findReservationTermsByIdIn(@Param("ids") Collection<Long> ids);
+
+    @Query(value = "SELECT p.id FROM Product p WHERE p.flashSale = true")
+    public List<Long> findFlashSaleProductIds();
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "UPDATE Product p SET p.remainingStockCount = p.remainingStockCount - :quantity, p.version = p.version + 1 WHERE p.id = :id AND p.remainingStockCount >= :quantity")
+    public int decreaseStock(@Param("id") Long id, @Param("quantity") Integer quantity);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "UPDATE Product p SET p.remainingStockCount = p.remainingStockCount + :quantity, p.version = p.version + 1 WHERE p.id = :id")
+    public int increaseStock(@Param("id") Long id, @Param("quantity") Integer quantity);
+
+    @Query(value = "SELECT p.id AS id, p.remainingStockCount AS remainingStockCount, p.version AS version FROM Product p WHERE p.id = :id")
+    public ProductStock findStockById(@Param("id") Long id);
+
+    @Query(value = "SELECT p.id AS id, p.remainingStockCount AS remainingStockCount, p.version AS version FROM Product p")
+    public List<ProductStock> findAllStocks();
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "UPDATE Product p SET p.remainingStockCount = :remainingStockCount, p.version = p.version + 1 WHERE p.id = :id AND p.version = :version")
+    public int updateStock(@Param("id") Long id, @Param("remainingStockCount") Integer remainingStockCount, @Param("version") Long version);
 }
@@ -0,0 +1,37 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.Product;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The queries of {@link ProductRepository} that can't be declared with {@link org.springframework.data.jpa.repository.Query}
+ */
+public interface ProductRepositoryCustom {
+
+    /**
+     * Lists the products of the category and the categories below it that come after the given sort key and id, ordered by the sort field then the id.
+     * The id breaks the ties between the products having the same sort key, so no product is skipped or repeated.
+     *
+     * @param categoryId is the id of the category on top
+     * @param sortField is the field to sort on, one of the fields checked by the caller
+     * @param ascending is the direction of the sort
+     * @param afterSortKey is the sort key of the last product of the previous page, null for the first page
+     * @param afterId is the id of the last product of the previous page, null for the first page
+     * @param limit is the maximum number of the products
+     * @return the products after the given sort key and id
+     */
+    public List<Product> findAllByCategoryTreeAfter(Long categoryId, String sortField, boolean ascending,
+                                                    Object afterSortKey, Long afterId, int limit);
+
+    /**
+     * Increases the stocks of many products with a single update, each by its own quantity.
+     * Same as {@link ProductRepository#increaseStock(Long, Integer)}, the pending changes are flushed before
+     * and the persistence context is cleared after.
+     *
+     * @param quantities are the quantities added to the stocks per product id
+     * @return the number of products updated
+     */
+    public int increaseStocks(Map<Long, Integer> quantities);
+}
@@ -0,0 +1,76 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.Product;
+
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class ProductRepositoryImpl implements ProductRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<Product> findAllByCategoryTreeAfter(Long categoryId, String sortField, boolean ascending,
+                                                    Object afterSortKey, Long afterId, int limit) {
+        String after = ascending ? ">" : "<";
+        String direction = ascending ? " ASC" : " DESC";
+        StringBuilder jpql = new StringBuilder("SELECT p FROM Product p, CategoryClosure c"
+                + " WHERE c.ancestorId = :categoryId AND p.category.id = c.descendantId");
+        if (afterId != null) {
+            // (sortKey, id) > (:afterSortKey, :afterId) spelled out, row values aren't part of JPQL
+            if ("id".equals(sortField)) {
+                jpql.append(" AND p.id ").append(after).append(" :afterId");
+            } else {
+                jpql.append(" AND (p.").append(sortField).append(' ').append(after).append(" :afterSortKey")
+                        .append(" OR (p.").append(sortField).append(" = :afterSortKey AND p.id ").append(after).append(" :afterId))");
+            }
+        }
+        if (!"id".equals(sortField)) {
+            jpql.append(" ORDER BY p.").append(sortField).append(direction).append(", p.id").append(direction);
+        } else {
+            jpql.append(" ORDER BY p.id").append(direction);
+        }
+
+        TypedQuery<Product> query = entityManager.createQuery(jpql.toString(), Product.class)
+                .setParameter("categoryId", categoryId)
+                .setMaxResults(limit);
+        if (afterId != null) {
+            query.setParameter("afterId", afterId);
+            if (!"id".equals(sortField)) {
+                query.setParameter("afterSortKey", afterSortKey);
+            }
+        }
+        return query.getResultList();
+    }
+
+    @Override
+    @Transactional
+    public int increaseStocks(Map<Long, Integer> quantities) {
+        if (quantities.isEmpty()) {
+            return 0;
+        }
+        StringBuilder jpql = new StringBuilder("UPDATE Product p SET p.remainingStockCount = p.remainingStockCount + CASE");
+        List<Long> ids = new ArrayList<>(quantities.keySet());
+        for (int i = 0; i < ids.size(); i++) {
+            jpql.append(" WHEN p.id = :id").append(i).append(" THEN :quantity").append(i);
+        }
+        jpql.append(" ELSE 0 END, p.version = p.version + 1 WHERE p.id IN :ids");
+
+        Query query = entityManager.createQuery(jpql.toString()).setParameter("ids", ids);
+        for (int i = 0; i < ids.size(); i++) {
+            query.setParameter("id" + i, ids.get(i)).setParameter("quantity" + i, quantities.get(ids.get(i)));
+        }
+        entityManager.flush();
+        int updated = query.executeUpdate();
+        entityManager.clear();
+        return updated;
+    }
+}
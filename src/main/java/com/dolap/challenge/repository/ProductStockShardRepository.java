@@ -0,0 +1,32 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.ProductStockShard;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import java.util.List;
+
+public interface ProductStockShardRepository extends JpaRepository<ProductStockShard, Long> {
+
+    public List<ProductStockShard> findAllByProductIdIn(List<Long> productIds);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query(value = "FROM ProductStockShard s WHERE s.productId = :productId ORDER BY s.shardIndex")
+    public List<ProductStockShard> findAllByProductIdForUpdate(@Param("productId") Long productId);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "UPDATE ProductStockShard s SET s.remainingStockCount = s.remainingStockCount - :quantity WHERE s.productId = :productId AND s.shardIndex = :shardIndex AND s.remainingStockCount >= :quantity")
+    public int decreaseStock(@Param("productId") Long productId, @Param("shardIndex") Integer shardIndex, @Param("quantity") Integer quantity);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "UPDATE ProductStockShard s SET s.remainingStockCount = s.remainingStockCount + :quantity WHERE s.productId = :productId AND s.shardIndex = :shardIndex")
+    public int increaseStock(@Param("productId") Long productId, @Param("shardIndex") Integer shardIndex, @Param("quantity") Integer quantity);
+
+    @Modifying(flushAutomatically = true)
+    @Query(value = "DELETE FROM ProductStockShard s WHERE s.productId = :productId")
+    public int deleteAllByProductId(@Param("productId") Long productId);
+}
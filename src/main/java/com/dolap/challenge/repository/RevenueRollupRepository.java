@@ -0,0 +1,26 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.RevenueRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface RevenueRollupRepository extends JpaRepository<RevenueRollup, Long> {
+
+    @Query(value = "FROM RevenueRollup r WHERE r.productId = :productId AND r.granularity = :granularity " +
+            "AND r.bucketStart >= :from AND r.bucketStart < :to ORDER BY r.bucketStart")
+    public List<RevenueRollup> findBuckets(@Param("productId") Long productId, @Param("granularity") RevenueRollup.Granularity granularity,
+                                           @Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
+
+    @Modifying
+    @Query(value = "UPDATE RevenueRollup r SET r.paymentCount = r.paymentCount + :paymentCount, r.revenue = r.revenue + :revenue " +
+            "WHERE r.productId = :productId AND r.granularity = :granularity AND r.bucketStart = :bucketStart")
+    public int add(@Param("productId") Long productId, @Param("granularity") RevenueRollup.Granularity granularity,
+                   @Param("bucketStart") LocalDateTime bucketStart, @Param("paymentCount") Long paymentCount,
+                   @Param("revenue") BigDecimal revenue);
+}
@@ -0,0 +1,7 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.StockJournalCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface StockJournalCheckpointRepository extends JpaRepository<StockJournalCheckpoint, Long> {
+}
@@ -0,0 +1,42 @@
+package com.dolap.challenge.repository;
+
+import com.dolap.challenge.entity.PaymentSaga;
+import com.dolap.challenge.entity.StockReservation;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface StockReservationRepository extends JpaRepository<StockReservation, Long> {
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query(value = "FROM StockReservation r WHERE r.state = :state AND r.expiresAt < :now " +
+            "AND NOT EXISTS (SELECT s.id FROM PaymentSaga s WHERE s.id = r.sagaId AND s.state = :chargingState) ORDER BY r.id")
+    public List<StockReservation> findExpired(@Param("state") StockReservation.State state, @Param("chargingState") PaymentSaga.State chargingState,
+                                              @Param("now") LocalDateTime now, Pageable pageable);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query(value = "FROM StockReservation r WHERE r.id IN :ids AND r.state = :state ORDER BY r.id")
+    public List<StockReservation> findAllByIdInAndState(@Param("ids") List<Long> ids, @Param("state") StockReservation.State state);
+
+    @Query(value = "FROM StockReservation r WHERE r.sagaId = :sagaId ORDER BY r.productId")
+    public List<StockReservation> findAllBySagaId(@Param("sagaId") Long sagaId);
+
+    @Modifying
+    @Query(value = "UPDATE StockReservation r SET r.state = :newState WHERE r.id = :id AND r.state = :currentState")
+    public int updateState(@Param("id") Long id, @Param("currentState") StockReservation.State currentState, @Param("newState") StockReservation.State newState);
+
+    @Modifying
+    @Query(value = "UPDATE StockReservation r SET r.sagaId = :sagaId WHERE r.id IN :ids")
+    public int updateSagaId(@Param("ids") List<Long> ids, @Param("sagaId") Long sagaId);
+
+    @Modifying
+    @Query(value = "UPDATE StockReservation r SET r.state = :newState WHERE r.id IN :ids")
+    public int updateState(@Param("ids") List<Long> ids, @Param("newState") StockReservation.State newState);
+}
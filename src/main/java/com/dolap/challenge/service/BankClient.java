@@ -0,0 +1,35 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.model.BankPaymentRequest;
+import com.dolap.challenge.model.BankPaymentResponse;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The connection to the bank, {@link BankService} guards the calls made through it with a bulkhead and a timeout.
+ * The futures may complete exceptionally when the call fails or never complete when the bank doesn't respond.
+ *
+ * The payments are idempotent by {@link BankPaymentRequest#getRequestId()}: the bank charges a request id once,
+ * and a request with an id it has already processed gets the outcome of the first one instead of being charged again,
+ * on every instance of the bank. The hedged requests and the recovery of the stuck payments rely on it.
+ */
+public interface BankClient {
+
+    /**
+     * Sends a payment request to the bank without blocking the caller.
+     * Sending the same request id again returns the outcome of the first request, the payment isn't charged twice.
+     *
+     * @param request is the payment request
+     * @return a future that completes with the bank's response
+     */
+    CompletableFuture<BankPaymentResponse> pay(BankPaymentRequest request);
+
+    /**
+     * Sends many payment requests to the bank in a single call, each request id is charged once the same as {@link #pay}
+     *
+     * @param requests are the payment requests
+     * @return a future that completes with the bank's responses in the same order as the requests
+     */
+    CompletableFuture<List<BankPaymentResponse>> settle(List<BankPaymentRequest> requests);
+}
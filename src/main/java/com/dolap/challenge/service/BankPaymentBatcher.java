@@ -0,0 +1,183 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.model.BankPaymentRequest;
+import com.dolap.challenge.model.BankPaymentResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-batching stage in front of the bank.
+ * Payment requests are queued and settled together with a single bank call once either
+ * {@code bank.batch.max-size} requests are collected or {@code bank.batch.max-delay-millis} passed
+ * since the first request of the batch. The responses are fanned back out to the waiting callers.
+ */
+@Service
+public class BankPaymentBatcher {
+
+    private Logger logger = LoggerFactory.getLogger(BankPaymentBatcher.class);
+
+    private BankService bankService;
+    private Messages messages;
+    private boolean enabled;
+    private int maxSize;
+    private long maxDelayMillis;
+    private BlockingQueue<PendingPayment> queue;
+    private volatile boolean running;
+    private Thread worker;
+
+    /**
+     * Constructs a BankPaymentBatcher that settles the payments through the given bankService
+     *
+     * @param bankService is the interface used to call the bank
+     * @param messages the interface we used to pull the relevant messages depending on the locale set
+     * @param enabled whether the payments are batched or sent to the bank one by one
+     * @param maxSize is the maximum number of payments settled with a single call
+     * @param maxDelayMillis is the maximum time a payment waits for the batch to fill up
+     * @param maxPending is the maximum number of payments that can wait for the next batch
+     */
+    public BankPaymentBatcher(BankService bankService, Messages messages,
+                              @Value("${bank.batch.enabled}") boolean enabled,
+                              @Value("${bank.batch.max-size}") int maxSize,
+                              @Value("${bank.batch.max-delay-millis}") long maxDelayMillis,
+                              @Value("${bank.batch.max-pending}") int maxPending) {
+        this.bankService = bankService;
+        this.messages = messages;
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.queue = new ArrayBlockingQueue<>(maxPending);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::run, "bank-batcher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * @return whether the payments are batched or not
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues the payment request for the next batch
+     *
+     * @param request is the payment request sent to the bank
+     * @return a future that completes with the bank's response for this request
+     * @throws ServiceBusyException when there are already too many payments waiting for the next batch
+     */
+    public CompletableFuture<BankPaymentResponse> pay(BankPaymentRequest request) throws ServiceBusyException {
+        PendingPayment pendingPayment = new PendingPayment(request);
+        if (!queue.offer(pendingPayment)) {
+            logger.warn("Too many payments waiting for the bank, rejecting the payment");
+            throw new ServiceBusyException(messages.get(ServiceBusyException.SERVICE_BUSY_EXCEPTION_MESSAGE_KEY));
+        }
+        return pendingPayment.response;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                List<PendingPayment> batch = nextBatch();
+                if (!batch.isEmpty()) {
+                    settle(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                logger.error("Bank batch could not be settled", e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the first payment, then collects more until the batch is full or the delay is over
+     */
+    private List<PendingPayment> nextBatch() throws InterruptedException {
+        List<PendingPayment> batch = new ArrayList<>(maxSize);
+        PendingPayment first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+            return batch;
+        }
+        batch.add(first);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        while (batch.size() < maxSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            PendingPayment next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxSize - batch.size());
+        }
+        return batch;
+    }
+
+    private void settle(List<PendingPayment> batch) {
+        List<BankPaymentRequest> requests = new ArrayList<>(batch.size());
+        batch.forEach(pendingPayment -> requests.add(pendingPayment.request));
+
+        CompletableFuture<List<BankPaymentResponse>> responses;
+        try {
+            responses = bankService.settle(requests);
+        } catch (RuntimeException exception) {
+            batch.forEach(pendingPayment -> pendingPayment.response.completeExceptionally(exception));
+            return;
+        }
+        logger.info("Settling {} payments with a single bank call", batch.size());
+        responses.whenComplete((results, throwable) -> {
+            for (int i = 0; i < batch.size(); i++) {
+                if (throwable != null) {
+                    batch.get(i).response.completeExceptionally(throwable);
+                } else {
+                    batch.get(i).response.complete(results.get(i));
+                }
+            }
+        });
+    }
+
+    /**
+     * Payment request waiting for the next batch together with the future of its caller
+     */
+    private static class PendingPayment {
+        private final BankPaymentRequest request;
+        private final CompletableFuture<BankPaymentResponse> response = new CompletableFuture<>();
+
+        private PendingPayment(BankPaymentRequest request) {
+            this.request = request;
+        }
+    }
+}
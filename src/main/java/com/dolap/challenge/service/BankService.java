@@ -1,22 +1,275 @@
 package com.dolap.challenge.service;
 
+import com.dolap.challenge.configuration.BankConfiguration;
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.exception.BankUnavailableException;
+import com.dolap.challenge.exception.ServiceBusyException;
 import com.dolap.challenge.model.BankPaymentRequest;
 import com.dolap.challenge.model.BankPaymentResponse;
+import com.dolap.challenge.util.CircuitBreaker;
+import com.dolap.challenge.util.LatencyRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
 @Service
 public class BankService {
 
+    private static final int LATENCY_WINDOW_SIZE = 1000;
+
+    private Logger logger = LoggerFactory.getLogger(BankService.class);
+
+    private Messages messages;
+    private ScheduledExecutorService scheduler;
+    private BankClient bankClient;
+    private BankClient alternateBankClient;
+    private CircuitBreaker circuitBreaker;
+    private Semaphore bulkhead;
+    private long timeoutMillis;
+    private boolean hedgingEnabled;
+    private long minHedgeDelayMillis;
+    private LatencyRecorder latencyRecorder;
+    private final AtomicLong hedgedCalls = new AtomicLong();
+    private final AtomicLong hedgedCallsWon = new AtomicLong();
+
+    /**
+     * Constructs a BankService that calls the bank without blocking the caller.
+     *
+     * @param messages the interface we used to pull the relevant messages depending on the locale set
+     * @param bankClient is the connection to the bank, e.g. the {@link BankSimulator}
+     * @param alternateBankClient is the connection to another instance of the bank the hedged requests are sent to
+     * @param circuitBreaker is the circuit the calls to the bank are made through
+     * @param timeoutMillis is the time we wait for the bank before giving up on the call
+     * @param maxConcurrentCalls is the maximum number of calls that can be in-flight at the same time
+     * @param hedgingEnabled whether a payment is sent to the alternate bank as well when the bank is slower than usual
+     * @param hedgingPercentile is the percentile of the recent bank latencies the hedged request is sent after, e.g. 95
+     * @param minHedgeDelayMillis is the minimum time waited before the hedged request is sent
+     */
+    public BankService(Messages messages,
+                       BankClient bankClient,
+                       @Qualifier(BankConfiguration.ALTERNATE_BANK_CLIENT_BEAN_NAME) BankClient alternateBankClient,
+                       @Qualifier(BankConfiguration.BANK_CIRCUIT_BREAKER_BEAN_NAME) CircuitBreaker circuitBreaker,
+                       @Value("${bank.timeout-millis}") long timeoutMillis,
+                       @Value("${bank.max-concurrent-calls}") int maxConcurrentCalls,
+                       @Value("${bank.hedging.enabled}") boolean hedgingEnabled,
+                       @Value("${bank.hedging.percentile}") double hedgingPercentile,
+                       @Value("${bank.hedging.min-delay-millis}") long minHedgeDelayMillis) {
+        this.messages = messages;
+        this.bankClient = bankClient;
+        this.alternateBankClient = alternateBankClient;
+        this.circuitBreaker = circuitBreaker;
+        this.timeoutMillis = timeoutMillis;
+        this.bulkhead = new Semaphore(maxConcurrentCalls);
+        this.hedgingEnabled = hedgingEnabled;
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+        // no hedging until the latencies of the bank are known
+        this.latencyRecorder = new LatencyRecorder(LATENCY_WINDOW_SIZE, hedgingPercentile, timeoutMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bank-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Calls the bank and returns right away, the returned future is completed once the bank responds.
+     * The future never completes exceptionally - when the bank doesn't respond in time it's completed with
+     * {@link BankPaymentResponse#RESULT_CODE_TIMEOUT} and when the call fails with
+     * {@link BankPaymentResponse#RESULT_CODE_ERROR}, so the callers can record the result and release the stocks.
+     *
+     * When hedging is enabled and the bank hasn't responded within the configured percentile of its recent latencies,
+     * the same request is sent to the alternate bank as well and the first response is taken. Both carry the same
+     * request id, which the bank charges only once as the {@link BankClient} contract requires. The hedged request
+     * takes a bulkhead permit of its own and is skipped when there's none left.
+     * A request id is assigned when there's none, the callers that retry the payment set it themselves.
+     *
+     * @param request is the payment request sent to the bank
+     * @return a future that completes with the bank's response
+     * @throws ServiceBusyException when there are already too many calls in-flight
+     * @throws BankUnavailableException when the circuit is open because the bank is failing or slow
+     */
+    public CompletableFuture<BankPaymentResponse> pay(BankPaymentRequest request) throws ServiceBusyException {
+        if (request.getRequestId() == null) {
+            request.setRequestId(UUID.randomUUID().toString());
+        }
+        return guard(() -> hedgingEnabled ? hedge(request) : bankClient.pay(request),
+                response -> isFailure(response),
+                new BankPaymentResponse(BankPaymentResponse.RESULT_CODE_TIMEOUT),
+                new BankPaymentResponse(BankPaymentResponse.RESULT_CODE_ERROR));
+    }
+
+    /**
+     * Settles many payment requests with a single call to the bank.
+     * The responses are in the same order as the requests. Same as {@link #pay(BankPaymentRequest)},
+     * the whole batch is completed with {@link BankPaymentResponse#RESULT_CODE_TIMEOUT} or
+     * {@link BankPaymentResponse#RESULT_CODE_ERROR} when the call doesn't succeed.
+     *
+     * @param requests are the payment requests sent to the bank in one batch
+     * @return a future that completes with the bank's responses
+     * @throws ServiceBusyException when there are already too many calls in-flight
+     * @throws BankUnavailableException when the circuit is open because the bank is failing or slow
+     */
+    public CompletableFuture<List<BankPaymentResponse>> settle(List<BankPaymentRequest> requests) throws ServiceBusyException {
+        return guard(() -> bankClient.settle(requests),
+                responses -> responses.stream().anyMatch(this::isFailure),
+                responses(requests.size(), BankPaymentResponse.RESULT_CODE_TIMEOUT),
+                responses(requests.size(), BankPaymentResponse.RESULT_CODE_ERROR));
+    }
+
+    /**
+     * @return the state of the circuit around the bank
+     */
+    public CircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
     /**
-     * Bank Latency Simulation (avg: 5 seconds)
+     * @return the number of payments sent to the alternate bank as well
      */
-    public BankPaymentResponse pay(BankPaymentRequest request) {
+    public long getHedgedCalls() {
+        return hedgedCalls.get();
+    }
+
+    /**
+     * @return the number of payments the alternate bank responded to first
+     */
+    public long getHedgedCallsWon() {
+        return hedgedCallsWon.get();
+    }
+
+    /**
+     * Runs the bank call through the circuit breaker and within the bulkhead, and completes it with the given values
+     * when the call times out or fails.
+     */
+    private <T> CompletableFuture<T> guard(Supplier<CompletableFuture<T>> call, Predicate<T> failed, T timeoutValue, T errorValue) {
+        if (!circuitBreaker.tryAcquirePermission()) {
+            throw new BankUnavailableException(messages.get(BankUnavailableException.BANK_UNAVAILABLE_EXCEPTION_MESSAGE_KEY));
+        }
+        if (!bulkhead.tryAcquire()) {
+            circuitBreaker.releasePermission();
+            logger.warn("Too many in-flight bank calls, rejecting the payment");
+            throw new ServiceBusyException(messages.get(ServiceBusyException.SERVICE_BUSY_EXCEPTION_MESSAGE_KEY));
+        }
+
+        long start = System.currentTimeMillis();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        // the callers see the response only after the permits are given back and the outcome is recorded
+        CompletableFuture<T> result = future.whenComplete((response, throwable) -> {
+            bulkhead.release();
+            circuitBreaker.onResult(System.currentTimeMillis() - start, failed.test(response));
+        });
         try {
-            Thread.sleep(5000);
-            return new BankPaymentResponse("200");
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return null;
+            ScheduledFuture<?> timeout = scheduler.schedule(() -> future.complete(timeoutValue), timeoutMillis, TimeUnit.MILLISECONDS);
+            future.whenComplete((response, throwable) -> timeout.cancel(false));
+            call.get().whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    logger.error("Bank call failed", throwable);
+                    future.complete(errorValue);
+                } else {
+                    future.complete(response);
+                }
+            });
+        } catch (RuntimeException exception) {
+            logger.error("Bank call could not be made", exception);
+            future.complete(errorValue);
         }
+        return result;
+    }
+
+    /**
+     * Sends the request to the bank and, if it doesn't respond within the hedge delay, to the alternate bank too.
+     * The first response wins, the call fails only when both fail. The hedged request holds a second bulkhead permit
+     * until the alternate bank responds or the timeout passes, and isn't sent when no permit is free.
+     */
+    private CompletableFuture<BankPaymentResponse> hedge(BankPaymentRequest request) {
+        CompletableFuture<BankPaymentResponse> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        long start = System.currentTimeMillis();
+
+        ScheduledFuture<?> hedge = scheduler.schedule(() -> {
+            if (result.isDone() || !bulkhead.tryAcquire()) {
+                return;
+            }
+            AtomicBoolean permitHeld = new AtomicBoolean(true);
+            Runnable releasePermit = () -> {
+                if (permitHeld.compareAndSet(true, false)) {
+                    bulkhead.release();
+                }
+            };
+            scheduler.schedule(releasePermit, timeoutMillis, TimeUnit.MILLISECONDS);
+            outstanding.incrementAndGet();
+            hedgedCalls.incrementAndGet();
+            CompletableFuture<BankPaymentResponse> hedgedResponse;
+            try {
+                hedgedResponse = alternateBankClient.pay(request);
+            } catch (RuntimeException exception) {
+                releasePermit.run();
+                if (outstanding.decrementAndGet() == 0) {
+                    result.completeExceptionally(exception);
+                }
+                return;
+            }
+            hedgedResponse.whenComplete((response, throwable) -> {
+                releasePermit.run();
+                if (throwable == null) {
+                    // counted before completing, so the caller sees the count with the response
+                    hedgedCallsWon.incrementAndGet();
+                    if (!result.complete(response)) {
+                        hedgedCallsWon.decrementAndGet();
+                    }
+                } else if (outstanding.decrementAndGet() == 0) {
+                    result.completeExceptionally(throwable);
+                }
+            });
+        }, Math.max(minHedgeDelayMillis, latencyRecorder.getPercentile()), TimeUnit.MILLISECONDS);
+
+        bankClient.pay(request).whenComplete((response, throwable) -> {
+            if (throwable == null) {
+                latencyRecorder.record(System.currentTimeMillis() - start);
+                result.complete(response);
+            } else if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(throwable);
+            }
+        });
+        result.whenComplete((response, throwable) -> hedge.cancel(false));
+        return result;
+    }
+
+    /**
+     * @return whether the bank failed to process the payment, see {@link BankPaymentResponse#isFailure()}
+     */
+    private boolean isFailure(BankPaymentResponse response) {
+        return response == null || response.isFailure();
+    }
+
+    private List<BankPaymentResponse> responses(int size, String resultCode) {
+        List<BankPaymentResponse> responses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            responses.add(new BankPaymentResponse(resultCode));
+        }
+        return responses;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
     }
 }
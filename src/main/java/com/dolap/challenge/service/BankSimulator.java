@@ -0,0 +1,204 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.model.BankPaymentRequest;
+import com.dolap.challenge.model.BankPaymentResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Local stand-in for the bank, used to load test the payments without an external service.
+ * Every call takes a latency drawn from the configured {@link LatencyProfile} and fails, never responds
+ * or is declined at the configured rates. The responses are scheduled instead of sleeping, so no thread
+ * waits for the simulated bank.
+ *
+ * The outcome of a payment is kept by its request id, so asking again with the same id returns the same outcome
+ * as the {@link BankClient} contract requires. The copies of the simulator share the outcomes like the instances
+ * of a real bank do. A call the bank never responds to is still processed, as if the response is lost on the way.
+ *
+ * The profiles under {@code src/main/resources/application-bank-*.yml} switch between the typical setups.
+ */
+@Component
+@Primary
+public class BankSimulator implements BankClient {
+
+    /**
+     * Number of the latest outcomes kept, the older request ids are charged again if they are ever retried
+     */
+    private static final int MAX_REMEMBERED_PAYMENTS = 100_000;
+
+    public enum LatencyProfile {
+        /**
+         * Always {@code latency-millis}
+         */
+        FIXED,
+        /**
+         * Evenly spread between {@code min-millis} and {@code max-millis}
+         */
+        UNIFORM,
+        /**
+         * Log-normal with the median {@code latency-millis} and the shape {@code sigma}, a few calls take many times
+         * longer than the median like the real services do. Bounded by {@code min-millis} and {@code max-millis}.
+         */
+        LOG_NORMAL
+    }
+
+    private ScheduledExecutorService scheduler;
+    private LatencyProfile latencyProfile;
+    private long latencyMillis;
+    private long minLatencyMillis;
+    private long maxLatencyMillis;
+    private double sigma;
+    private double failureRate;
+    private double timeoutRate;
+    private double declineRate;
+    private Map<String, String> resultCodes = Collections.synchronizedMap(new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_REMEMBERED_PAYMENTS;
+        }
+    });
+
+    /**
+     * Constructs a BankSimulator
+     *
+     * @param latencyProfile is the distribution the latencies are drawn from
+     * @param latencyMillis is the latency of the FIXED profile and the median of the LOG_NORMAL profile
+     * @param minLatencyMillis is the lower bound of the UNIFORM and LOG_NORMAL profiles
+     * @param maxLatencyMillis is the upper bound of the UNIFORM and LOG_NORMAL profiles
+     * @param sigma is the shape of the LOG_NORMAL profile, the higher it is the heavier the tail
+     * @param failureRate is the ratio of the calls that fail, between 0 and 1
+     * @param timeoutRate is the ratio of the calls the bank never responds to, between 0 and 1
+     * @param declineRate is the ratio of the payments declined by the bank, between 0 and 1
+     */
+    public BankSimulator(@Value("${bank.simulator.latency.profile}") LatencyProfile latencyProfile,
+                         @Value("${bank.simulator.latency.latency-millis}") long latencyMillis,
+                         @Value("${bank.simulator.latency.min-millis}") long minLatencyMillis,
+                         @Value("${bank.simulator.latency.max-millis}") long maxLatencyMillis,
+                         @Value("${bank.simulator.latency.sigma}") double sigma,
+                         @Value("${bank.simulator.failure-rate}") double failureRate,
+                         @Value("${bank.simulator.timeout-rate}") double timeoutRate,
+                         @Value("${bank.simulator.decline-rate}") double declineRate) {
+        this.latencyProfile = latencyProfile;
+        this.latencyMillis = latencyMillis;
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.sigma = sigma;
+        this.failureRate = failureRate;
+        this.timeoutRate = timeoutRate;
+        this.declineRate = declineRate;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bank-simulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a simulator that always responds successfully after the given latency
+     */
+    public static BankSimulator fixed(long latencyMillis) {
+        return new BankSimulator(LatencyProfile.FIXED, latencyMillis, latencyMillis, latencyMillis, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return another simulated bank with the same settings and the same payments, e.g. to stand in for a second
+     * instance of the bank
+     */
+    public BankSimulator copy() {
+        BankSimulator copy = new BankSimulator(latencyProfile, latencyMillis, minLatencyMillis, maxLatencyMillis, sigma,
+                failureRate, timeoutRate, declineRate);
+        copy.resultCodes = resultCodes;
+        return copy;
+    }
+
+    @Override
+    public CompletableFuture<BankPaymentResponse> pay(BankPaymentRequest request) {
+        return respond(() -> new BankPaymentResponse(resultCode(request)));
+    }
+
+    /**
+     * A batch costs a single round trip no matter how many requests it has, the failures and timeouts
+     * hit the whole batch while every payment in it is declined on its own.
+     */
+    @Override
+    public CompletableFuture<List<BankPaymentResponse>> settle(List<BankPaymentRequest> requests) {
+        return respond(() -> {
+            List<BankPaymentResponse> responses = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                responses.add(new BankPaymentResponse(resultCode(requests.get(i))));
+            }
+            return responses;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Draws a latency from the configured profile
+     *
+     * @return the latency in milliseconds
+     */
+    long sampleLatencyMillis() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (latencyProfile) {
+            case UNIFORM:
+                return minLatencyMillis + (long) (random.nextDouble() * (maxLatencyMillis - minLatencyMillis + 1));
+            case LOG_NORMAL:
+                long latency = Math.round(latencyMillis * Math.exp(sigma * random.nextGaussian()));
+                return Math.max(minLatencyMillis, Math.min(maxLatencyMillis, latency));
+            default:
+                return latencyMillis;
+        }
+    }
+
+    private <T> CompletableFuture<T> respond(Supplier<T> response) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        double fault = ThreadLocalRandom.current().nextDouble();
+        if (fault < timeoutRate) {
+            // processed but left incomplete, the caller gives up on it after its own timeout
+            scheduler.schedule(response::get, sampleLatencyMillis(), TimeUnit.MILLISECONDS);
+            return future;
+        }
+        boolean fails = fault < timeoutRate + failureRate;
+        scheduler.schedule(() -> {
+            if (fails) {
+                future.completeExceptionally(new IllegalStateException("Simulated bank failure"));
+            } else {
+                future.complete(response.get());
+            }
+        }, sampleLatencyMillis(), TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * @return the outcome of the payment decided the first time its request id is processed
+     */
+    private String resultCode(BankPaymentRequest request) {
+        if (request.getRequestId() == null) {
+            return resultCode();
+        }
+        return resultCodes.computeIfAbsent(request.getRequestId(), requestId -> resultCode());
+    }
+
+    private String resultCode() {
+        return ThreadLocalRandom.current().nextDouble() < declineRate
+                ? BankPaymentResponse.RESULT_CODE_DECLINED : BankPaymentResponse.RESULT_CODE_SUCCESS;
+    }
+}
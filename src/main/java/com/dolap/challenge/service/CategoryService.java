@@ -2,20 +2,40 @@ package com.dolap.challenge.service;
 
 import com.dolap.challenge.configuration.Messages;
 import com.dolap.challenge.entity.Category;
+import com.dolap.challenge.entity.CategoryClosure;
 import com.dolap.challenge.exception.CategoryNotFoundException;
+import com.dolap.challenge.exception.InvalidCategoryParentException;
+import com.dolap.challenge.model.CategoryRow;
+import com.dolap.challenge.model.CategoryTree;
+import com.dolap.challenge.repository.CategoryClosureRepository;
 import com.dolap.challenge.repository.CategoryRepository;
-import org.springframework.data.domain.Sort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Service
 @Transactional
 public class CategoryService {
 
+    private Logger logger = LoggerFactory.getLogger(CategoryService.class);
+
     private Messages messages;
     private CategoryRepository categoryRepository;
+    private CategoryClosureRepository categoryClosureRepository;
+    private CategoryTreeCache categoryTreeCache;
 
     /**
      * Constructs a new CategoryService with messages that depends on the locale
@@ -23,72 +43,204 @@ public class CategoryService {
      *
      * @param messages the interface we used to pull the relevant messages depending on the locale set
      * @param categoryRepository the interface that provides the connection with the data layer.
+     * @param categoryClosureRepository the interface used to keep the closure table of the category hierarchy
+     * @param categoryTreeCache the interface used to read the categories without loading them from the database
      */
-    public CategoryService(Messages messages, CategoryRepository categoryRepository) {
+    public CategoryService(Messages messages, CategoryRepository categoryRepository, CategoryClosureRepository categoryClosureRepository,
+                           CategoryTreeCache categoryTreeCache) {
         this.messages = messages;
         this.categoryRepository = categoryRepository;
+        this.categoryClosureRepository = categoryClosureRepository;
+        this.categoryTreeCache = categoryTreeCache;
     }
 
     /**
      * Adds a new category and saves it through the repository.
+     * The category is linked to itself and to every ancestor of its parent in the closure table.
      * Once saved, the updated category is returned back to the caller
      *
      * @param category is the category to be saved
      * @return the category that is saved successfully
      */
     public Category addCategory(Category category){
-        return categoryRepository.save(category);
+        Category savedCategory = categoryRepository.save(category);
+        List<CategoryClosure> closures = new ArrayList<>();
+        closures.add(new CategoryClosure(savedCategory.getId(), savedCategory.getId(), 0));
+        Long parentId = parentIdOf(savedCategory);
+        if (parentId != null) {
+            for (CategoryClosure ancestor : findAncestors(parentId)) {
+                closures.add(new CategoryClosure(ancestor.getAncestorId(), savedCategory.getId(), ancestor.getDepth() + 1));
+            }
+        }
+        categoryClosureRepository.saveAll(closures);
+        categoryTreeCache.changed();
+        return savedCategory;
     }
 
     /**
-     * Returns a list of categories from the repository / data layer.
-     * Sub categories will be fetched eagerly, so if {@code skipChildren} is set to true, do not include sub categories alone in the result list
+     * Returns a list of categories from the snapshot of the category tree, see {@link CategoryTreeCache}.
+     * Sub categories are included in their parents, so if {@code skipChildren} is set to true, do not include sub categories alone in the result list
      *
      * @param skipChildren the parameter that controls whether sub categories (children) will be included alone in the result list or not
      * @return the list of categories in ascending order by "orderNum" field
      */
+    @Transactional(propagation = Propagation.SUPPORTS)
     public List<Category> getAll(boolean skipChildren){
-        Sort sort = Sort.by("orderNum").ascending();
-        return skipChildren ? categoryRepository.findAllSkipChildren(sort) : categoryRepository.findAll(sort);
+        return categoryTreeCache.get().toCategories(skipChildren);
     }
 
     /**
      * Deletes the category from the database when valid id is provided
+     * The sub categories are deleted along with it, so their rows are removed from the closure table as well.
      *
      * @param id s the category id you want to delete
      */
     public void deleteCategory(Long id) {
+        Set<Long> subtreeIds = categoryClosureRepository.findDescendants(id).stream()
+                .map(CategoryClosure::getDescendantId)
+                .collect(Collectors.toSet());
+        if (!subtreeIds.isEmpty()) {
+            categoryClosureRepository.deleteAllByDescendantIds(subtreeIds);
+        }
         categoryRepository.deleteById(id);
+        categoryTreeCache.changed();
     }
 
     /**
-     * Retrives the category from the database with given id when valid id is provided
+     * Retrives the category from the snapshot of the category tree with given id when valid id is provided
      * @throws {@link CategoryNotFoundException} when the id is invalid
      *
      * @param id is the id of the category you want to retrieve
-     * @return the category freshly retrieved with also its subcategories
+     * @return a copy of the category with also its subcategories
      */
+    @Transactional(propagation = Propagation.SUPPORTS)
     public Category findCategory(Long id){
-        return categoryRepository.findById(id).orElseThrow(() -> new CategoryNotFoundException(messages.get(CategoryNotFoundException.CATEGORY_NOT_FOUND_EXCEPTION_MESSAGE_KEY)));
+        return findCategory(id, null);
+    }
+
+    /**
+     * Retrives the category from the snapshot of the category tree with given id, together with its subcategories
+     * down to the given depth. The subcategories at the depth come without their own subcategory list.
+     * @throws {@link CategoryNotFoundException} when the id is invalid
+     *
+     * @param id is the id of the category you want to retrieve
+     * @param depth is the number of the levels of subcategories to include, 0 for none and null for all
+     * @return a copy of the category with also its subcategories down to the depth
+     */
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public Category findCategory(Long id, Integer depth){
+        Category category = categoryTreeCache.get().toCategory(id, depth != null ? Math.max(depth, 0) : Integer.MAX_VALUE);
+        if (category == null) {
+            throw new CategoryNotFoundException(messages.get(CategoryNotFoundException.CATEGORY_NOT_FOUND_EXCEPTION_MESSAGE_KEY));
+        }
+        return category;
+    }
+
+    /**
+     * Checks that the category exists in the snapshot of the category tree
+     * @throws {@link CategoryNotFoundException} when the id is invalid
+     *
+     * @param id is the id of the category
+     */
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public void checkCategoryExists(Long id){
+        if (!categoryTreeCache.get().contains(id)) {
+            throw new CategoryNotFoundException(messages.get(CategoryNotFoundException.CATEGORY_NOT_FOUND_EXCEPTION_MESSAGE_KEY));
+        }
     }
 
     /**
      * Given the id of the category, it is updated with the new values provided
      * In case the provided id is not valid, @{see CategoryNotFoundException} is thrown
+     * In case the category is moved under itself or one of its sub categories, @{see InvalidCategoryParentException} is thrown
      *
      * @param id is the id of the category you want to update
      * @param updatedCategory is the values you want to update to
-     * @return updated category when successful
+     * @return updated category when successful, with the tree below it assembled from a single query
      */
     public Category updateCategory(Long id, Category updatedCategory) {
-        return categoryRepository.findById(id)
+        categoryRepository.findById(id)
                 .map(category -> {
+                    Long parentId = parentIdOf(updatedCategory);
+                    if (!Objects.equals(parentIdOf(category), parentId)) {
+                        moveSubtree(id, parentId);
+                    }
                     category.setName(updatedCategory.getName());
                     category.setDescription(updatedCategory.getDescription());
                     category.setOrderNum(updatedCategory.getOrderNum());
                     category.setParentCategory(updatedCategory.getParentCategory());
+                    categoryTreeCache.changed();
                     return category;
                 })
                 .orElseThrow(() -> new CategoryNotFoundException(messages.get(CategoryNotFoundException.CATEGORY_NOT_FOUND_EXCEPTION_MESSAGE_KEY)));
+        // the query flushes the changes first, so the tree is read as it is after the update
+        return new CategoryTree(categoryRepository.findSubtreeRows(id)).toCategory(id);
+    }
+
+    /**
+     * Fills the closure table from the parents of the categories when it's out of step with them,
+     * e.g. the first time the app runs against a database whose categories were added before the closure table existed
+     */
+    @EventListener(ContextRefreshedEvent.class)
+    public void buildClosure() {
+        if (categoryClosureRepository.countCategories() == categoryRepository.count()) {
+            return;
+        }
+        Map<Long, Long> parents = new HashMap<>();
+        for (CategoryRow categoryRow : categoryRepository.findAllRows()) {
+            parents.put(categoryRow.getId(), categoryRow.getParentId());
+        }
+        List<CategoryClosure> closures = new ArrayList<>();
+        for (Long categoryId : parents.keySet()) {
+            int depth = 0;
+            for (Long ancestorId = categoryId; ancestorId != null && depth <= parents.size(); ancestorId = parents.get(ancestorId)) {
+                closures.add(new CategoryClosure(ancestorId, categoryId, depth++));
+            }
+        }
+        categoryClosureRepository.deleteAllInBatch();
+        categoryClosureRepository.saveAll(closures);
+        logger.info("Built the closure table of {} categories", parents.size());
+    }
+
+    /**
+     * Moves the category and the categories below it under the new parent in the closure table:
+     * unlinks them from the ancestors of the old parent and links them to the ancestors of the new one.
+     * The links inside the subtree stay as they are.
+     *
+     * @param id is the id of the category moved
+     * @param parentId is the id of the new parent, null to make it a top level category
+     */
+    private void moveSubtree(Long id, Long parentId) {
+        List<CategoryClosure> subtree = categoryClosureRepository.findDescendants(id);
+        Set<Long> subtreeIds = subtree.stream().map(CategoryClosure::getDescendantId).collect(Collectors.toSet());
+        List<CategoryClosure> ancestors = Collections.emptyList();
+        if (parentId != null) {
+            if (subtreeIds.contains(parentId)) {
+                throw new InvalidCategoryParentException(messages.get(InvalidCategoryParentException.INVALID_CATEGORY_PARENT_EXCEPTION_MESSAGE_KEY));
+            }
+            ancestors = findAncestors(parentId);
+        }
+        categoryClosureRepository.detach(subtreeIds);
+
+        List<CategoryClosure> closures = new ArrayList<>();
+        for (CategoryClosure ancestor : ancestors) {
+            for (CategoryClosure descendant : subtree) {
+                closures.add(new CategoryClosure(ancestor.getAncestorId(), descendant.getDescendantId(),
+                        ancestor.getDepth() + descendant.getDepth() + 1));
+            }
+        }
+        categoryClosureRepository.saveAll(closures);
+    }
+
+    private List<CategoryClosure> findAncestors(Long id) {
+        List<CategoryClosure> ancestors = categoryClosureRepository.findAncestors(id);
+        if (ancestors.isEmpty()) {
+            throw new CategoryNotFoundException(messages.get(CategoryNotFoundException.CATEGORY_NOT_FOUND_EXCEPTION_MESSAGE_KEY));
+        }
+        return ancestors;
+    }
+
+    private Long parentIdOf(Category category) {
+        return category.getParentCategory() != null ? category.getParentCategory().getId() : null;
     }
 }
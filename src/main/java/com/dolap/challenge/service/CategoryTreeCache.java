@@ -0,0 +1,72 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.model.CategoryTree;
+import com.dolap.challenge.repository.CategoryRepository;
+import com.dolap.challenge.util.TransactionCallbacks;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the category tree from an immutable {@link CategoryTree} snapshot instead of loading the categories
+ * and their children from the database on every read.
+ *
+ * The changes to the categories are numbered once their transactions complete. A snapshot built before the last change
+ * is dropped and the next read builds a new one with a single query and swaps it in, the readers holding the old one
+ * are not affected.
+ * The number is read before the query, so a snapshot read while a change commits is built again on the next read.
+ * The categories can also change where this instance doesn't see it, e.g. on the other instances of the app,
+ * so a snapshot only lasts for {@code refresh-millis}.
+ */
+@Service
+public class CategoryTreeCache {
+
+    private final AtomicLong generation = new AtomicLong();
+    private volatile CategoryTree tree;
+    private CategoryRepository categoryRepository;
+    private long refreshMillis;
+
+    /**
+     * Constructs a CategoryTreeCache
+     *
+     * @param categoryRepository is the repository the categories are read from
+     * @param refreshMillis is how long a snapshot is used without reading the categories again
+     */
+    public CategoryTreeCache(CategoryRepository categoryRepository, @Value("${category.tree.refresh-millis}") long refreshMillis) {
+        this.categoryRepository = categoryRepository;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * @return the snapshot of the category tree, built again when the categories are changed since it's built
+     */
+    public CategoryTree get() {
+        CategoryTree current = tree;
+        if (isFresh(current)) {
+            return current;
+        }
+        synchronized (this) {
+            current = tree;
+            if (!isFresh(current)) {
+                long builtGeneration = generation.get();
+                current = new CategoryTree(categoryRepository.findAllRows(), builtGeneration);
+                tree = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Drops the snapshot once the current transaction completes, call it whenever the categories are changed.
+     * It's dropped on a rollback too, in case it's built inside the transaction from the changes rolled back.
+     */
+    public void changed() {
+        TransactionCallbacks.afterCompletion(generation::incrementAndGet);
+    }
+
+    private boolean isFresh(CategoryTree current) {
+        return current != null && current.getGeneration() == generation.get()
+                && System.currentTimeMillis() - current.getBuiltAt() < refreshMillis;
+    }
+}
@@ -0,0 +1,42 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.repository.ProductRepository;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Checks and decreases the stocks with a single conditional update statement,
+ * so the product record is locked only during that statement.
+ */
+@Component
+public class ConditionalUpdateStockReservationStrategy implements StockReservationStrategy {
+
+    public static final String NAME = "conditional";
+
+    private ProductRepository productRepository;
+
+    public ConditionalUpdateStockReservationStrategy(ProductRepository productRepository) {
+        this.productRepository = productRepository;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean reserve(Long productId, Integer quantity) {
+        return productRepository.decreaseStock(productId, quantity) > 0;
+    }
+
+    @Override
+    public void release(Long productId, Integer quantity) {
+        productRepository.increaseStock(productId, quantity);
+    }
+
+    @Override
+    public void releaseAll(Map<Long, Integer> quantities) {
+        productRepository.increaseStocks(quantities);
+    }
+}
@@ -0,0 +1,427 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.DatabaseConfiguration;
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.entity.FlashSaleGrant;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.repository.FlashSaleGrantRepository;
+import com.dolap.challenge.repository.ProductRepository;
+import com.dolap.challenge.util.TransactionCallbacks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reserves the stocks of the products on flash sale through a queue per product drained by a single worker,
+ * so thousands of buyers of the same product don't contend for its row lock. The worker takes the waiting
+ * reservations in batches, grants them in arrival order as long as the stocks last and takes the granted
+ * quantities from the product with a single update. Once the product is sold out the reservations are rejected
+ * right away without touching the database, the product is checked again every {@code sold-out-recheck-millis}
+ * in case some stocks are given back.
+ *
+ * The workers take the stocks in their own transactions on a pool of their own. Every reservation granted is written
+ * to the same transaction as a {@link FlashSaleGrant}, which the buyer claims by deleting it in the transaction that
+ * records its reservation. The buyers wait for their grants through {@link #acquire(Long, Integer)} before they open
+ * that transaction, so no connection of the main pool is held while they're queued. The stocks of a grant are given
+ * back when the buyer gives up on it, and a grant nobody claimed within {@code grant-ttl-millis}, e.g. because
+ * the app crashed before the buyer got it, is given back by the sweeper.
+ */
+@Service
+public class FlashSaleService {
+
+    private Logger logger = LoggerFactory.getLogger(FlashSaleService.class);
+
+    private ProductRepository productRepository;
+    private FlashSaleGrantRepository flashSaleGrantRepository;
+    private Messages messages;
+    private SoldOutCache soldOutCache;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+    private ExecutorService workers;
+    private int batchSize;
+    private int maxPending;
+    private long waitTimeoutMillis;
+    private long soldOutRecheckMillis;
+    private long grantTtlMillis;
+
+    private final Map<Long, ProductQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a FlashSaleService
+     *
+     * @param productRepository the interface used to give the stocks back to the products
+     * @param flashSaleGrantRepository the interface used to delete the grants once the buyers record their reservations
+     * @param messages the interface we used to pull the relevant messages depending on the locale set
+     * @param soldOutCache the interface told about the products sold out, so their payments are rejected early
+     * @param dataSource is the pool the workers take the stocks through
+     * @param workerThreads is the number of threads draining the queues, a product is drained by one of them at a time
+     * @param batchSize is the maximum number of reservations taken from the product with a single update
+     * @param maxPending is the maximum number of reservations waiting in the queue of a product
+     * @param waitTimeoutMillis is how long a buyer waits for the queue before giving up
+     * @param soldOutRecheckMillis is how long the reservations of a sold out product are rejected without checking it
+     * @param grantTtlMillis is how long a grant is kept for its buyer before its stocks are given back
+     */
+    public FlashSaleService(ProductRepository productRepository, FlashSaleGrantRepository flashSaleGrantRepository, Messages messages, SoldOutCache soldOutCache,
+                            @Qualifier(DatabaseConfiguration.FLASH_SALE_DATA_SOURCE_BEAN_NAME) DataSource dataSource,
+                            @Value("${stock.reservation.flash-sale.worker-threads}") int workerThreads,
+                            @Value("${stock.reservation.flash-sale.batch-size}") int batchSize,
+                            @Value("${stock.reservation.flash-sale.max-pending}") int maxPending,
+                            @Value("${stock.reservation.flash-sale.wait-timeout-millis}") long waitTimeoutMillis,
+                            @Value("${stock.reservation.flash-sale.sold-out-recheck-millis}") long soldOutRecheckMillis,
+                            @Value("${stock.reservation.flash-sale.grant-ttl-millis}") long grantTtlMillis) {
+        this.productRepository = productRepository;
+        this.flashSaleGrantRepository = flashSaleGrantRepository;
+        this.messages = messages;
+        this.soldOutCache = soldOutCache;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.soldOutRecheckMillis = soldOutRecheckMillis;
+        this.grantTtlMillis = grantTtlMillis;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "flash-sale-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the reservation for the worker of the product and waits for its turn.
+     * Meant to be called before the transaction that records the reservation opens, so no connection is held while
+     * waiting. The grant is claimed in that transaction through {@link #claim(FlashSaleGrant)}, or given back through
+     * {@link #giveBack(FlashSaleGrant)} when the buyer gives up on it.
+     *
+     * @param productId is the id of the product you want to reserve some stocks
+     * @param quantity is the amount you want to reserve
+     * @return the grant of the stocks taken, null when there are not enough stocks or there's no such product
+     * @throws ServiceBusyException when too many reservations are waiting for the product or the wait times out
+     */
+    public FlashSaleGrant acquire(Long productId, Integer quantity) throws ServiceBusyException {
+        ProductQueue queue = queues.computeIfAbsent(productId, ProductQueue::new);
+        if (queue.isSoldOut()) {
+            return null;
+        }
+        PendingReservation pendingReservation = new PendingReservation(quantity);
+        if (!queue.pending.offer(pendingReservation)) {
+            logger.warn("Too many reservations waiting for product {}, rejecting the reservation", productId);
+            throw busy();
+        }
+        queue.schedule();
+
+        try {
+            return pendingReservation.result.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException exception) {
+            if (exception instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            // the worker may still grant it, the stocks are given back then
+            pendingReservation.result.thenAccept(grant -> {
+                if (grant != null) {
+                    giveBack(grant);
+                }
+            });
+            throw busy();
+        } catch (ExecutionException exception) {
+            throw exception.getCause() instanceof RuntimeException
+                    ? (RuntimeException) exception.getCause() : new IllegalStateException(exception.getCause());
+        }
+    }
+
+    /**
+     * Claims the grant within the current transaction, so the stocks stay taken only if it commits.
+     * The grant is back once the transaction rolls back, it's up to the caller to give it back then or claim it again.
+     *
+     * @param grant is the grant acquired for the reservation
+     * @throws ServiceBusyException when the grant is already given back, e.g. by the sweeper
+     */
+    public void claim(FlashSaleGrant grant) throws ServiceBusyException {
+        if (flashSaleGrantRepository.deleteGrant(grant.getId()) == 0) {
+            logger.warn("Grant {} of product {} is already given back, rejecting the reservation", grant.getId(), grant.getProductId());
+            throw busy();
+        }
+    }
+
+    /**
+     * Acquires and claims a grant within the current transaction, the stocks are given back if it rolls back.
+     * The connection of the current transaction is held while waiting for the queue, so the payments acquire their
+     * grants up front instead, see {@link #acquire(Long, Integer)}.
+     *
+     * @param productId is the id of the product you want to reserve some stocks
+     * @param quantity is the amount you want to reserve
+     * @return true when the stocks are reserved, false when there are not enough stocks or there's no such product
+     * @throws ServiceBusyException when too many reservations are waiting for the product, the wait times out
+     * or the grant is already given back by the sweeper
+     */
+    public boolean reserve(Long productId, Integer quantity) throws ServiceBusyException {
+        FlashSaleGrant grant = acquire(productId, quantity);
+        if (grant == null) {
+            return false;
+        }
+        claim(grant);
+        TransactionCallbacks.afterRollback(() -> giveBack(grant));
+        return true;
+    }
+
+    /**
+     * Gives the stocks back to the product within the current transaction,
+     * the product is open for the reservations again once it commits
+     *
+     * @param productId is the id of the product you want to release the reserved stocks
+     * @param quantity is the amount you want to release
+     */
+    public void release(Long productId, Integer quantity) {
+        productRepository.increaseStock(productId, quantity);
+        reopen(productId);
+    }
+
+    /**
+     * Opens the product for the reservations again once the current transaction commits,
+     * e.g. when the merchant updates its stocks
+     *
+     * @param productId is the id of the product
+     */
+    public void reopen(Long productId) {
+        TransactionCallbacks.afterCommit(() -> {
+            ProductQueue queue = queues.get(productId);
+            if (queue != null) {
+                queue.soldOutUntil = 0;
+            }
+        });
+    }
+
+    /**
+     * Drops the queue of the product once the current transaction commits, e.g. when the product is deleted
+     *
+     * @param productId is the id of the product
+     */
+    public void evict(Long productId) {
+        TransactionCallbacks.afterCommit(() -> {
+            ProductQueue queue = queues.remove(productId);
+            if (queue != null) {
+                queue.rejectAll();
+            }
+        });
+    }
+
+    /**
+     * Gives back the stocks of the grants left behind for longer than {@code grant-ttl-millis},
+     * e.g. because the app crashed after a worker took the stocks but before the buyer recorded its reservation
+     *
+     * @return the number of grants given back
+     */
+    @Scheduled(fixedDelayString = "${stock.reservation.sweep-interval-millis}")
+    public int reclaimGrants() {
+        List<Map<String, Object>> grants = jdbcTemplate.queryForList(
+                "SELECT id, product_id, quantity FROM flash_sale_grant WHERE created_at < ?",
+                Timestamp.valueOf(LocalDateTime.now().minusNanos(grantTtlMillis * 1_000_000)));
+        int reclaimed = 0;
+        for (Map<String, Object> row : grants) {
+            FlashSaleGrant grant = new FlashSaleGrant();
+            grant.setId((String) row.get("id"));
+            grant.setProductId(((Number) row.get("product_id")).longValue());
+            grant.setQuantity(((Number) row.get("quantity")).intValue());
+            if (giveBack(grant)) {
+                reclaimed++;
+            }
+        }
+        if (reclaimed > 0) {
+            logger.warn("{} flash sale grants left behind are given back to their products", reclaimed);
+        }
+        return reclaimed;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Takes a batch from the queue and reserves it, then schedules itself again if there are more waiting
+     */
+    private void drain(ProductQueue queue) {
+        List<PendingReservation> batch = new ArrayList<>(batchSize);
+        try {
+            if (queue.isSoldOut()) {
+                queue.rejectAll();
+            } else {
+                queue.pending.drainTo(batch, batchSize);
+                if (!batch.isEmpty()) {
+                    reserveBatch(queue, batch);
+                }
+            }
+        } catch (RuntimeException exception) {
+            logger.error("Reservations of product {} could not be made", queue.productId, exception);
+            batch.forEach(pendingReservation -> pendingReservation.result.completeExceptionally(exception));
+        } finally {
+            queue.running.set(false);
+            if (!queue.pending.isEmpty()) {
+                queue.schedule();
+            }
+        }
+    }
+
+    /**
+     * Grants the reservations of the batch in arrival order while the stocks last and takes them with a single update.
+     * The update takes the stocks only if they are still there, it's retried with a fresh read if the product
+     * changed in the meantime, e.g. the merchant updated its stocks. The grants are written in the same transaction,
+     * so the stocks taken are never lost even if the buyers never get them.
+     */
+    private void reserveBatch(ProductQueue queue, List<PendingReservation> batch) {
+        boolean[] granted = new boolean[batch.size()];
+        long restockSnapshot = soldOutCache.snapshot();
+        int remainingStockCount = transactionTemplate.execute(status -> {
+            while (true) {
+                List<Integer> stocks = jdbcTemplate.queryForList(
+                        "SELECT remaining_stock_count FROM product WHERE id = ?", Integer.class, queue.productId);
+                if (stocks.isEmpty()) {
+                    return 0;
+                }
+                int stock = stocks.get(0);
+                int total = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    granted[i] = batch.get(i).quantity <= stock - total;
+                    total += granted[i] ? batch.get(i).quantity : 0;
+                }
+                if (total == 0) {
+                    return stock;
+                }
+                if (jdbcTemplate.update("UPDATE product SET remaining_stock_count = remaining_stock_count - ?, version = version + 1 " +
+                        "WHERE id = ? AND remaining_stock_count >= ?", total, queue.productId, total) > 0) {
+                    writeGrants(queue.productId, batch, granted);
+                    return stock - total;
+                }
+            }
+        });
+
+        if (remainingStockCount == 0) {
+            queue.soldOutUntil = System.currentTimeMillis() + soldOutRecheckMillis;
+            soldOutCache.markSoldOut(queue.productId, restockSnapshot);
+            logger.info("Product {} is sold out", queue.productId);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(granted[i] ? batch.get(i).grant : null);
+        }
+    }
+
+    private void writeGrants(Long productId, List<PendingReservation> batch, boolean[] granted) {
+        LocalDateTime now = LocalDateTime.now();
+        List<Object[]> grants = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (granted[i]) {
+                FlashSaleGrant grant = new FlashSaleGrant();
+                grant.setId(UUID.randomUUID().toString());
+                grant.setProductId(productId);
+                grant.setQuantity(batch.get(i).quantity);
+                grant.setCreatedAt(now);
+                batch.get(i).grant = grant;
+                grants.add(new Object[]{grant.getId(), productId, grant.getQuantity(), Timestamp.valueOf(now)});
+            }
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO flash_sale_grant (id, product_id, quantity, created_at) VALUES (?, ?, ?, ?)", grants);
+    }
+
+    /**
+     * Gives the stocks of a grant nobody is waiting for anymore back in a transaction of its own.
+     * The grant is deleted in the same transaction, so its stocks are given back once
+     * whether the buyer, its rollback or the sweeper gets to it, and a grant already claimed is left alone.
+     *
+     * @param grant is the grant acquired for the reservation
+     * @return whether the stocks are given back, false when the grant is already claimed or given back
+     */
+    public boolean giveBack(FlashSaleGrant grant) {
+        boolean givenBack = transactionTemplate.execute(status -> {
+            if (jdbcTemplate.update("DELETE FROM flash_sale_grant WHERE id = ?", grant.getId()) == 0) {
+                return false;
+            }
+            jdbcTemplate.update("UPDATE product SET remaining_stock_count = remaining_stock_count + ?, version = version + 1 WHERE id = ?",
+                    grant.getQuantity(), grant.getProductId());
+            return true;
+        });
+        if (givenBack) {
+            reopen(grant.getProductId());
+            soldOutCache.restocked(grant.getProductId());
+        }
+        return givenBack;
+    }
+
+    private ServiceBusyException busy() {
+        return new ServiceBusyException(messages.get(ServiceBusyException.SERVICE_BUSY_EXCEPTION_MESSAGE_KEY));
+    }
+
+    /**
+     * Reservations waiting for the worker of a product
+     */
+    private class ProductQueue {
+        private final Long productId;
+        private final BlockingQueue<PendingReservation> pending = new LinkedBlockingQueue<>(maxPending);
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile long soldOutUntil;
+
+        private ProductQueue(Long productId) {
+            this.productId = productId;
+        }
+
+        private boolean isSoldOut() {
+            return System.currentTimeMillis() < soldOutUntil;
+        }
+
+        /**
+         * Hands the queue to a worker unless it's already being drained, so a product has a single writer
+         */
+        private void schedule() {
+            if (running.compareAndSet(false, true)) {
+                workers.execute(() -> drain(this));
+            }
+        }
+
+        private void rejectAll() {
+            PendingReservation pendingReservation;
+            while ((pendingReservation = pending.poll()) != null) {
+                pendingReservation.result.complete(null);
+            }
+        }
+    }
+
+    private static class PendingReservation {
+        private final int quantity;
+        private final CompletableFuture<FlashSaleGrant> result = new CompletableFuture<>();
+
+        /**
+         * Grant written for the reservation, set before the result is completed
+         */
+        private volatile FlashSaleGrant grant;
+
+        private PendingReservation(int quantity) {
+            this.quantity = quantity;
+        }
+    }
+}
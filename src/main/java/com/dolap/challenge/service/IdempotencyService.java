@@ -0,0 +1,240 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.entity.IdempotencyKey;
+import com.dolap.challenge.entity.Payment;
+import com.dolap.challenge.entity.PaymentSaga;
+import com.dolap.challenge.exception.IdempotencyKeyConflictException;
+import com.dolap.challenge.repository.IdempotencyKeyRepository;
+import com.dolap.challenge.repository.PaymentRepository;
+import com.dolap.challenge.repository.PaymentSagaRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Makes the payment requests idempotent with the Idempotency-Key header the clients send.
+ * The first request with a key makes the payment, the retries with the same key get the same payment:
+ * while it's in progress they wait for the original one, once it's completed the stored payment is returned.
+ *
+ * The recent keys are kept in a bounded LRU cache, so the retries are answered without touching the database.
+ * Every key is also claimed in a table with a unique index, so the keys evicted from the cache and the keys
+ * used on the other instances of the app are still never charged twice.
+ * A payment that fails after the bank is called is left to the recovery of {@link PaymentSagaService}, its key stays
+ * claimed and is pointed to the payment log once the recovery completes it.
+ */
+@Service
+public class IdempotencyService {
+
+    private Logger logger = LoggerFactory.getLogger(IdempotencyService.class);
+
+    private IdempotencyKeyRepository idempotencyKeyRepository;
+    private PaymentRepository paymentRepository;
+    private PaymentSagaRepository paymentSagaRepository;
+    private Messages messages;
+    private long ttlMillis;
+    private final Map<String, CachedPayment> cache;
+
+    /**
+     * Constructs an IdempotencyService
+     *
+     * @param idempotencyKeyRepository the interface used to claim the keys
+     * @param paymentRepository the interface used to load the payments of the keys evicted from the cache
+     * @param paymentSagaRepository the interface used to tell whether a failed payment is still being charged
+     * @param messages the interface we used to pull the relevant messages depending on the locale set
+     * @param cacheSize is the maximum number of keys kept in memory, the least recently used ones are evicted first
+     * @param ttlMillis is how long a key is remembered, the same key makes a new payment after that
+     */
+    public IdempotencyService(IdempotencyKeyRepository idempotencyKeyRepository, PaymentRepository paymentRepository,
+                              PaymentSagaRepository paymentSagaRepository, Messages messages,
+                              @Value("${payment.idempotency.cache-size}") int cacheSize,
+                              @Value("${payment.idempotency.ttl-millis}") long ttlMillis) {
+        this.idempotencyKeyRepository = idempotencyKeyRepository;
+        this.paymentRepository = paymentRepository;
+        this.paymentSagaRepository = paymentSagaRepository;
+        this.messages = messages;
+        this.ttlMillis = ttlMillis;
+        this.cache = new LinkedHashMap<String, CachedPayment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPayment> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Makes the payment once per key
+     *
+     * @param idempotencyKey is the key sent by the client, the payment is made every time when it's null
+     * @param fingerprint identifies the request, e.g. the endpoint and the body, a key can't be reused for another request
+     * @param payment makes the payment, called only by the first request with the key
+     * @return a future that completes with the payment made for the key
+     * @throws IdempotencyKeyConflictException when the key is used for another request
+     * or its payment is in progress on another instance of the app
+     */
+    public CompletableFuture<Payment> execute(String idempotencyKey, String fingerprint,
+                                              Supplier<CompletableFuture<Payment>> payment) throws IdempotencyKeyConflictException {
+        if (idempotencyKey == null) {
+            return payment.get();
+        }
+
+        CompletableFuture<Payment> result = new CompletableFuture<>();
+        synchronized (cache) {
+            CachedPayment cachedPayment = cache.get(idempotencyKey);
+            if (cachedPayment != null && !cachedPayment.isExpired()) {
+                checkFingerprint(cachedPayment.fingerprint, fingerprint);
+                return cachedPayment.payment;
+            }
+            cache.put(idempotencyKey, new CachedPayment(fingerprint, result));
+        }
+
+        try {
+            Payment storedPayment = claim(idempotencyKey, fingerprint);
+            if (storedPayment != null) {
+                result.complete(storedPayment);
+                return result;
+            }
+        } catch (RuntimeException exception) {
+            forget(idempotencyKey, result);
+            throw exception;
+        }
+
+        CompletableFuture<Payment> future;
+        try {
+            future = payment.get();
+        } catch (RuntimeException exception) {
+            // a synchronous payment fails here even after the bank is called, e.g. when the bank times out
+            try {
+                unclaimUnlessCharging(idempotencyKey, result);
+            } catch (RuntimeException unclaimException) {
+                logger.error("Idempotency key {} could not be updated", idempotencyKey, unclaimException);
+                forget(idempotencyKey, result);
+            } finally {
+                result.completeExceptionally(exception);
+            }
+            throw exception;
+        }
+        future.whenComplete((completedPayment, throwable) -> {
+            // the result is completed whatever happens to the key, so no caller waits for it forever
+            try {
+                if (throwable != null) {
+                    unclaimUnlessCharging(idempotencyKey, result);
+                } else {
+                    idempotencyKeyRepository.updatePaymentId(idempotencyKey, completedPayment.getId());
+                }
+            } catch (RuntimeException exception) {
+                logger.error("Idempotency key {} could not be updated", idempotencyKey, exception);
+                forget(idempotencyKey, result);
+            } finally {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(completedPayment);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Forgets the keys that are older than the ttl
+     */
+    @Scheduled(fixedDelayString = "${payment.idempotency.sweep-interval-millis}")
+    public void expireKeys() {
+        int deleted = idempotencyKeyRepository.deleteCreatedBefore(LocalDateTime.now().minusNanos(ttlMillis * 1_000_000));
+        if (deleted > 0) {
+            logger.info("{} idempotency keys expired", deleted);
+        }
+    }
+
+    /**
+     * Claims the key in the database
+     *
+     * @return the payment made for the key before, null when the key is claimed now
+     */
+    private Payment claim(String idempotencyKey, String fingerprint) {
+        IdempotencyKey storedKey = idempotencyKeyRepository.findByIdempotencyKey(idempotencyKey);
+        if (storedKey == null) {
+            IdempotencyKey newKey = new IdempotencyKey();
+            newKey.setIdempotencyKey(idempotencyKey);
+            newKey.setFingerprint(fingerprint);
+            newKey.setCreatedAt(LocalDateTime.now());
+            try {
+                idempotencyKeyRepository.saveAndFlush(newKey);
+                return null;
+            } catch (DataIntegrityViolationException exception) {
+                // claimed by another instance in the meantime
+                throw conflict();
+            }
+        }
+        checkFingerprint(storedKey.getFingerprint(), fingerprint);
+        if (storedKey.getPaymentId() == null) {
+            throw conflict();
+        }
+        return paymentRepository.findById(storedKey.getPaymentId()).orElseThrow(this::conflict);
+    }
+
+    /**
+     * Unclaims the key of a failed payment so the client can retry it, unless the payment may have been charged
+     * and is left to the recovery. Then the key stays claimed and only the failure is forgotten, so the retries see
+     * the payment in progress until the recovery points the key to the payment log.
+     */
+    private void unclaimUnlessCharging(String idempotencyKey, CompletableFuture<Payment> result) {
+        if (paymentSagaRepository.existsByIdempotencyKeyAndState(idempotencyKey, PaymentSaga.State.CHARGING)) {
+            forget(idempotencyKey, result);
+            return;
+        }
+        unclaim(idempotencyKey, result);
+    }
+
+    private void unclaim(String idempotencyKey, CompletableFuture<Payment> result) {
+        idempotencyKeyRepository.deleteUnfinished(idempotencyKey);
+        forget(idempotencyKey, result);
+    }
+
+    private void forget(String idempotencyKey, CompletableFuture<Payment> result) {
+        synchronized (cache) {
+            CachedPayment cachedPayment = cache.get(idempotencyKey);
+            if (cachedPayment != null && cachedPayment.payment == result) {
+                cache.remove(idempotencyKey);
+            }
+        }
+    }
+
+    private void checkFingerprint(String expected, String actual) {
+        if (!expected.equals(actual)) {
+            throw conflict();
+        }
+    }
+
+    private IdempotencyKeyConflictException conflict() {
+        return new IdempotencyKeyConflictException(messages.get(IdempotencyKeyConflictException.IDEMPOTENCY_KEY_CONFLICT_EXCEPTION_MESSAGE_KEY));
+    }
+
+    /**
+     * Payment of a key kept in the cache, either in progress or completed
+     */
+    private class CachedPayment {
+        private final String fingerprint;
+        private final CompletableFuture<Payment> payment;
+        private final long expiresAt = System.currentTimeMillis() + ttlMillis;
+
+        private CachedPayment(String fingerprint, CompletableFuture<Payment> payment) {
+            this.fingerprint = fingerprint;
+            this.payment = payment;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.StockJournalCheckpoint;
+import com.dolap.challenge.model.ProductStock;
+import com.dolap.challenge.repository.ProductRepository;
+import com.dolap.challenge.repository.StockJournalCheckpointRepository;
+import com.dolap.challenge.util.StockJournal;
+import com.dolap.challenge.util.TransactionCallbacks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the stocks of the products in memory as compare-and-set counters, so the reservations are decided
+ * without touching the product records at all. Every change is appended to a {@link StockJournal} before it's
+ * acknowledged and the changes are written to the database in periodic batches. On startup the changes in the
+ * journal that are not written yet are applied to the database before the counters are seeded from it.
+ *
+ * The counters are local to the app, so this strategy is meant for a single instance serving the stocks.
+ * The stocks read from the product records lag behind by at most one flush interval.
+ */
+@Component
+public class InMemoryStockReservationStrategy implements StockReservationStrategy {
+
+    public static final String NAME = "in-memory";
+
+    private Logger logger = LoggerFactory.getLogger(InMemoryStockReservationStrategy.class);
+
+    private ProductRepository productRepository;
+    private StockJournalCheckpointRepository checkpointRepository;
+    private TransactionTemplate transactionTemplate;
+    private StockJournal journal;
+    private boolean active;
+    private volatile boolean started;
+
+    private final Map<Long, AtomicInteger> counters = new ConcurrentHashMap<>();
+    private final Object journalLock = new Object();
+    private final Map<Long, Integer> pendingDeltas = new HashMap<>();
+    private final List<Long> pendingSegments = new ArrayList<>();
+
+    /**
+     * Constructs an InMemoryStockReservationStrategy
+     *
+     * @param productRepository the interface used to seed the counters and write the changes back
+     * @param checkpointRepository the interface used to record the last journal segment written to the database
+     * @param transactionManager used to write the changes to the database in a single transaction
+     * @param strategyName the name of the configured strategy, the counters are kept only if it's this one
+     * @param journalDirectory is where the journal segments are kept
+     * @param fsync whether every change is forced to the disk or only handed over to the operating system
+     */
+    public InMemoryStockReservationStrategy(ProductRepository productRepository,
+                                            StockJournalCheckpointRepository checkpointRepository,
+                                            PlatformTransactionManager transactionManager,
+                                            @Value("${stock.reservation.strategy}") String strategyName,
+                                            @Value("${stock.reservation.in-memory.journal-directory}") String journalDirectory,
+                                            @Value("${stock.reservation.in-memory.fsync}") boolean fsync) {
+        this.productRepository = productRepository;
+        this.checkpointRepository = checkpointRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.active = NAME.equals(strategyName);
+        this.journal = new StockJournal(Paths.get(journalDirectory), fsync);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Applies the changes left in the journal to the database and seeds the counters from it
+     */
+    @EventListener(ContextRefreshedEvent.class)
+    public synchronized void start() {
+        if (!active || started) {
+            return;
+        }
+        long lastSegment = checkpointRepository.findById(StockJournalCheckpoint.ID)
+                .map(StockJournalCheckpoint::getLastSegment)
+                .orElse(0L);
+        List<Long> segments = journal.segmentsAfter(lastSegment);
+        if (!segments.isEmpty()) {
+            Map<Long, Integer> deltas = journal.read(segments);
+            writeToDatabase(deltas, segments.get(segments.size() - 1));
+            logger.info("Recovered the stock changes of {} products from the journal", deltas.size());
+            lastSegment = segments.get(segments.size() - 1);
+        }
+        journal.delete(journal.segments());
+        journal.open(lastSegment + 1);
+
+        for (ProductStock stock : productRepository.findAllStocks()) {
+            counters.put(stock.getId(), new AtomicInteger(stock.getRemainingStockCount()));
+        }
+        started = true;
+        logger.info("Seeded the stocks of {} products in memory", counters.size());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (started) {
+            flush();
+            journal.close();
+        }
+    }
+
+    @Override
+    public boolean reserve(Long productId, Integer quantity) {
+        AtomicInteger counter = counter(productId);
+        if (counter == null) {
+            return false;
+        }
+        int current;
+        do {
+            current = counter.get();
+            if (current < quantity) {
+                return false;
+            }
+        } while (!counter.compareAndSet(current, current - quantity));
+
+        record(productId, counter, -quantity);
+        return true;
+    }
+
+    @Override
+    public void release(Long productId, Integer quantity) {
+        AtomicInteger counter = counter(productId);
+        if (counter != null) {
+            counter.addAndGet(quantity);
+            record(productId, counter, quantity);
+        }
+    }
+
+    /**
+     * The new stocks are applied to the counter as a change once the merchant's transaction commits,
+     * so the changes that are not written to the database yet are not overwritten.
+     */
+    @Override
+    public boolean overwrite(Long productId, Integer remainingStockCount) {
+        if (!active) {
+            return false;
+        }
+        TransactionCallbacks.afterCommit(() -> {
+            AtomicInteger counter = counter(productId);
+            if (counter != null) {
+                int previous = counter.getAndSet(remainingStockCount);
+                record(productId, null, remainingStockCount - previous);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void evict(Long productId) {
+        TransactionCallbacks.afterCommit(() -> counters.remove(productId));
+    }
+
+    /**
+     * Writes the changes collected since the last flush to the database in a single transaction.
+     * If it fails, the changes are kept and retried with the next flush.
+     */
+    @Scheduled(fixedDelayString = "${stock.reservation.in-memory.flush-interval-millis}")
+    public void flush() {
+        if (!started) {
+            return;
+        }
+        Map<Long, Integer> deltas;
+        List<Long> segments;
+        synchronized (journalLock) {
+            if (pendingDeltas.isEmpty()) {
+                return;
+            }
+            deltas = new HashMap<>(pendingDeltas);
+            pendingDeltas.clear();
+            pendingSegments.add(journal.rotate());
+            segments = new ArrayList<>(pendingSegments);
+        }
+
+        try {
+            writeToDatabase(deltas, segments.get(segments.size() - 1));
+        } catch (RuntimeException exception) {
+            logger.error("Stock changes could not be written to the database, will retry", exception);
+            synchronized (journalLock) {
+                deltas.forEach((productId, delta) -> pendingDeltas.merge(productId, delta, Integer::sum));
+            }
+            return;
+        }
+
+        synchronized (journalLock) {
+            pendingSegments.removeAll(segments);
+            journal.delete(segments);
+        }
+    }
+
+    /**
+     * @return the counter of the product, loaded from the database the first time for the products added later
+     */
+    private AtomicInteger counter(Long productId) {
+        AtomicInteger counter = counters.get(productId);
+        if (counter != null || !started) {
+            return counter;
+        }
+        ProductStock stock = productRepository.findStockById(productId);
+        if (stock == null) {
+            return null;
+        }
+        return counters.computeIfAbsent(productId, id -> new AtomicInteger(stock.getRemainingStockCount()));
+    }
+
+    /**
+     * Journals the change and undoes it on the counter if the surrounding transaction rolls back
+     */
+    private void record(Long productId, AtomicInteger counter, int delta) {
+        if (delta == 0) {
+            return;
+        }
+        try {
+            synchronized (journalLock) {
+                journal.append(productId, delta);
+                pendingDeltas.merge(productId, delta, Integer::sum);
+            }
+        } catch (RuntimeException exception) {
+            if (counter != null) {
+                counter.addAndGet(-delta);
+            }
+            throw exception;
+        }
+
+        if (counter != null) {
+            TransactionCallbacks.afterRollback(() -> {
+                counter.addAndGet(-delta);
+                record(productId, null, -delta);
+            });
+        }
+    }
+
+    private void writeToDatabase(Map<Long, Integer> deltas, long lastSegment) {
+        transactionTemplate.execute(status -> {
+            // ascending product ids, so the flush never deadlocks with the other multi product updates
+            new TreeMap<>(deltas).forEach((productId, delta) -> {
+                if (delta != 0) {
+                    productRepository.increaseStock(productId, delta);
+                }
+            });
+            StockJournalCheckpoint checkpoint = new StockJournalCheckpoint();
+            checkpoint.setLastSegment(lastSegment);
+            checkpointRepository.save(checkpoint);
+            return null;
+        });
+    }
+}
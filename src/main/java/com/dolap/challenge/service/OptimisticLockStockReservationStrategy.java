@@ -0,0 +1,95 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.model.ProductStock;
+import com.dolap.challenge.repository.ProductRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Reads the stocks together with the version of the product and writes the new value only if the version
+ * is still the same, so no locks are held between the read and the write. When another transaction changes
+ * the product in between, it's read again right away a few times, then the caller's transaction is failed with
+ * {@link ObjectOptimisticLockingFailureException}. The whole transaction is retried with a jittered backoff by
+ * {@link PaymentSagaService}, so no connection or lock is held while waiting.
+ * Suits the long tail of the catalog where the same product is rarely bought at the same time.
+ */
+@Component
+public class OptimisticLockStockReservationStrategy implements StockReservationStrategy {
+
+    public static final String NAME = "optimistic";
+
+    private static final int OUT_OF_STOCK = -1;
+
+    private Logger logger = LoggerFactory.getLogger(OptimisticLockStockReservationStrategy.class);
+
+    private ProductRepository productRepository;
+    private int maxAttempts;
+
+    /**
+     * Constructs an OptimisticLockStockReservationStrategy
+     *
+     * @param productRepository the interface that provides the connection with the data layer.
+     * @param maxAttempts is the maximum number of reads within the transaction before giving up
+     */
+    public OptimisticLockStockReservationStrategy(ProductRepository productRepository,
+                                                  @Value("${stock.reservation.optimistic.max-attempts}") int maxAttempts) {
+        this.productRepository = productRepository;
+        this.maxAttempts = maxAttempts;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean reserve(Long productId, Integer quantity) {
+        return compareAndSet(productId, stock -> stock >= quantity ? stock - quantity : OUT_OF_STOCK);
+    }
+
+    /**
+     * Gives the stocks back with an unconditional increment, so releasing never fails because of a concurrent change
+     */
+    @Override
+    public void release(Long productId, Integer quantity) {
+        productRepository.increaseStock(productId, quantity);
+    }
+
+    @Override
+    public void releaseAll(Map<Long, Integer> quantities) {
+        productRepository.increaseStocks(quantities);
+    }
+
+    /**
+     * Applies the change to the stocks of the product unless the product is changed by someone else in the meantime
+     *
+     * @param productId is the id of the product
+     * @param change computes the new stocks from the current ones, {@link #OUT_OF_STOCK} when the change is not possible
+     * @return true when the change is applied, false when it's not possible or there's no such product
+     * @throws ObjectOptimisticLockingFailureException when the product keeps changing during all the attempts
+     */
+    private boolean compareAndSet(Long productId, IntUnaryOperator change) throws ObjectOptimisticLockingFailureException {
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            ProductStock stock = productRepository.findStockById(productId);
+            if (stock == null) {
+                return false;
+            }
+            int remainingStockCount = change.applyAsInt(stock.getRemainingStockCount());
+            if (remainingStockCount == OUT_OF_STOCK) {
+                return false;
+            }
+            if (productRepository.updateStock(productId, remainingStockCount, stock.getVersion()) > 0) {
+                return true;
+            }
+        }
+        logger.debug("Product {} kept changing during {} attempts", productId, maxAttempts);
+        throw new ObjectOptimisticLockingFailureException(Product.class, productId);
+    }
+}
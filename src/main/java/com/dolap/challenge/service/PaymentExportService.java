@@ -0,0 +1,108 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.Payment;
+import com.dolap.challenge.repository.PaymentRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.stream.Stream;
+
+/**
+ * Exports the payment logs by streaming them from a database cursor straight into the response,
+ * so the memory used stays the same no matter how many payments are exported.
+ */
+@Service
+public class PaymentExportService {
+
+    public enum Format {
+        NDJSON("application/x-ndjson"), CSV("text/csv");
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    private static final String CSV_HEADER = "id,price,bankResponse,createdAt";
+
+    private PaymentRepository paymentRepository;
+    private EntityManager entityManager;
+    private ObjectMapper objectMapper;
+
+    /**
+     * Constructs a PaymentExportService
+     *
+     * @param paymentRepository the interface used to stream the payments
+     * @param entityManager used to detach the payments once they're written, so the persistence context doesn't grow
+     * @param objectMapper used to write the payments as JSON, the same way the other endpoints do
+     */
+    public PaymentExportService(PaymentRepository paymentRepository, EntityManager entityManager, ObjectMapper objectMapper) {
+        this.paymentRepository = paymentRepository;
+        this.entityManager = entityManager;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Writes the payments created in the given range to the output stream in ascending id order
+     *
+     * @param outputStream is where the payments are written to, it's not closed
+     * @param format is the format of the export
+     * @param from is the inclusive start of the creation time range, optional
+     * @param to is the exclusive end of the creation time range, optional
+     * @return the number of payments exported
+     */
+    @Transactional(readOnly = true)
+    public long export(OutputStream outputStream, Format format, LocalDateTime from, LocalDateTime to) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        long count = 0;
+        try (Stream<Payment> payments = from == null && to == null
+                ? paymentRepository.streamAll()
+                : paymentRepository.streamAllBetween(from != null ? from : LocalDateTime.of(1970, 1, 1, 0, 0),
+                to != null ? to : LocalDateTime.now().plusDays(1))) {
+            if (format == Format.CSV) {
+                writer.write(CSV_HEADER);
+                writer.write('\n');
+            }
+            for (Payment payment : (Iterable<Payment>) payments::iterator) {
+                if (format == Format.CSV) {
+                    writeCsv(writer, payment);
+                } else {
+                    writer.write(objectMapper.writeValueAsString(payment));
+                }
+                writer.write('\n');
+                entityManager.detach(payment);
+                count++;
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return count;
+    }
+
+    private void writeCsv(Writer writer, Payment payment) throws IOException {
+        writer.write(String.valueOf(payment.getId()));
+        writer.write(',');
+        writer.write(payment.getPrice() != null ? payment.getPrice().toPlainString() : "");
+        writer.write(',');
+        // result codes never contain commas or quotes, no escaping needed
+        writer.write(payment.getBankResponse() != null ? payment.getBankResponse() : "");
+        writer.write(',');
+        writer.write(payment.getCreatedAt() != null ? payment.getCreatedAt().toString() : "");
+    }
+}
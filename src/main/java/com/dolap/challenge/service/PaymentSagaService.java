@@ -0,0 +1,460 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.configuration.PaymentExecutorConfiguration;
+import com.dolap.challenge.entity.FlashSaleGrant;
+import com.dolap.challenge.entity.Payment;
+import com.dolap.challenge.entity.PaymentSaga;
+import com.dolap.challenge.entity.StockReservation;
+import com.dolap.challenge.exception.OutOfStockException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.model.BankPaymentResponse;
+import com.dolap.challenge.model.PaymentItem;
+import com.dolap.challenge.repository.IdempotencyKeyRepository;
+import com.dolap.challenge.repository.PaymentRepository;
+import com.dolap.challenge.repository.PaymentSagaRepository;
+import com.dolap.challenge.repository.StockReservationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Makes the payments as sagas persisted in {@link PaymentSaga}, so a payment interrupted by a crash is neither
+ * charged without a payment log nor holding its stocks forever. Every step commits the state of the payment
+ * before the next one starts:
+ * the stocks are reserved (RESERVED), the payment is marked before the bank is called (CHARGING), then the payment log
+ * is saved together with the confirmed or released reservations (CHARGED or FAILED). When the bank isn't called at all,
+ * the reservations are released (RELEASED). When the bank times out or fails, the payment may have been charged anyway,
+ * so it's left CHARGING with its stocks held, the reservation sweep skips them, and only a decline releases them.
+ *
+ * The recovery picks up the payments stuck in RESERVED or CHARGING for {@code stuck-after-millis}, at startup and then
+ * every {@code recovery-interval-millis}, and handles them in parallel. A RESERVED payment never reached the bank, so its
+ * stocks are given back. A CHARGING payment may have been charged, so the bank is asked again with the same request id,
+ * which {@link BankClient} promises to charge once, and the payment is completed with its answer.
+ * It's left CHARGING again when the bank still doesn't answer, and picked up once more after {@code stuck-after-millis}.
+ */
+@Service
+public class PaymentSagaService {
+
+    private static final List<PaymentSaga.State> STUCK_STATES = Arrays.asList(PaymentSaga.State.RESERVED, PaymentSaga.State.CHARGING);
+
+    private Logger logger = LoggerFactory.getLogger(PaymentSagaService.class);
+
+    private Messages messages;
+    private StockReservationService stockReservationService;
+    private PaymentService paymentService;
+    private PaymentSagaRepository paymentSagaRepository;
+    private StockReservationRepository stockReservationRepository;
+    private PaymentRepository paymentRepository;
+    private IdempotencyKeyRepository idempotencyKeyRepository;
+    private ThreadPoolTaskExecutor paymentExecutor;
+    private TransactionTemplate transactionTemplate;
+    private ExecutorService recoveryWorkers;
+    private long stuckAfterMillis;
+    private int recoveryBatchSize;
+    private int reserveAttempts;
+    private long reserveBackoffMillis;
+
+    /**
+     * Constructs a PaymentSagaService
+     *
+     * @param messages the interface we used to pull the relevant messages depending on the locale set
+     * @param stockReservationService the interface used to reserve, confirm and release the stocks of the payments
+     * @param paymentService the interface used to call the bank and save the payment logs
+     * @param paymentSagaRepository the interface used to record the state of the payments
+     * @param stockReservationRepository the interface used to load the reservations of the recovered payments
+     * @param paymentRepository the interface used to load the payment logs saved by the recovery
+     * @param idempotencyKeyRepository the interface used to point the Idempotency-Keys to the completed payments
+     * @param paymentExecutor is the bounded executor the asynchronous payments are completed on
+     * @param transactionManager used to commit every step of the payments in a transaction of its own
+     * @param recoveryThreads is the number of stuck payments recovered in parallel
+     * @param stuckAfterMillis is how long a payment stays in RESERVED or CHARGING before it's taken as stuck,
+     *                         keep it above the longest bank call
+     * @param recoveryBatchSize is the maximum number of stuck payments picked up at once
+     * @param reserveAttempts is the maximum number of times the reservations are tried when the products keep changing
+     * @param reserveBackoffMillis is the base of the backoff between the reservation attempts, doubled after every attempt
+     */
+    public PaymentSagaService(Messages messages, StockReservationService stockReservationService, PaymentService paymentService,
+                              PaymentSagaRepository paymentSagaRepository, StockReservationRepository stockReservationRepository,
+                              PaymentRepository paymentRepository, IdempotencyKeyRepository idempotencyKeyRepository,
+                              @Qualifier(PaymentExecutorConfiguration.PAYMENT_EXECUTOR_BEAN_NAME) ThreadPoolTaskExecutor paymentExecutor,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${payment.saga.recovery-threads}") int recoveryThreads,
+                              @Value("${payment.saga.stuck-after-millis}") long stuckAfterMillis,
+                              @Value("${payment.saga.recovery-batch-size}") int recoveryBatchSize,
+                              @Value("${stock.reservation.optimistic.max-attempts}") int reserveAttempts,
+                              @Value("${stock.reservation.optimistic.backoff-millis}") long reserveBackoffMillis) {
+        this.messages = messages;
+        this.stockReservationService = stockReservationService;
+        this.paymentService = paymentService;
+        this.paymentSagaRepository = paymentSagaRepository;
+        this.stockReservationRepository = stockReservationRepository;
+        this.paymentRepository = paymentRepository;
+        this.idempotencyKeyRepository = idempotencyKeyRepository;
+        this.paymentExecutor = paymentExecutor;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.stuckAfterMillis = stuckAfterMillis;
+        this.recoveryBatchSize = recoveryBatchSize;
+        this.reserveAttempts = reserveAttempts;
+        this.reserveBackoffMillis = reserveBackoffMillis;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.recoveryWorkers = Executors.newFixedThreadPool(recoveryThreads, runnable -> {
+            Thread thread = new Thread(runnable, "payment-recovery-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reserves the products, charges the bank and saves the payment log.
+     * The reserved products are confirmed when the money is captured and released when the bank declines.
+     * When the bank times out or fails the payment is left to the recovery, which asks the bank again.
+     *
+     * @param items are the products and quantities paid for, all of them are reserved or none
+     * @return the payment log
+     * @throws OutOfStockException when any of the products doesn't have enough stocks
+     * @throws ServiceBusyException when the bank is busy, the products are released then,
+     * or when the bank times out or fails, the payment is left to the recovery then
+     */
+    public Payment pay(List<PaymentItem> items) throws OutOfStockException, ServiceBusyException {
+        return pay(items, null);
+    }
+
+    /**
+     * Same as {@link #pay(List)}, and points the Idempotency-Key the client sent to the payment log once it's saved,
+     * in the same transaction, so the key is completed even when the payment is finished by the recovery
+     *
+     * @param items are the products and quantities paid for, all of them are reserved or none
+     * @param idempotencyKey is the key the client sent with the payment, null when there's none
+     * @return the payment log
+     * @throws OutOfStockException when any of the products doesn't have enough stocks
+     * @throws ServiceBusyException when the bank is busy, the products are released then,
+     * or when the bank times out or fails, the payment is left to the recovery then
+     */
+    public Payment pay(List<PaymentItem> items, String idempotencyKey) throws OutOfStockException, ServiceBusyException {
+        Saga saga = start(items, idempotencyKey);
+        BankPaymentResponse response;
+        try {
+            response = charge(saga).join();
+        } catch (RuntimeException exception) {
+            compensate(saga, PaymentSaga.State.CHARGING);
+            throw exception;
+        }
+        return complete(saga, response);
+    }
+
+    /**
+     * Same as {@link #pay(List)} but no thread waits for the bank, the products are reserved on the caller's thread
+     * and the payment is completed on the payment executor once the bank responds.
+     * The payment is rejected up front when the executor has no room left. If it fills up while the bank is called,
+     * the payment is left CHARGING for the recovery to complete and the caller is told to retry, the thread completing
+     * the bank calls never does the database work itself. The same goes for a bank that times out or fails.
+     *
+     * @param items are the products and quantities paid for, all of them are reserved or none
+     * @return a future that completes with the payment log
+     * @throws OutOfStockException when any of the products doesn't have enough stocks
+     * @throws ServiceBusyException when the bank is busy, the products are released then
+     */
+    public CompletableFuture<Payment> payAsync(List<PaymentItem> items) throws OutOfStockException, ServiceBusyException {
+        return payAsync(items, null);
+    }
+
+    /**
+     * Same as {@link #payAsync(List)}, and points the Idempotency-Key to the payment log, see {@link #pay(List, String)}
+     *
+     * @param items are the products and quantities paid for, all of them are reserved or none
+     * @param idempotencyKey is the key the client sent with the payment, null when there's none
+     * @return a future that completes with the payment log
+     * @throws OutOfStockException when any of the products doesn't have enough stocks
+     * @throws ServiceBusyException when the bank is busy, the products are released then
+     */
+    public CompletableFuture<Payment> payAsync(List<PaymentItem> items, String idempotencyKey) throws OutOfStockException, ServiceBusyException {
+        if (isPaymentExecutorFull()) {
+            logger.warn("The payment executor is full, rejecting the payment");
+            throw busy();
+        }
+        Saga saga = start(items, idempotencyKey);
+        CompletableFuture<BankPaymentResponse> response;
+        try {
+            response = charge(saga);
+        } catch (RuntimeException exception) {
+            compensate(saga, PaymentSaga.State.CHARGING);
+            throw exception;
+        }
+        CompletableFuture<Payment> payment = new CompletableFuture<>();
+        response.whenComplete((bankResponse, throwable) -> {
+            try {
+                paymentExecutor.execute(() -> {
+                    try {
+                        if (throwable != null) {
+                            compensate(saga, PaymentSaga.State.CHARGING);
+                            payment.completeExceptionally(throwable);
+                        } else {
+                            payment.complete(complete(saga, bankResponse));
+                        }
+                    } catch (RuntimeException exception) {
+                        payment.completeExceptionally(exception);
+                    }
+                });
+            } catch (TaskRejectedException exception) {
+                logger.warn("The payment executor is full, payment {} is left to the recovery", saga.paymentSaga.getId());
+                payment.completeExceptionally(busy());
+            }
+        });
+        return payment;
+    }
+
+    /**
+     * Picks up the stuck payments and finishes or undoes them in parallel, batch by batch
+     *
+     * @return the number of payments recovered
+     */
+    @Scheduled(fixedDelayString = "${payment.saga.recovery-interval-millis}")
+    public int recover() {
+        return recover(LocalDateTime.now().minusNanos(stuckAfterMillis * 1_000_000));
+    }
+
+    /**
+     * Recovers the payments that haven't moved since the given time
+     *
+     * @param stuckBefore is the time the payments are stuck since
+     * @return the number of payments recovered
+     */
+    int recover(LocalDateTime stuckBefore) {
+        int recovered = 0;
+        List<PaymentSaga> stuck;
+        int batchRecovered;
+        do {
+            stuck = paymentSagaRepository.findStuck(STUCK_STATES, stuckBefore, PageRequest.of(0, recoveryBatchSize));
+            List<CompletableFuture<Boolean>> recoveries = new ArrayList<>(stuck.size());
+            for (PaymentSaga paymentSaga : stuck) {
+                recoveries.add(CompletableFuture.supplyAsync(() -> recover(paymentSaga), recoveryWorkers));
+            }
+            batchRecovered = 0;
+            for (CompletableFuture<Boolean> recovery : recoveries) {
+                batchRecovered += recovery.join() ? 1 : 0;
+            }
+            recovered += batchRecovered;
+            // the claimed ones are touched, so they aren't picked up again until they're stuck again
+        } while (stuck.size() == recoveryBatchSize && batchRecovered > 0);
+
+        if (recovered > 0) {
+            logger.info("{} stuck payments are recovered", recovered);
+        }
+        return recovered;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        recoveryWorkers.shutdownNow();
+    }
+
+    /**
+     * Claims the stuck payment, so the other instances leave it alone, then undoes it if it never reached the bank
+     * or asks the bank again otherwise
+     *
+     * @return whether the payment is finished or undone
+     */
+    private boolean recover(PaymentSaga paymentSaga) {
+        try {
+            Integer claimed = transactionTemplate.execute(status -> paymentSagaRepository.claim(paymentSaga.getId(),
+                    paymentSaga.getState(), paymentSaga.getUpdatedAt(), LocalDateTime.now()));
+            if (claimed == null || claimed == 0) {
+                return false;
+            }
+            Saga saga = new Saga(paymentSaga, stockReservationRepository.findAllBySagaId(paymentSaga.getId()));
+            if (paymentSaga.getState() == PaymentSaga.State.RESERVED) {
+                logger.warn("Payment {} is stuck before the bank is called, releasing its stocks", paymentSaga.getId());
+                compensate(saga, PaymentSaga.State.RESERVED);
+                return true;
+            }
+            logger.warn("Payment {} is stuck in the bank call, asking the bank again", paymentSaga.getId());
+            BankPaymentResponse response = paymentService.charge(paymentSaga.getRequestId(), paymentSaga.getPrice()).join();
+            if (response.isFailure()) {
+                // the claim touched it, so it's asked again once it's stuck again
+                logger.warn("Bank still couldn't answer for payment {}, it's retried later", paymentSaga.getId());
+                return false;
+            }
+            complete(saga, response);
+            return true;
+        } catch (RuntimeException exception) {
+            logger.error("Payment {} could not be recovered, it's retried later", paymentSaga.getId(), exception);
+            return false;
+        }
+    }
+
+    /**
+     * Reserves the products and records the payment as RESERVED in a single transaction.
+     * The products on flash sale wait for their queues before the transaction opens, so no connection is held while
+     * queued, and their grants are claimed in the transaction. The grants left unclaimed are given back when the
+     * payment can't be reserved.
+     * When a product changes under an optimistic reservation, the transaction is rolled back and tried again
+     * after a jittered exponential backoff, so the connection and the locks already taken aren't held while waiting.
+     *
+     * @throws ServiceBusyException when the products keep changing during all the attempts
+     */
+    Saga start(List<PaymentItem> items, String idempotencyKey) {
+        Map<Long, FlashSaleGrant> flashSaleGrants = stockReservationService.acquireFlashSaleStocks(items);
+        boolean reserved = false;
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    Saga saga = reserve(items, idempotencyKey, flashSaleGrants);
+                    reserved = true;
+                    return saga;
+                } catch (OptimisticLockingFailureException exception) {
+                    if (attempt + 1 >= reserveAttempts) {
+                        logger.warn("The products kept changing during {} attempts, rejecting the payment", reserveAttempts);
+                        throw busy();
+                    }
+                    backoff(attempt);
+                }
+            }
+        } finally {
+            if (!reserved && !flashSaleGrants.isEmpty()) {
+                stockReservationService.giveBackFlashSaleStocks(flashSaleGrants.values());
+            }
+        }
+    }
+
+    private Saga reserve(List<PaymentItem> items, String idempotencyKey, Map<Long, FlashSaleGrant> flashSaleGrants) {
+        return transactionTemplate.execute(status -> {
+            List<StockReservation> reservations = stockReservationService.reserveAll(items, flashSaleGrants);
+            PaymentSaga paymentSaga = new PaymentSaga();
+            paymentSaga.setRequestId(UUID.randomUUID().toString());
+            paymentSaga.setIdempotencyKey(idempotencyKey);
+            paymentSaga.setPrice(reservations.stream().map(StockReservation::getTotalPrice).reduce(BigDecimal.ZERO, BigDecimal::add));
+            paymentSaga.setState(PaymentSaga.State.RESERVED);
+            paymentSaga.setCreatedAt(LocalDateTime.now());
+            paymentSaga.setUpdatedAt(paymentSaga.getCreatedAt());
+            paymentSagaRepository.save(paymentSaga);
+            // the stock updates detach the reservations, so they're linked to the payment with a single update
+            stockReservationRepository.updateSagaId(reservations.stream().map(StockReservation::getId).collect(Collectors.toList()),
+                    paymentSaga.getId());
+            reservations.forEach(reservation -> reservation.setSagaId(paymentSaga.getId()));
+            return new Saga(paymentSaga, reservations);
+        });
+    }
+
+    /**
+     * Records the payment as CHARGING, then calls the bank
+     */
+    CompletableFuture<BankPaymentResponse> charge(Saga saga) {
+        transactionTemplate.execute(status -> paymentSagaRepository.updateState(saga.paymentSaga.getId(),
+                PaymentSaga.State.RESERVED, PaymentSaga.State.CHARGING, LocalDateTime.now()));
+        return paymentService.charge(saga.paymentSaga.getRequestId(), saga.paymentSaga.getPrice());
+    }
+
+    /**
+     * Saves the payment log, confirms or releases the reservations, records the payment as CHARGED or FAILED
+     * and points its Idempotency-Key to the payment log in a single transaction. When the payment is completed in the meantime, e.g. by the recovery,
+     * nothing is changed and its payment log is returned.
+     *
+     * @throws ServiceBusyException when the bank timed out or failed, the payment is left CHARGING for the recovery then
+     */
+    private Payment complete(Saga saga, BankPaymentResponse response) {
+        if (response.isFailure()) {
+            logger.warn("Bank couldn't answer for payment {}, it's left to the recovery", saga.paymentSaga.getId());
+            throw busy();
+        }
+        Payment payment = transactionTemplate.execute(status -> {
+            Payment savedPayment = paymentService.saveBankResponse(saga.paymentSaga.getPrice(), response);
+            if (savedPayment.isSuccessful()) {
+                stockReservationService.confirmAll(saga.reservations);
+            } else {
+                stockReservationService.releaseAll(saga.reservations);
+            }
+            int completed = paymentSagaRepository.complete(saga.paymentSaga.getId(), PaymentSaga.State.CHARGING,
+                    savedPayment.isSuccessful() ? PaymentSaga.State.CHARGED : PaymentSaga.State.FAILED,
+                    savedPayment.getId(), LocalDateTime.now());
+            if (completed == 0) {
+                status.setRollbackOnly();
+                return null;
+            }
+            if (saga.paymentSaga.getIdempotencyKey() != null) {
+                idempotencyKeyRepository.updatePaymentId(saga.paymentSaga.getIdempotencyKey(), savedPayment.getId());
+            }
+            return savedPayment;
+        });
+        if (payment != null) {
+            return payment;
+        }
+        return paymentSagaRepository.findById(saga.paymentSaga.getId())
+                .map(PaymentSaga::getPaymentId)
+                .flatMap(paymentRepository::findById)
+                .orElseThrow(() -> new IllegalStateException("Payment " + saga.paymentSaga.getId() + " is completed without a payment log"));
+    }
+
+    /**
+     * Releases the reservations and records the payment as RELEASED, unless it has moved on from the given state
+     */
+    private void compensate(Saga saga, PaymentSaga.State currentState) {
+        transactionTemplate.execute(status -> {
+            if (paymentSagaRepository.updateState(saga.paymentSaga.getId(), currentState, PaymentSaga.State.RELEASED, LocalDateTime.now()) > 0) {
+                stockReservationService.releaseAll(saga.reservations);
+            }
+            return null;
+        });
+    }
+
+    private void backoff(int attempt) {
+        long maxBackoff = reserveBackoffMillis << attempt;
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxBackoff / 2, maxBackoff + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw busy();
+        }
+    }
+
+    private boolean isPaymentExecutorFull() {
+        ThreadPoolExecutor executor = paymentExecutor.getThreadPoolExecutor();
+        return executor.getQueue().remainingCapacity() == 0 && executor.getPoolSize() >= executor.getMaximumPoolSize();
+    }
+
+    private ServiceBusyException busy() {
+        return new ServiceBusyException(messages.get(ServiceBusyException.SERVICE_BUSY_EXCEPTION_MESSAGE_KEY));
+    }
+
+    /**
+     * Payment together with its reservations
+     */
+    static class Saga {
+        private final PaymentSaga paymentSaga;
+        private final List<StockReservation> reservations;
+
+        private Saga(PaymentSaga paymentSaga, List<StockReservation> reservations) {
+            this.paymentSaga = paymentSaga;
+            this.reservations = reservations;
+        }
+
+        PaymentSaga getPaymentSaga() {
+            return paymentSaga;
+        }
+    }
+}
@@ -1,24 +1,36 @@
 package com.dolap.challenge.service;
 
 import com.dolap.challenge.entity.Payment;
+import com.dolap.challenge.entity.RevenueRollup;
+import com.dolap.challenge.exception.ServiceBusyException;
 import com.dolap.challenge.model.BankPaymentRequest;
 import com.dolap.challenge.model.BankPaymentResponse;
+import com.dolap.challenge.model.PaymentPage;
 import com.dolap.challenge.repository.PaymentRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class PaymentService {
 
+    public static final int MAX_PAGE_SIZE = 100;
+
     private Logger logger = LoggerFactory.getLogger(PaymentService.class);
 
     private BankService bankService;
+    private BankPaymentBatcher bankPaymentBatcher;
     private PaymentRepository paymentRepository;
+    private RevenueRollupService revenueRollupService;
 
     /**
      * Constructs a PaymentService with bankService and paymentRepository
@@ -26,31 +38,37 @@ public class PaymentService {
      * database.
      *
      * @param bankService is the interface used to call the bank
+     * @param bankPaymentBatcher is used to settle the payments in batches when batching is enabled
      * @param paymentRepository is the interface used to record the payment logs
+     * @param revenueRollupService is used to add the successful payments to the revenue rollups
      */
-    public PaymentService(BankService bankService, PaymentRepository paymentRepository) {
+    public PaymentService(BankService bankService, BankPaymentBatcher bankPaymentBatcher, PaymentRepository paymentRepository,
+                          RevenueRollupService revenueRollupService) {
         this.bankService = bankService;
+        this.bankPaymentBatcher = bankPaymentBatcher;
         this.paymentRepository = paymentRepository;
+        this.revenueRollupService = revenueRollupService;
     }
 
     /**
-     * Calls the bank and pays the amount that's specified
-     * It also keeps a payment log of all the successful or failed payments in the database
+     * Asks the bank to capture the amount, either directly or through the batching stage.
+     * The caller saves the response with {@link #saveBankResponse} once the bank responds.
      *
+     * @param requestId identifies the payment at the bank, a payment asked again with the same id is charged once
      * @param price is the amount you want to pay
-     * @return the payment log
+     * @return a future that completes with the bank's response
+     * @throws ServiceBusyException when there are already too many calls to the bank in-flight
      */
-    public Payment pay(BigDecimal price) {
-        //pay with bank
+    public CompletableFuture<BankPaymentResponse> charge(String requestId, BigDecimal price) throws ServiceBusyException {
         BankPaymentRequest request = new BankPaymentRequest();
+        request.setRequestId(requestId);
         request.setPrice(price);
-        BankPaymentResponse response = bankService.pay(request);
-
-        return saveBankResponse(price, response);
+        return bankPaymentBatcher.isEnabled() ? bankPaymentBatcher.pay(request) : bankService.pay(request);
     }
 
     /**
      * Saves the bank response into a {@link Payment} object and stores it in the database
+     * The successful payments are added to the total revenue rollups as well.
      *
      * @param price is the amount that's paid
      * @param response is the bank's response for the transaction
@@ -62,19 +80,46 @@ public class PaymentService {
         Payment payment = new Payment();
         payment.setBankResponse(response.getResultCode());
         payment.setPrice(price);
+        payment.setCreatedAt(LocalDateTime.now());
         paymentRepository.save(payment);
+        if (payment.isSuccessful()) {
+            revenueRollupService.record(RevenueRollup.ALL_PRODUCTS, price, payment.getCreatedAt());
+        }
         logger.info("Payment saved successfully!");
         return payment;
     }
 
     /**
-     * Retrieves all the payments from the database - no sort, no pagination, no nothing.
-     * Raw data from the database
+     * Retrieves a page of the payments, newest first.
+     * The pages are keyed by the id of the last payment of the previous page instead of an offset,
+     * so the database seeks to the cursor on the primary key and a deep page costs the same as the first one.
      *
-     * @return list of payments
+     * @param cursor is the next cursor of the previous page, null for the first page
+     * @param from is the inclusive start of the creation time range, optional
+     * @param to is the exclusive end of the creation time range, optional
+     * @param limit is the number of payments in the page, at most {@link #MAX_PAGE_SIZE}
+     * @return the page of payments together with the cursor of the next page
      */
-    @Transactional
-    public List<Payment> getPayments() {
-        return paymentRepository.findAll();
+    @Transactional(readOnly = true)
+    public PaymentPage getPayments(Long cursor, LocalDateTime from, LocalDateTime to, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        // one more than asked tells whether there's a next page without counting the rows
+        Pageable pageable = PageRequest.of(0, pageSize + 1);
+        Long before = cursor != null ? cursor : Long.MAX_VALUE;
+
+        List<Payment> payments;
+        if (from == null && to == null) {
+            payments = paymentRepository.findAllBefore(before, pageable);
+        } else {
+            payments = paymentRepository.findAllBeforeBetween(before,
+                    from != null ? from : LocalDateTime.of(1970, 1, 1, 0, 0),
+                    to != null ? to : LocalDateTime.now().plusDays(1), pageable);
+        }
+
+        if (payments.size() <= pageSize) {
+            return new PaymentPage(payments, null);
+        }
+        List<Payment> page = payments.subList(0, pageSize);
+        return new PaymentPage(new ArrayList<>(page), page.get(pageSize - 1).getId());
     }
 }
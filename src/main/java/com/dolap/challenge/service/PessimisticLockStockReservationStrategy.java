@@ -0,0 +1,46 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.Product;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+
+/**
+ * Locks the product record for update until the end of the transaction,
+ * then checks and changes the stocks. Suits the hot products where the updates would conflict anyway.
+ */
+@Component
+public class PessimisticLockStockReservationStrategy implements StockReservationStrategy {
+
+    public static final String NAME = "pessimistic";
+
+    private EntityManager entityManager;
+
+    public PessimisticLockStockReservationStrategy(EntityManager entityManager) {
+        this.entityManager = entityManager;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean reserve(Long productId, Integer quantity) {
+        Product product = entityManager.find(Product.class, productId, LockModeType.PESSIMISTIC_WRITE);
+        if (product == null || product.getRemainingStockCount() < quantity) {
+            return false;
+        }
+        product.setRemainingStockCount(product.getRemainingStockCount() - quantity);
+        return true;
+    }
+
+    @Override
+    public void release(Long productId, Integer quantity) {
+        Product product = entityManager.find(Product.class, productId, LockModeType.PESSIMISTIC_WRITE);
+        if (product != null) {
+            product.setRemainingStockCount(product.getRemainingStockCount() + quantity);
+        }
+    }
+}
@@ -2,43 +2,79 @@ package com.dolap.challenge.service;
 
 import com.dolap.challenge.configuration.Messages;
 import com.dolap.challenge.entity.Category;
+import com.dolap.challenge.entity.FlashSaleGrant;
 import com.dolap.challenge.entity.Product;
 import com.dolap.challenge.exception.CategoryNotFoundException;
+import com.dolap.challenge.exception.InvalidCursorException;
 import com.dolap.challenge.exception.OutOfStockException;
 import com.dolap.challenge.exception.ProductNotFoundException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.model.ProductPage;
+import com.dolap.challenge.model.ProductReservationTerms;
 import com.dolap.challenge.repository.ProductRepository;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
-import javax.persistence.EntityManager;
-import javax.persistence.LockModeType;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
 
 @Service
 @Transactional
 public class ProductService {
-    private EntityManager entityManager;
+    public static final int MAX_PAGE_SIZE = 100;
+
     private Messages messages;
     private ProductRepository productRepository;
     private CategoryService categoryService;
+    private StockReservationStrategy stockReservationStrategy;
+    private StockShardService stockShardService;
+    private FlashSaleService flashSaleService;
+    private SoldOutCache soldOutCache;
+    private WaitingRoomService waitingRoomService;
 
     /**
      * Constructs a new ProductService with specified product repository,
-     * entityManager and messages that depends on the locale.
+     * stock reservation strategy and messages that depends on the locale.
      *
      * @param productRepository the interface that provides the connection with the data layer.
-     * @param entityManager the interface used to lock the records
      * @param messages the interface we used to pull the relevant messages depending on the locale set
      * @param categoryService the interface used to find the related category
+     * @param stockReservationStrategies the available strategies to reserve and release the stocks
+     * @param stockReservationStrategyName the name of the strategy to use, see {@link StockReservationStrategy#getName()}
+     * @param stockShardService the interface used to reserve the stocks of the products split into several rows
+     * @param flashSaleService the interface used to reserve the stocks of the products on flash sale
+     * @param soldOutCache the interface used to reject the reservations of the sold out products right away
+     * @param waitingRoomService the interface told about the products put on or taken off flash sale
      */
-    public ProductService(ProductRepository productRepository, EntityManager entityManager, Messages messages, CategoryService categoryService) {
+    public ProductService(ProductRepository productRepository, Messages messages, CategoryService categoryService,
+                          List<StockReservationStrategy> stockReservationStrategies,
+                          @Value("${stock.reservation.strategy}") String stockReservationStrategyName,
+                          StockShardService stockShardService, FlashSaleService flashSaleService, SoldOutCache soldOutCache,
+                          WaitingRoomService waitingRoomService) {
         this.productRepository = productRepository;
-        this.entityManager = entityManager;
         this.messages = messages;
         this.categoryService = categoryService;
+        this.stockReservationStrategy = stockReservationStrategies.stream()
+                .filter(strategy -> strategy.getName().equals(stockReservationStrategyName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown stock reservation strategy: " + stockReservationStrategyName));
+        this.stockShardService = stockShardService;
+        this.flashSaleService = flashSaleService;
+        this.soldOutCache = soldOutCache;
+        this.waitingRoomService = waitingRoomService;
     }
 
     /**
@@ -53,9 +89,16 @@ public class ProductService {
         if(product.getCategory() == null || product.getCategory().getId() == null){
             throw new CategoryNotFoundException(messages.get(CategoryNotFoundException.CATEGORY_NOT_FOUND_EXCEPTION_MESSAGE_KEY));
         }
-        Category category = categoryService.findCategory(product.getCategory().getId());
+        Category category = categoryService.findCategory(product.getCategory().getId(), 0);
         product.setCategory(category);
-        return productRepository.save(product);
+        Product savedProduct = productRepository.save(product);
+        if (savedProduct.getStockShardCount() > 1) {
+            stockShardService.distribute(savedProduct.getId(), savedProduct.getStockShardCount(), savedProduct.getRemainingStockCount());
+        }
+        if (savedProduct.isFlashSale()) {
+            waitingRoomService.flashSaleChanged();
+        }
+        return savedProduct;
     }
 
     /**
@@ -73,24 +116,116 @@ public class ProductService {
      * @return a page which contains a list of products that fits the search criteria
      */
     public Page<Product> getAll(Long categoryId, String sortBy, String sortOrder, Integer page, Integer limit) {
-        Category rootCategory = categoryService.findCategory(categoryId);
-        ArrayList<Long> idList = findAllCategoryTreeIds(rootCategory);
-        return productRepository.findAllByCategory(idList, PageRequest.of(page, limit, getSort(sortBy, sortOrder)));
+        categoryService.checkCategoryExists(categoryId);
+        Page<Product> products = productRepository.findAllByCategoryTree(categoryId, PageRequest.of(page, limit, getSort(sortBy, sortOrder)));
+        stockShardService.sumShards(products.getContent());
+        return products;
     }
 
     /**
-     * Returns the list of ids including id of rootCategory and ids of all sub categories (whole tree structure below given rootCategory)
+     * Returns a page of products of the given category and below sub categories, keyed by a cursor instead of an offset.
+     * The cursor holds the sort key and the id of the last product of the previous page, so the database seeks
+     * right after it and no rows are skipped or counted: a deep page costs the same as the first one.
+     * The id breaks the ties of the sort key, so the products sharing a price or a name are neither repeated nor skipped.
      *
-     * @param rootCategory is the root category that will be investigated
-     * @return the list of ids including id of rootCategory and ids of all sub categories (whole tree structure below given rootCategory)
+     * @param categoryId is the id of category you want to get products of
+     * @param sortBy is the field you want to sort on, one of id, name, description, price and remainingStockCount
+     * @param sortOrder whether it is desc or asc by the sort column {@see sortBy}
+     * @param cursor is the next cursor of the previous page, null or empty for the first page
+     * @param limit is the number of products in the page, at most {@link #MAX_PAGE_SIZE}
+     * @return the page of products together with the cursor of the next page
      */
-    private ArrayList<Long> findAllCategoryTreeIds(Category rootCategory){
-        ArrayList<Long> idList = new ArrayList<>();
-        idList.add(rootCategory.getId());
-        if(rootCategory.getSubCategoryList() != null && !rootCategory.getSubCategoryList().isEmpty()){
-            rootCategory.getSubCategoryList().stream().forEach(subCategory -> idList.addAll(findAllCategoryTreeIds(subCategory)));
+    @Transactional(readOnly = true)
+    public ProductPage getAllByCursor(Long categoryId, String sortBy, String sortOrder, String cursor, Integer limit) {
+        CursorSortField sortField = CursorSortField.of(sortBy);
+        if (sortField == null) {
+            throw new InvalidCursorException(messages.get(InvalidCursorException.INVALID_CURSOR_EXCEPTION_MESSAGE_KEY));
+        }
+        boolean ascending = "asc".equals(sortOrder);
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        Object afterSortKey = null;
+        Long afterId = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            String[] position = decodeCursor(cursor, sortField, ascending);
+            afterId = parseCursorValue(Long::valueOf, position[0]);
+            afterSortKey = parseCursorValue(sortField.parser, position[1]);
+        }
+
+        categoryService.checkCategoryExists(categoryId);
+        // one more than asked tells whether there's a next page without counting the rows
+        List<Product> products = productRepository.findAllByCategoryTreeAfter(categoryId,
+                sortField.name(), ascending, afterSortKey, afterId, pageSize + 1);
+        String next = null;
+        if (products.size() > pageSize) {
+            products = new ArrayList<>(products.subList(0, pageSize));
+            next = encodeCursor(sortField, ascending, products.get(pageSize - 1));
+        }
+        stockShardService.sumShards(products);
+        return new ProductPage(products, next);
+    }
+
+    /**
+     * Encodes the position of the product in the listing into an opaque cursor.
+     * The sort is part of the cursor, so a cursor can't be continued with another sort.
+     */
+    private String encodeCursor(CursorSortField sortField, boolean ascending, Product last) {
+        String position = sortField.name() + '\n' + ascending + '\n' + last.getId() + '\n' + sortField.getter.apply(last);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes the cursor made by {@link #encodeCursor}
+     *
+     * @return the id and the sort key of the last product of the previous page
+     */
+    private String[] decodeCursor(String cursor, CursorSortField sortField, boolean ascending) {
+        String[] position;
+        try {
+            position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 4);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidCursorException(messages.get(InvalidCursorException.INVALID_CURSOR_EXCEPTION_MESSAGE_KEY));
+        }
+        if (position.length != 4 || !position[0].equals(sortField.name()) || !position[1].equals(String.valueOf(ascending))) {
+            throw new InvalidCursorException(messages.get(InvalidCursorException.INVALID_CURSOR_EXCEPTION_MESSAGE_KEY));
+        }
+        return new String[]{position[2], position[3]};
+    }
+
+    private <T> T parseCursorValue(Function<String, T> parser, String value) {
+        try {
+            return parser.apply(value);
+        } catch (NumberFormatException e) {
+            throw new InvalidCursorException(messages.get(InvalidCursorException.INVALID_CURSOR_EXCEPTION_MESSAGE_KEY));
+        }
+    }
+
+    /**
+     * The fields the products can be listed by cursor sorted on, with the way their sort keys are written into the cursor
+     */
+    private enum CursorSortField {
+        id(Product::getId, Long::valueOf),
+        name(Product::getName, value -> value),
+        description(Product::getDescription, value -> value),
+        price(Product::getPrice, BigDecimal::new),
+        remainingStockCount(Product::getRemainingStockCount, Integer::valueOf);
+
+        private final Function<Product, Object> getter;
+        private final Function<String, Object> parser;
+
+        CursorSortField(Function<Product, Object> getter, Function<String, Object> parser) {
+            this.getter = getter;
+            this.parser = parser;
+        }
+
+        private static CursorSortField of(String sortBy) {
+            for (CursorSortField sortField : values()) {
+                if (sortField.name().equals(sortBy)) {
+                    return sortField;
+                }
+            }
+            return null;
         }
-        return idList;
     }
 
     /**
@@ -128,12 +263,26 @@ public class ProductService {
         if(updatedProduct.getCategory() == null || updatedProduct.getCategory().getId() == null){
             throw new CategoryNotFoundException(messages.get(CategoryNotFoundException.CATEGORY_NOT_FOUND_EXCEPTION_MESSAGE_KEY));
         }
-        Category updatedCategory = categoryService.findCategory(updatedProduct.getCategory().getId());
+        Category updatedCategory = categoryService.findCategory(updatedProduct.getCategory().getId(), 0);
         return productRepository.findById(id)
                 .map(product -> {
                     product.setName(updatedProduct.getName());
                     product.setDescription(updatedProduct.getDescription());
-                    product.setRemainingStockCount(updatedProduct.getRemainingStockCount());
+                    Integer stockShardCount = updatedProduct.getStockShardCount();
+                    if (product.getStockShardCount() > 1 || stockShardCount > 1) {
+                        stockShardService.distribute(id, stockShardCount, updatedProduct.getRemainingStockCount());
+                    }
+                    product.setStockShardCount(stockShardCount);
+                    if (stockShardCount > 1 || !stockReservationStrategy.overwrite(id, updatedProduct.getRemainingStockCount())) {
+                        product.setRemainingStockCount(updatedProduct.getRemainingStockCount());
+                        product.setShardedStockCount(null);
+                    }
+                    if (product.isFlashSale() != updatedProduct.isFlashSale()) {
+                        waitingRoomService.flashSaleChanged();
+                    }
+                    product.setFlashSale(updatedProduct.isFlashSale());
+                    flashSaleService.reopen(id);
+                    soldOutCache.restocked(id);
                     product.setPrice(updatedProduct.getPrice());
                     product.setCategory(updatedCategory);
                     return product;
@@ -147,7 +296,12 @@ public class ProductService {
      * @param id is the product id you want to delete
      */
     public void deleteProduct(Long id) {
+        stockShardService.delete(id);
         productRepository.deleteById(id);
+        stockReservationStrategy.evict(id);
+        flashSaleService.evict(id);
+        waitingRoomService.flashSaleChanged();
+        soldOutCache.evict(id);
     }
 
     /**
@@ -158,41 +312,193 @@ public class ProductService {
      * @return the product freshly retrieved
      */
     public Product findProduct(Long id) {
-        return productRepository.findById(id).orElseThrow(() -> new ProductNotFoundException(messages.get(ProductNotFoundException.PRODUCT_NOT_FOUND_EXCEPTION_MESSAGE_KEY)));
+        Product product = productRepository.findById(id).orElseThrow(() -> new ProductNotFoundException(messages.get(ProductNotFoundException.PRODUCT_NOT_FOUND_EXCEPTION_MESSAGE_KEY)));
+        stockShardService.sumShards(Collections.singletonList(product));
+        return product;
     }
 
     /**
      * Reserves stocks of the product with any quantity provided
-     * This operation is "atomic" in a way that the record is locked for update
-     * so that no other operations can read / change the value which could cause reading false information
+     * This operation is "atomic" in a way that no other operations can change the stocks between the check and
+     * the decrease. How it's done depends on the configured {@link StockReservationStrategy}, by default the stock
+     * is checked and decreased with a single conditional update, so the record is locked only during that statement.
+     * The stocks of the products split into several rows are reserved through the {@link StockShardService} instead.
+     * Once a product is found with no stocks left, its reservations are rejected right away by the {@link SoldOutCache}
+     * until stocks are given back to it.
      * Also, @throws {@link OutOfStockException} when trying to reserve more than what's in the stock
      *
      * @param productId is the id of the product you want to reserve some stocks
      * @param quantity is the amount you want to reserve for yourself
+     * @return the price of an individual product, so the callers don't need to load the product again
+     * @throws OutOfStockException when trying to reserve more than what's in the stocks
+     * @throws ProductNotFoundException when the id is invalid
+     */
+    public BigDecimal reserveStockForProduct(Long productId, Integer quantity) throws OutOfStockException {
+        return reserveStockForProduct(productId, quantity, null);
+    }
+
+    /**
+     * Same as {@link #reserveStockForProduct(Long, Integer)}, but the stocks of a product on flash sale are taken
+     * by claiming the grant acquired through {@link #acquireFlashSaleStocks(Map)} instead of waiting for its queue
+     *
+     * @param productId is the id of the product you want to reserve some stocks
+     * @param quantity is the amount you want to reserve for yourself
+     * @param flashSaleGrant is the grant acquired for the product, null when there's none
+     * @return the price of an individual product, so the callers don't need to load the product again
      * @throws OutOfStockException when trying to reserve more than what's in the stocks
+     * @throws ProductNotFoundException when the id is invalid
      */
-    public void reserveStockForProduct(Long productId, Integer quantity) throws OutOfStockException {
-        Product product = entityManager.find(Product.class, productId, LockModeType.PESSIMISTIC_WRITE);
-        if (product.getRemainingStockCount() < quantity){
+    public BigDecimal reserveStockForProduct(Long productId, Integer quantity, FlashSaleGrant flashSaleGrant) throws OutOfStockException {
+        if (flashSaleGrant == null && soldOutCache.isSoldOut(productId)) {
             throw new OutOfStockException(messages.get(OutOfStockException.OUT_OF_STOCK_EXCEPTION_MESSAGE_KEY));
         }
+        long restockSnapshot = soldOutCache.snapshot();
+        ProductReservationTerms terms = productRepository.findReservationTermsById(productId);
+        if (terms == null) {
+            throw new ProductNotFoundException(messages.get(ProductNotFoundException.PRODUCT_NOT_FOUND_EXCEPTION_MESSAGE_KEY));
+        }
+        if (flashSaleGrant != null) {
+            flashSaleService.claim(flashSaleGrant);
+        } else if (!takeStocks(productId, terms, quantity, restockSnapshot)) {
+            throw new OutOfStockException(messages.get(OutOfStockException.OUT_OF_STOCK_EXCEPTION_MESSAGE_KEY));
+        }
+        return terms.getPrice();
+    }
+
+    /**
+     * Waits for the queues of the products on flash sale and takes their stocks, before the transaction that records
+     * the reservations opens, so no connection is held while queued. The grants are claimed in that transaction through
+     * {@link #reserveStockForProduct(Long, Integer, FlashSaleGrant)}, and the ones left unclaimed are given back through
+     * {@link #giveBackFlashSaleStocks(Collection)}. Either all the products on flash sale get their grants or none.
+     *
+     * @param quantities are the amounts you want to reserve per product id
+     * @return the grants acquired per product id, the products not on flash sale are left out
+     * @throws OutOfStockException when any of the products on flash sale doesn't have enough stocks
+     * @throws ServiceBusyException when too many reservations are waiting for any of them or the wait times out
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Map<Long, FlashSaleGrant> acquireFlashSaleStocks(Map<Long, Integer> quantities) throws OutOfStockException, ServiceBusyException {
+        Map<Long, FlashSaleGrant> grants = new TreeMap<>();
+        if (quantities.isEmpty()) {
+            return grants;
+        }
+        Map<Long, Integer> flashSaleQuantities = new TreeMap<>();
+        for (ProductReservationTerms terms : productRepository.findReservationTermsByIdIn(quantities.keySet())) {
+            if (terms.getStockShardCount() <= 1 && isFlashSale(terms)) {
+                flashSaleQuantities.put(terms.getId(), quantities.get(terms.getId()));
+            }
+        }
+        try {
+            for (Map.Entry<Long, Integer> entry : flashSaleQuantities.entrySet()) {
+                FlashSaleGrant grant = soldOutCache.isSoldOut(entry.getKey()) ? null : flashSaleService.acquire(entry.getKey(), entry.getValue());
+                if (grant == null) {
+                    throw new OutOfStockException(messages.get(OutOfStockException.OUT_OF_STOCK_EXCEPTION_MESSAGE_KEY));
+                }
+                grants.put(entry.getKey(), grant);
+            }
+        } catch (RuntimeException exception) {
+            giveBackFlashSaleStocks(grants.values());
+            throw exception;
+        }
+        return grants;
+    }
 
-        int remainingStockCount = product.getRemainingStockCount() - quantity;
-        product.setRemainingStockCount(remainingStockCount);
+    /**
+     * Gives back the stocks of the grants acquired through {@link #acquireFlashSaleStocks(Map)},
+     * except the ones already claimed by a committed reservation
+     *
+     * @param grants are the grants acquired
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void giveBackFlashSaleStocks(Collection<FlashSaleGrant> grants) {
+        grants.forEach(flashSaleService::giveBack);
+    }
+
+    /**
+     * Reserves stocks of the product the same way as {@link #reserveStockForProduct(Long, Integer)}, but tells whether
+     * they are reserved instead of throwing {@link OutOfStockException}. Meant for the callers that carry on when there
+     * aren't enough stocks, e.g. a payment already captured, since an exception leaving this service marks
+     * the surrounding transaction rollback-only even when the caller catches it.
+     *
+     * @param productId is the id of the product you want to reserve some stocks
+     * @param quantity is the amount you want to reserve
+     * @return whether the stocks are reserved, false when the product doesn't have enough stocks or doesn't exist
+     */
+    public boolean tryReserveStockForProduct(Long productId, Integer quantity) {
+        if (soldOutCache.isSoldOut(productId)) {
+            return false;
+        }
+        long restockSnapshot = soldOutCache.snapshot();
+        ProductReservationTerms terms = productRepository.findReservationTermsById(productId);
+        return terms != null && takeStocks(productId, terms, quantity, restockSnapshot);
     }
 
     /**
      * Releases the reserved stocks for the given amount
      * Any released stocks will increase the {@link Product#getRemainingStockCount()} of the product
-     * so that it's atomic.
-     * The product is locked for update so that no other process / threads could read false information
+     * through the configured {@link StockReservationStrategy} so that it's atomic.
      *
      * @param productId is the id of the product you want to release the reserved stocks
      * @param quantity is the amount you want to release
      */
     public void releaseReservedStockForProduct(Long productId, Integer quantity) {
-        Product product = entityManager.find(Product.class, productId, LockModeType.PESSIMISTIC_WRITE);
-        int stockCount = product.getRemainingStockCount() + quantity;
-        product.setRemainingStockCount(stockCount);
+        ProductReservationTerms terms = productRepository.findReservationTermsById(productId);
+        if (terms != null && terms.getStockShardCount() > 1) {
+            stockShardService.release(productId, terms.getStockShardCount(), quantity);
+        } else if (terms != null && isFlashSale(terms)) {
+            flashSaleService.release(productId, quantity);
+        } else {
+            stockReservationStrategy.release(productId, quantity);
+        }
+        soldOutCache.restocked(productId);
+    }
+
+    private boolean takeStocks(Long productId, ProductReservationTerms terms, Integer quantity, long restockSnapshot) {
+        boolean reserved;
+        if (terms.getStockShardCount() > 1) {
+            reserved = stockShardService.reserve(productId, terms.getStockShardCount(), quantity);
+        } else if (isFlashSale(terms)) {
+            reserved = flashSaleService.reserve(productId, quantity);
+        } else {
+            reserved = stockReservationStrategy.reserve(productId, quantity);
+        }
+        if (!reserved && findProduct(productId).getRemainingStockCount() == 0) {
+            soldOutCache.markSoldOut(productId, restockSnapshot);
+        }
+        return reserved;
+    }
+
+    /**
+     * Releases the reserved stocks of many products, see {@link #releaseReservedStockForProduct(Long, Integer)}.
+     * The terms of the products are read with a single query and the stocks kept in the product records
+     * are given back with a single update when the configured {@link StockReservationStrategy} supports it.
+     *
+     * @param quantities are the amounts you want to release per product id
+     */
+    public void releaseReservedStocks(Map<Long, Integer> quantities) {
+        if (quantities.isEmpty()) {
+            return;
+        }
+        Map<Long, Integer> strategyQuantities = new TreeMap<>();
+        for (ProductReservationTerms terms : productRepository.findReservationTermsByIdIn(quantities.keySet())) {
+            Integer quantity = quantities.get(terms.getId());
+            if (terms.getStockShardCount() > 1) {
+                stockShardService.release(terms.getId(), terms.getStockShardCount(), quantity);
+            } else if (isFlashSale(terms)) {
+                flashSaleService.release(terms.getId(), quantity);
+            } else {
+                strategyQuantities.put(terms.getId(), quantity);
+            }
+        }
+        stockReservationStrategy.releaseAll(strategyQuantities);
+        quantities.keySet().forEach(soldOutCache::restocked);
+    }
+
+    /**
+     * The flash sale queues take the stocks from the product records,
+     * so they are skipped when the stocks are kept in memory instead
+     */
+    private boolean isFlashSale(ProductReservationTerms terms) {
+        return Boolean.TRUE.equals(terms.getFlashSale()) && !InMemoryStockReservationStrategy.NAME.equals(stockReservationStrategy.getName());
     }
 }
@@ -0,0 +1,197 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.RevenueRollup;
+import com.dolap.challenge.model.RevenueBucket;
+import com.dolap.challenge.repository.RevenueRollupRepository;
+import com.dolap.challenge.util.TransactionCallbacks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the revenue rollups, see {@link RevenueRollup}, up to date as the payments are made.
+ * Every payment is added to its minute, hour and day buckets in memory and the collected changes are
+ * added to the rollup table in periodic batches, so a payment costs no extra query and a revenue question
+ * reads one row per bucket however many payments there are.
+ *
+ * The changes not flushed yet are lost if the app crashes, so the rollups may miss the payments of the last flush interval.
+ */
+@Service
+public class RevenueRollupService {
+
+    private Logger logger = LoggerFactory.getLogger(RevenueRollupService.class);
+
+    private RevenueRollupRepository revenueRollupRepository;
+    private TransactionTemplate transactionTemplate;
+
+    private final Map<BucketKey, Total> pendingTotals = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a RevenueRollupService
+     *
+     * @param revenueRollupRepository the interface used to store and read the rollups
+     * @param transactionManager used to write the changes collected in a single transaction
+     */
+    public RevenueRollupService(RevenueRollupRepository revenueRollupRepository, PlatformTransactionManager transactionManager) {
+        this.revenueRollupRepository = revenueRollupRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Adds a payment to the buckets of the product, once the surrounding transaction commits if there's one
+     *
+     * @param productId is the id of the product, {@link RevenueRollup#ALL_PRODUCTS} for the totals
+     * @param amount is the amount paid
+     * @param paidAt is when the payment is made
+     */
+    public void record(Long productId, BigDecimal amount, LocalDateTime paidAt) {
+        Runnable add = () -> {
+            for (RevenueRollup.Granularity granularity : RevenueRollup.Granularity.values()) {
+                pendingTotals.merge(new BucketKey(productId, granularity, granularity.bucketStart(paidAt)),
+                        new Total(1, amount), Total::plus);
+            }
+        };
+        TransactionCallbacks.afterCommit(add);
+    }
+
+    /**
+     * Reads the buckets of the product in the given range, including the changes not flushed yet.
+     * The buckets without any payments are left out.
+     *
+     * @param productId is the id of the product, {@link RevenueRollup#ALL_PRODUCTS} for the totals
+     * @param granularity is the size of the buckets
+     * @param from is the inclusive start of the range, rounded down to the bucket it falls into
+     * @param to is the exclusive end of the range
+     * @return the buckets in ascending time order
+     */
+    public List<RevenueBucket> getBuckets(Long productId, RevenueRollup.Granularity granularity, LocalDateTime from, LocalDateTime to) {
+        LocalDateTime bucketFrom = granularity.bucketStart(from);
+        Map<LocalDateTime, Total> buckets = new TreeMap<>();
+        for (RevenueRollup rollup : revenueRollupRepository.findBuckets(productId, granularity, bucketFrom, to)) {
+            buckets.put(rollup.getBucketStart(), new Total(rollup.getPaymentCount(), rollup.getRevenue()));
+        }
+        pendingTotals.forEach((key, total) -> {
+            if (key.productId.equals(productId) && key.granularity == granularity
+                    && !key.bucketStart.isBefore(bucketFrom) && key.bucketStart.isBefore(to)) {
+                buckets.merge(key.bucketStart, total, Total::plus);
+            }
+        });
+
+        List<RevenueBucket> result = new ArrayList<>(buckets.size());
+        buckets.forEach((bucketStart, total) -> result.add(new RevenueBucket(bucketStart, total.paymentCount, total.revenue)));
+        return result;
+    }
+
+    /**
+     * Adds the changes collected since the last flush to the rollup table in a single transaction.
+     * If it fails, e.g. another instance of the app creates the same bucket at the same time,
+     * the changes are kept and retried with the next flush.
+     */
+    @Scheduled(fixedDelayString = "${revenue.rollup.flush-interval-millis}")
+    public void flush() {
+        Map<BucketKey, Total> totals = new TreeMap<>();
+        for (BucketKey key : new ArrayList<>(pendingTotals.keySet())) {
+            Total total = pendingTotals.remove(key);
+            if (total != null) {
+                totals.put(key, total);
+            }
+        }
+        if (totals.isEmpty()) {
+            return;
+        }
+
+        try {
+            // keys in the same order on every instance, so the concurrent flushes never deadlock
+            transactionTemplate.execute(status -> {
+                totals.forEach(this::addToTable);
+                return null;
+            });
+        } catch (RuntimeException exception) {
+            logger.error("Revenue rollups could not be written to the database, will retry", exception);
+            totals.forEach((key, total) -> pendingTotals.merge(key, total, Total::plus));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        flush();
+    }
+
+    private void addToTable(BucketKey key, Total total) {
+        int updated = revenueRollupRepository.add(key.productId, key.granularity, key.bucketStart, total.paymentCount, total.revenue);
+        if (updated == 0) {
+            RevenueRollup rollup = new RevenueRollup();
+            rollup.setProductId(key.productId);
+            rollup.setGranularity(key.granularity);
+            rollup.setBucketStart(key.bucketStart);
+            rollup.setPaymentCount(total.paymentCount);
+            rollup.setRevenue(total.revenue);
+            revenueRollupRepository.save(rollup);
+        }
+    }
+
+    private static class BucketKey implements Comparable<BucketKey> {
+        private final Long productId;
+        private final RevenueRollup.Granularity granularity;
+        private final LocalDateTime bucketStart;
+
+        private BucketKey(Long productId, RevenueRollup.Granularity granularity, LocalDateTime bucketStart) {
+            this.productId = productId;
+            this.granularity = granularity;
+            this.bucketStart = bucketStart;
+        }
+
+        @Override
+        public int compareTo(BucketKey other) {
+            int result = productId.compareTo(other.productId);
+            if (result == 0) {
+                result = granularity.compareTo(other.granularity);
+            }
+            return result != 0 ? result : bucketStart.compareTo(other.bucketStart);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            BucketKey other = (BucketKey) o;
+            return productId.equals(other.productId) && granularity == other.granularity && bucketStart.equals(other.bucketStart);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(productId, granularity, bucketStart);
+        }
+    }
+
+    private static class Total {
+        private final long paymentCount;
+        private final BigDecimal revenue;
+
+        private Total(long paymentCount, BigDecimal revenue) {
+            this.paymentCount = paymentCount;
+            this.revenue = revenue;
+        }
+
+        private Total plus(Total other) {
+            return new Total(paymentCount + other.paymentCount, revenue.add(other.revenue));
+        }
+    }
+}
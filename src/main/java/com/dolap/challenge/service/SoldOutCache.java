@@ -0,0 +1,98 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.util.TransactionCallbacks;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the products that are sold out, so the payments for them are rejected before any transaction is opened.
+ * A product is marked sold out when a reservation finds no stocks left, and unmarked once stocks are given back
+ * to it or it's updated.
+ *
+ * A reservation that read the stocks before a restock committed must not mark the product sold out after it,
+ * so the restocks are numbered and the mark is skipped when the product was restocked since the reservation started.
+ * The stocks can also change where this instance doesn't see it, e.g. on the other instances of the app,
+ * so a mark only lasts for {@code sold-out-ttl-millis}.
+ */
+@Service
+public class SoldOutCache {
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong restocks = new AtomicLong();
+    private long ttlMillis;
+
+    /**
+     * Constructs a SoldOutCache
+     *
+     * @param ttlMillis is how long a product is taken as sold out without checking its stocks again
+     */
+    public SoldOutCache(@Value("${stock.reservation.sold-out-ttl-millis}") long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param productId is the id of the product
+     * @return whether the product is known to be sold out
+     */
+    public boolean isSoldOut(Long productId) {
+        Entry entry = entries.get(productId);
+        return entry != null && System.currentTimeMillis() < entry.soldOutUntil;
+    }
+
+    /**
+     * Takes a snapshot of the restocks before the stocks are read, to be passed to {@link #markSoldOut}
+     *
+     * @return the number of the last restock
+     */
+    public long snapshot() {
+        return restocks.get();
+    }
+
+    /**
+     * Marks the product sold out unless it's restocked after the snapshot
+     *
+     * @param productId is the id of the product found with no stocks
+     * @param snapshot is taken with {@link #snapshot()} before the stocks are read
+     */
+    public void markSoldOut(Long productId, long snapshot) {
+        entries.compute(productId, (id, entry) -> {
+            Entry markedEntry = entry == null ? new Entry() : entry;
+            if (markedEntry.restock <= snapshot) {
+                markedEntry.soldOutUntil = System.currentTimeMillis() + ttlMillis;
+            }
+            return markedEntry;
+        });
+    }
+
+    /**
+     * Unmarks the product once the current transaction commits, call it whenever stocks are given back to the product
+     *
+     * @param productId is the id of the product
+     */
+    public void restocked(Long productId) {
+        TransactionCallbacks.afterCommit(() -> entries.compute(productId, (id, entry) -> {
+            Entry restockedEntry = entry == null ? new Entry() : entry;
+            restockedEntry.restock = restocks.incrementAndGet();
+            restockedEntry.soldOutUntil = 0;
+            return restockedEntry;
+        }));
+    }
+
+    /**
+     * Forgets the product once the current transaction commits, e.g. when it's deleted
+     *
+     * @param productId is the id of the product
+     */
+    public void evict(Long productId) {
+        TransactionCallbacks.afterCommit(() -> entries.remove(productId));
+    }
+
+    private static class Entry {
+        private long restock;
+        private long soldOutUntil;
+    }
+}
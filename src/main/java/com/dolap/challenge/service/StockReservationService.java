@@ -0,0 +1,243 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.FlashSaleGrant;
+import com.dolap.challenge.entity.PaymentSaga;
+import com.dolap.challenge.entity.StockReservation;
+import com.dolap.challenge.exception.OutOfStockException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.model.PaymentItem;
+import com.dolap.challenge.repository.StockReservationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+@Service
+@Transactional
+public class StockReservationService {
+
+    private Logger logger = LoggerFactory.getLogger(StockReservationService.class);
+
+    private ProductService productService;
+    private StockReservationRepository stockReservationRepository;
+    private RevenueRollupService revenueRollupService;
+    private long ttlMillis;
+    private int sweepBatchSize;
+
+    /**
+     * Constructs a StockReservationService that keeps a ledger of the stocks held for the payments in progress
+     *
+     * @param productService the interface used to take the stocks from and give them back to the products
+     * @param stockReservationRepository the interface used to record the reservations
+     * @param revenueRollupService the interface used to add the confirmed reservations to the revenue rollups of the products
+     * @param ttlMillis is how long a reservation holds the stocks unless it's confirmed or released
+     * @param sweepBatchSize is the maximum number of expired reservations returned back to the stocks at once
+     */
+    public StockReservationService(ProductService productService, StockReservationRepository stockReservationRepository,
+                                   RevenueRollupService revenueRollupService,
+                                   @Value("${stock.reservation.ttl-millis}") long ttlMillis,
+                                   @Value("${stock.reservation.sweep-batch-size}") int sweepBatchSize) {
+        this.productService = productService;
+        this.stockReservationRepository = stockReservationRepository;
+        this.revenueRollupService = revenueRollupService;
+        this.ttlMillis = ttlMillis;
+        this.sweepBatchSize = sweepBatchSize;
+    }
+
+    /**
+     * Takes the stocks from the product and records a reservation that expires after the configured ttl
+     * together with the current price of the product
+     *
+     * @param productId is the id of the product you want to reserve some stocks
+     * @param quantity is the amount you want to reserve
+     * @return the reservation recorded
+     * @throws OutOfStockException when trying to reserve more than what's in the stocks
+     */
+    public StockReservation reserve(Long productId, Integer quantity) throws OutOfStockException {
+        return reserve(productId, quantity, null);
+    }
+
+    private StockReservation reserve(Long productId, Integer quantity, FlashSaleGrant flashSaleGrant) {
+        BigDecimal unitPrice = productService.reserveStockForProduct(productId, quantity, flashSaleGrant);
+
+        StockReservation reservation = new StockReservation();
+        reservation.setProductId(productId);
+        reservation.setQuantity(quantity);
+        reservation.setUnitPrice(unitPrice);
+        reservation.setExpiresAt(LocalDateTime.now().plusNanos(ttlMillis * 1_000_000));
+        reservation.setState(StockReservation.State.RESERVED);
+        return stockReservationRepository.save(reservation);
+    }
+
+    /**
+     * Reserves all the lines of the cart in a single transaction, so either all of them are reserved or none.
+     * The lines of the same product are merged and the products are reserved in ascending id order,
+     * so two carts sharing some products never lock them in the opposite order and deadlock.
+     *
+     * @param items are the products and quantities in the cart
+     * @return the reservations recorded, one per product
+     * @throws OutOfStockException when any of the products doesn't have enough stocks
+     */
+    public List<StockReservation> reserveAll(List<PaymentItem> items) throws OutOfStockException {
+        return reserveAll(items, Collections.emptyMap());
+    }
+
+    /**
+     * Same as {@link #reserveAll(List)}, but the products on flash sale are reserved by claiming their grants
+     * acquired through {@link #acquireFlashSaleStocks(List)} instead of waiting for their queues in this transaction
+     *
+     * @param items are the products and quantities in the cart
+     * @param flashSaleGrants are the grants acquired per product id
+     * @return the reservations recorded, one per product
+     * @throws OutOfStockException when any of the products doesn't have enough stocks
+     */
+    public List<StockReservation> reserveAll(List<PaymentItem> items, Map<Long, FlashSaleGrant> flashSaleGrants) throws OutOfStockException {
+        List<StockReservation> reservations = new ArrayList<>();
+        mergeQuantities(items).forEach((productId, quantity) -> reservations.add(reserve(productId, quantity, flashSaleGrants.get(productId))));
+        return reservations;
+    }
+
+    /**
+     * Waits for the queues of the products on flash sale in the cart outside of any transaction,
+     * so the payment holds no connection while queued, see {@link ProductService#acquireFlashSaleStocks(Map)}
+     *
+     * @param items are the products and quantities in the cart
+     * @return the grants acquired per product id
+     * @throws OutOfStockException when any of the products on flash sale doesn't have enough stocks
+     * @throws ServiceBusyException when too many reservations are waiting for any of them or the wait times out
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Map<Long, FlashSaleGrant> acquireFlashSaleStocks(List<PaymentItem> items) throws OutOfStockException, ServiceBusyException {
+        return productService.acquireFlashSaleStocks(mergeQuantities(items));
+    }
+
+    /**
+     * Gives back the grants left unclaimed, e.g. when the reservations couldn't be recorded
+     *
+     * @param flashSaleGrants are the grants acquired
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void giveBackFlashSaleStocks(Collection<FlashSaleGrant> flashSaleGrants) {
+        productService.giveBackFlashSaleStocks(flashSaleGrants);
+    }
+
+    /**
+     * Confirms the reservation once the payment succeeds, so the stocks are never given back.
+     * If the reservation has already expired, the stocks are taken from the product once more.
+     * The total price of the reservation is added to the revenue rollups of the product.
+     *
+     * @param reservation is the reservation you want to confirm
+     */
+    public void confirm(StockReservation reservation) {
+        int updated = stockReservationRepository.updateState(reservation.getId(), StockReservation.State.RESERVED, StockReservation.State.CONFIRMED);
+        if (updated == 0) {
+            logger.warn("Reservation {} expired before it's confirmed, reserving the stocks again", reservation.getId());
+            // the payment is captured already, so it's confirmed even when the stocks can't be taken again
+            if (!productService.tryReserveStockForProduct(reservation.getProductId(), reservation.getQuantity())) {
+                logger.error("Product {} is oversold by {}", reservation.getProductId(), reservation.getQuantity());
+            }
+        }
+        revenueRollupService.record(reservation.getProductId(), reservation.getTotalPrice(), LocalDateTime.now());
+    }
+
+    /**
+     * Releases the reservation and gives the stocks back to the product,
+     * unless the reservation has already expired and the stocks are already given back.
+     *
+     * @param reservation is the reservation you want to release
+     */
+    public void release(StockReservation reservation) {
+        int updated = stockReservationRepository.updateState(reservation.getId(), StockReservation.State.RESERVED, StockReservation.State.RELEASED);
+        if (updated > 0) {
+            productService.releaseReservedStockForProduct(reservation.getProductId(), reservation.getQuantity());
+        }
+    }
+
+    /**
+     * Confirms all the reservations of a cart, see {@link #confirm(StockReservation)}
+     *
+     * @param reservations are the reservations you want to confirm
+     */
+    public void confirmAll(List<StockReservation> reservations) {
+        reservations.forEach(this::confirm);
+    }
+
+    /**
+     * Releases all the reservations of a cart with a single update and gives the stocks back to the products,
+     * except the reservations that have already expired
+     *
+     * @param reservations are the reservations you want to release
+     */
+    public void releaseAll(List<StockReservation> reservations) {
+        List<Long> ids = reservations.stream().map(StockReservation::getId).collect(Collectors.toList());
+        List<StockReservation> reserved = stockReservationRepository.findAllByIdInAndState(ids, StockReservation.State.RESERVED);
+        if (reserved.isEmpty()) {
+            return;
+        }
+        stockReservationRepository.updateState(reserved.stream().map(StockReservation::getId).collect(Collectors.toList()),
+                StockReservation.State.RELEASED);
+        giveStocksBack(reserved);
+    }
+
+    /**
+     * Gives the stocks of the expired reservations back to their products.
+     * The quantities are summed up per product so that each product is updated once per sweep,
+     * and the products are updated in ascending id order to avoid deadlocks with the other sweeps and carts.
+     * The reservations of the payments in the bank call are skipped, they may be charged already
+     * and are confirmed or released once the bank or the recovery answers, see {@link PaymentSagaService}.
+     *
+     * @return the number of reservations expired
+     */
+    @Scheduled(fixedDelayString = "${stock.reservation.sweep-interval-millis}")
+    public int expireReservations() {
+        List<StockReservation> expired = stockReservationRepository.findExpired(StockReservation.State.RESERVED,
+                PaymentSaga.State.CHARGING, LocalDateTime.now(), PageRequest.of(0, sweepBatchSize));
+        if (expired.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> ids = expired.stream().map(StockReservation::getId).collect(Collectors.toList());
+        int productCount = giveStocksBack(expired);
+        stockReservationRepository.updateState(ids, StockReservation.State.EXPIRED);
+
+        logger.info("{} expired reservations are returned back to {} products", ids.size(), productCount);
+        return ids.size();
+    }
+
+    /**
+     * Merges the lines of the same product, in ascending product id order
+     */
+    private Map<Long, Integer> mergeQuantities(List<PaymentItem> items) {
+        Map<Long, Integer> quantities = new TreeMap<>();
+        items.forEach(item -> quantities.merge(item.getProductId(), item.getQuantity(), Integer::sum));
+        return quantities;
+    }
+
+    /**
+     * Sums up the quantities of the reservations per product and gives them back in ascending product id order,
+     * with a single update for the products whose stocks are kept in their records
+     *
+     * @param reservations are the reservations whose stocks are given back
+     * @return the number of products updated
+     */
+    private int giveStocksBack(List<StockReservation> reservations) {
+        Map<Long, Integer> quantities = new TreeMap<>();
+        reservations.forEach(reservation -> quantities.merge(reservation.getProductId(), reservation.getQuantity(), Integer::sum));
+        productService.releaseReservedStocks(quantities);
+        return quantities.size();
+    }
+}
@@ -0,0 +1,61 @@
+package com.dolap.challenge.service;
+
+import java.util.Map;
+
+/**
+ * Defines how the stocks of a product are taken and given back.
+ * The strategy used is selected with the {@code stock.reservation.strategy} property.
+ */
+public interface StockReservationStrategy {
+
+    /**
+     * @return the name of the strategy used in the configuration
+     */
+    String getName();
+
+    /**
+     * Decreases the stocks of the product by the given quantity if there are enough stocks
+     *
+     * @param productId is the id of the product you want to reserve some stocks
+     * @param quantity is the amount you want to reserve
+     * @return true when the stocks are reserved, false when there are not enough stocks or there's no such product
+     */
+    boolean reserve(Long productId, Integer quantity);
+
+    /**
+     * Increases the stocks of the product by the given quantity
+     *
+     * @param productId is the id of the product you want to release the reserved stocks
+     * @param quantity is the amount you want to release
+     */
+    void release(Long productId, Integer quantity);
+
+    /**
+     * Increases the stocks of many products, each by its own quantity.
+     * The strategies that can do it with a single statement do so, the others release the products one by one.
+     *
+     * @param quantities are the amounts you want to release per product id, in ascending product id order
+     */
+    default void releaseAll(Map<Long, Integer> quantities) {
+        quantities.forEach(this::release);
+    }
+
+    /**
+     * Called when the stocks of the product are overwritten, e.g. by the merchant updating the product
+     *
+     * @param productId is the id of the product
+     * @param remainingStockCount is the new stocks of the product
+     * @return true when the strategy applies the new value itself, false when it's to be written to the product record
+     */
+    default boolean overwrite(Long productId, Integer remainingStockCount) {
+        return false;
+    }
+
+    /**
+     * Called when the product is deleted, so any state kept for the product can be dropped
+     *
+     * @param productId is the id of the product
+     */
+    default void evict(Long productId) {
+    }
+}
@@ -0,0 +1,125 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.entity.ProductStockShard;
+import com.dolap.challenge.repository.ProductStockShardRepository;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the stocks of the hot products split into several rows, see {@link ProductStockShard}.
+ * Each reservation starts from a random shard, so the concurrent reservations are spread over
+ * all the shards and the lock throughput of the product scales with its shard count.
+ */
+@Service
+@Transactional
+public class StockShardService {
+
+    private ProductStockShardRepository productStockShardRepository;
+
+    public StockShardService(ProductStockShardRepository productStockShardRepository) {
+        this.productStockShardRepository = productStockShardRepository;
+    }
+
+    /**
+     * Splits the stocks of the product evenly into the given number of shards, replacing the current ones.
+     * With a single shard the stocks stay on the product record and no shards are kept.
+     *
+     * @param productId is the id of the product
+     * @param shardCount is the number of shards the stocks are split into
+     * @param remainingStockCount is the total stocks of the product
+     */
+    public void distribute(Long productId, int shardCount, int remainingStockCount) {
+        productStockShardRepository.deleteAllByProductId(productId);
+        if (shardCount <= 1) {
+            return;
+        }
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+            ProductStockShard shard = new ProductStockShard();
+            shard.setProductId(productId);
+            shard.setShardIndex(shardIndex);
+            shard.setRemainingStockCount(remainingStockCount / shardCount + (shardIndex < remainingStockCount % shardCount ? 1 : 0));
+            productStockShardRepository.save(shard);
+        }
+    }
+
+    /**
+     * Takes the stocks from a random shard that has enough of them, trying the other shards one by one.
+     * When no single shard has enough, the stocks are collected from several shards locked in ascending order.
+     *
+     * @param productId is the id of the product
+     * @param shardCount is the number of shards of the product
+     * @param quantity is the amount you want to reserve
+     * @return true when the stocks are reserved, false when the product doesn't have enough stocks in total
+     */
+    public boolean reserve(Long productId, int shardCount, int quantity) {
+        int firstShardIndex = ThreadLocalRandom.current().nextInt(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            if (productStockShardRepository.decreaseStock(productId, (firstShardIndex + i) % shardCount, quantity) > 0) {
+                return true;
+            }
+        }
+
+        List<ProductStockShard> shards = productStockShardRepository.findAllByProductIdForUpdate(productId);
+        int remainingStockCount = shards.stream().mapToInt(ProductStockShard::getRemainingStockCount).sum();
+        if (remainingStockCount < quantity) {
+            return false;
+        }
+        int remainingQuantity = quantity;
+        for (ProductStockShard shard : shards) {
+            int taken = Math.min(shard.getRemainingStockCount(), remainingQuantity);
+            shard.setRemainingStockCount(shard.getRemainingStockCount() - taken);
+            remainingQuantity -= taken;
+            if (remainingQuantity == 0) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the stocks back to a random shard of the product
+     *
+     * @param productId is the id of the product
+     * @param shardCount is the number of shards of the product
+     * @param quantity is the amount you want to release
+     */
+    public void release(Long productId, int shardCount, int quantity) {
+        productStockShardRepository.increaseStock(productId, ThreadLocalRandom.current().nextInt(shardCount), quantity);
+    }
+
+    /**
+     * Sums up the shards of the sharded products among the given ones with a single query,
+     * so that {@link Product#getRemainingStockCount()} returns the total stocks of them
+     *
+     * @param products are the products read
+     */
+    public void sumShards(List<Product> products) {
+        List<Long> shardedProductIds = products.stream()
+                .filter(product -> product.getStockShardCount() > 1)
+                .map(Product::getId)
+                .collect(Collectors.toList());
+        if (shardedProductIds.isEmpty()) {
+            return;
+        }
+        Map<Long, Integer> shardedStockCounts = productStockShardRepository.findAllByProductIdIn(shardedProductIds).stream()
+                .collect(Collectors.groupingBy(ProductStockShard::getProductId, Collectors.summingInt(ProductStockShard::getRemainingStockCount)));
+        products.stream()
+                .filter(product -> product.getStockShardCount() > 1)
+                .forEach(product -> product.setShardedStockCount(shardedStockCounts.getOrDefault(product.getId(), 0)));
+    }
+
+    /**
+     * Drops the shards of the product, e.g. when it's deleted
+     *
+     * @param productId is the id of the product
+     */
+    public void delete(Long productId) {
+        productStockShardRepository.deleteAllByProductId(productId);
+    }
+}
@@ -0,0 +1,437 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.exception.ProductNotFoundException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.exception.WaitingRoomTicketException;
+import com.dolap.challenge.model.ProductReservationTerms;
+import com.dolap.challenge.model.WaitingRoomTicket;
+import com.dolap.challenge.repository.ProductRepository;
+import com.dolap.challenge.util.TransactionCallbacks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Virtual waiting room in front of the payments of the products on flash sale.
+ * The buyers take a ticket, wait in a queue per product and are admitted in arrival order at
+ * {@code admissions-per-second} over all the products, which should match what the bank can take.
+ * The products are admitted round robin, so a product with a long queue doesn't hold the others back.
+ * An admitted ticket pays for its product once within {@code admission-ttl-millis}, the payments of the products
+ * on flash sale are rejected without one. The buyers follow their place in the queue over Server-Sent Events.
+ * A waiting ticket whose stream ends, e.g. the buyer closed the page, is dropped from the queue unless
+ * it's followed or polled again within {@code admission-ttl-millis}.
+ *
+ * The queues are kept in memory, so the waiting room is only for a single instance.
+ * So are the ids of the products on flash sale the payments are checked against, read with a single query
+ * and read again once the products are changed, see {@link #flashSaleChanged()}.
+ */
+@Service
+public class WaitingRoomService {
+
+    public static final String POSITION_EVENT_NAME = "position";
+    public static final String ADMITTED_EVENT_NAME = "admitted";
+
+    private Logger logger = LoggerFactory.getLogger(WaitingRoomService.class);
+
+    private ProductRepository productRepository;
+    private Messages messages;
+    private double admissionsPerSecond;
+    private double admissionsPerTick;
+    private int maxWaiting;
+    private long admissionTtlMillis;
+    private long positionUpdateMillis;
+    private long sseTimeoutMillis;
+
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final Map<Long, Room> rooms = new ConcurrentHashMap<>();
+    private final AtomicLong flashSaleGeneration = new AtomicLong();
+    private volatile Set<Long> flashSaleProductIds;
+    private double allowance;
+    private long lastPositionUpdate;
+
+    /**
+     * Constructs a WaitingRoomService
+     *
+     * @param productRepository the interface used to check whether the products are on flash sale
+     * @param messages the interface we used to pull the relevant messages depending on the locale set
+     * @param admissionsPerSecond is the number of tickets admitted per second over all the products
+     * @param tickMillis is how often the tickets are admitted
+     * @param maxWaiting is the maximum number of tickets waiting for a product
+     * @param admissionTtlMillis is how long an admitted ticket can be paid with
+     * @param positionUpdateMillis is how often the buyers are sent their place in the queue
+     * @param sseTimeoutMillis is how long a buyer can follow the queue over a single connection
+     */
+    public WaitingRoomService(ProductRepository productRepository, Messages messages,
+                              @Value("${payment.waiting-room.admissions-per-second}") double admissionsPerSecond,
+                              @Value("${payment.waiting-room.tick-millis}") long tickMillis,
+                              @Value("${payment.waiting-room.max-waiting}") int maxWaiting,
+                              @Value("${payment.waiting-room.admission-ttl-millis}") long admissionTtlMillis,
+                              @Value("${payment.waiting-room.position-update-millis}") long positionUpdateMillis,
+                              @Value("${payment.waiting-room.sse-timeout-millis}") long sseTimeoutMillis) {
+        this.productRepository = productRepository;
+        this.messages = messages;
+        this.admissionsPerSecond = admissionsPerSecond;
+        this.admissionsPerTick = admissionsPerSecond * tickMillis / 1000;
+        this.maxWaiting = maxWaiting;
+        this.admissionTtlMillis = admissionTtlMillis;
+        this.positionUpdateMillis = positionUpdateMillis;
+        this.sseTimeoutMillis = sseTimeoutMillis;
+    }
+
+    /**
+     * Puts the buyer in the queue of the product.
+     * The products that are not on flash sale don't have a queue, their tickets are admitted right away.
+     *
+     * @param productId is the id of the product the buyer wants to pay for
+     * @return the ticket and its place in the queue
+     * @throws ProductNotFoundException when there's no such product
+     * @throws ServiceBusyException when too many buyers are already waiting for the product
+     */
+    public WaitingRoomTicket join(Long productId) throws ProductNotFoundException, ServiceBusyException {
+        ProductReservationTerms terms = productRepository.findReservationTermsById(productId);
+        if (terms == null) {
+            throw new ProductNotFoundException(messages.get(ProductNotFoundException.PRODUCT_NOT_FOUND_EXCEPTION_MESSAGE_KEY));
+        }
+        Ticket ticket = new Ticket(UUID.randomUUID().toString(), productId);
+        if (!Boolean.TRUE.equals(terms.getFlashSale())) {
+            ticket.admittedUntil = System.currentTimeMillis() + admissionTtlMillis;
+        } else {
+            Room room = rooms.computeIfAbsent(productId, id -> new Room());
+            synchronized (room) {
+                if (room.waitingCount >= maxWaiting) {
+                    throw new ServiceBusyException(messages.get(ServiceBusyException.SERVICE_BUSY_EXCEPTION_MESSAGE_KEY),
+                            estimatedWaitSeconds(room.waitingCount));
+                }
+                ticket.sequence = ++room.issued;
+                room.waiting.offer(ticket);
+                room.waitingCount++;
+            }
+        }
+        tickets.put(ticket.id, ticket);
+        return toModel(ticket);
+    }
+
+    /**
+     * Retrieves the place of the ticket in the queue, for the clients that poll instead of following the events
+     *
+     * @param ticketId is the ticket returned by {@link #join}
+     * @return the ticket and its place in the queue
+     * @throws WaitingRoomTicketException when there's no such ticket, it's expired or used
+     */
+    public WaitingRoomTicket getTicket(String ticketId) throws WaitingRoomTicketException {
+        Ticket ticket = findTicket(ticketId);
+        // the buyer is back, so the ticket keeps its place
+        ticket.abandonedAt = 0;
+        return toModel(ticket);
+    }
+
+    /**
+     * Follows the place of the ticket in the queue. A {@value #POSITION_EVENT_NAME} event is sent right away and
+     * whenever the place changes, then an {@value #ADMITTED_EVENT_NAME} event once the ticket is admitted,
+     * and the stream is completed.
+     *
+     * @param ticketId is the ticket returned by {@link #join}
+     * @return the emitter of the events
+     * @throws WaitingRoomTicketException when there's no such ticket, it's expired or used
+     */
+    public SseEmitter subscribe(String ticketId) throws WaitingRoomTicketException {
+        Ticket ticket = findTicket(ticketId);
+        SseEmitter emitter = new SseEmitter(sseTimeoutMillis);
+        Runnable unsubscribe = () -> {
+            synchronized (ticket) {
+                if (ticket.emitter == emitter) {
+                    ticket.emitter = null;
+                    ticket.abandon();
+                }
+            }
+        };
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        synchronized (ticket) {
+            if (ticket.emitter != null) {
+                ticket.emitter.complete();
+            }
+            ticket.emitter = emitter;
+            ticket.abandonedAt = 0;
+            send(ticket);
+        }
+        return emitter;
+    }
+
+    /**
+     * Lets the payment in when it has an admitted ticket for every product on flash sale in it.
+     * The tickets are used up, so each of them pays once.
+     *
+     * @param ticketIds are the tickets sent with the payment, may be null
+     * @param productIds are the products paid for
+     * @throws WaitingRoomTicketException when a product on flash sale doesn't have an admitted ticket
+     */
+    public void enter(List<String> ticketIds, Collection<Long> productIds) throws WaitingRoomTicketException {
+        Set<Long> flashSaleProductIds = findFlashSaleProductIds();
+        List<Ticket> entered = new ArrayList<>();
+        for (Long productId : new TreeSet<>(productIds)) {
+            if (!flashSaleProductIds.contains(productId)) {
+                continue;
+            }
+            Ticket ticket = ticketIds == null ? null : ticketIds.stream()
+                    .map(String::trim)
+                    .map(tickets::get)
+                    .filter(candidate -> candidate != null && candidate.productId.equals(productId)
+                            && candidate.isAdmitted() && !candidate.isExpired() && candidate.used.compareAndSet(false, true))
+                    .findFirst()
+                    .orElse(null);
+            if (ticket == null) {
+                entered.forEach(enteredTicket -> enteredTicket.used.set(false));
+                throw new WaitingRoomTicketException(messages.get(WaitingRoomTicketException.WAITING_ROOM_TICKET_EXCEPTION_MESSAGE_KEY));
+            }
+            entered.add(ticket);
+        }
+        entered.forEach(ticket -> tickets.remove(ticket.id));
+    }
+
+    /**
+     * Reads the products on flash sale again once the current transaction commits,
+     * call it whenever a product is added, deleted or its flash sale flag may have changed
+     */
+    public void flashSaleChanged() {
+        TransactionCallbacks.afterCommit(() -> {
+            flashSaleGeneration.incrementAndGet();
+            flashSaleProductIds = null;
+        });
+    }
+
+    /**
+     * Admits the next tickets of the queues round robin, as many as the admission rate allows since the last tick.
+     * The rate isn't saved up while nobody is waiting, so a new crowd is still admitted at the same pace.
+     * The events are sent once the admissions are made, outside of the lock, so a slow subscriber holds nothing back.
+     */
+    @Scheduled(fixedRateString = "${payment.waiting-room.tick-millis}")
+    public void admit() {
+        List<Ticket> admitted = new ArrayList<>();
+        long now;
+        boolean updatePositions;
+        synchronized (this) {
+            allowance += admissionsPerTick;
+            boolean anyWaiting = true;
+            while (allowance >= 1 && anyWaiting) {
+                anyWaiting = false;
+                for (Room room : rooms.values()) {
+                    if (allowance < 1) {
+                        break;
+                    }
+                    Ticket ticket = room.admitNext();
+                    if (ticket != null) {
+                        allowance--;
+                        anyWaiting = true;
+                        admitted.add(ticket);
+                    }
+                }
+            }
+            if (!anyWaiting) {
+                allowance = Math.min(allowance, 1);
+            }
+
+            now = System.currentTimeMillis();
+            updatePositions = now - lastPositionUpdate >= positionUpdateMillis;
+            if (updatePositions) {
+                lastPositionUpdate = now;
+            }
+        }
+
+        admitted.forEach(this::send);
+        if (updatePositions) {
+            sendPositions();
+            dropAbandoned(now - admissionTtlMillis);
+            tickets.values().removeIf(Ticket::isExpired);
+        }
+    }
+
+    /**
+     * Reads the ids of the products on flash sale unless they are already read since the last change.
+     * The change number is read before the query, so the ids read while a change commits are read again next time.
+     */
+    private Set<Long> findFlashSaleProductIds() {
+        Set<Long> ids = flashSaleProductIds;
+        if (ids != null) {
+            return ids;
+        }
+        synchronized (flashSaleGeneration) {
+            ids = flashSaleProductIds;
+            if (ids == null) {
+                long generation = flashSaleGeneration.get();
+                ids = new HashSet<>(productRepository.findFlashSaleProductIds());
+                if (generation == flashSaleGeneration.get()) {
+                    flashSaleProductIds = ids;
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Sends the waiting tickets their new place in the queue, only to the ones that moved
+     */
+    private void sendPositions() {
+        for (Room room : rooms.values()) {
+            for (Ticket ticket : room.waiting) {
+                if (ticket.emitter != null && ticket.sentPosition != room.positionOf(ticket)) {
+                    send(ticket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the waiting tickets whose streams ended before the given time and weren't followed again since,
+     * so the buyers gone don't hold the places of the others
+     */
+    private void dropAbandoned(long abandonedBefore) {
+        for (Room room : rooms.values()) {
+            room.drop(ticket -> ticket.abandonedAt > 0 && ticket.abandonedAt < abandonedBefore)
+                    .forEach(ticket -> tickets.remove(ticket.id));
+        }
+    }
+
+    /**
+     * Sends the place of the ticket to its subscriber if it has one, completes the stream once it's admitted
+     */
+    private void send(Ticket ticket) {
+        synchronized (ticket) {
+            SseEmitter emitter = ticket.emitter;
+            if (emitter == null) {
+                return;
+            }
+            WaitingRoomTicket model = toModel(ticket);
+            try {
+                emitter.send(SseEmitter.event()
+                        .name(model.isAdmitted() ? ADMITTED_EVENT_NAME : POSITION_EVENT_NAME)
+                        .data(model, MediaType.APPLICATION_JSON));
+                ticket.sentPosition = model.getPosition();
+                if (model.isAdmitted()) {
+                    ticket.emitter = null;
+                    emitter.complete();
+                }
+            } catch (IOException | IllegalStateException exception) {
+                // the buyer is gone, the ticket keeps its place for a while in case they come back
+                logger.debug("Waiting room ticket {} could not be sent", ticket.id, exception);
+                ticket.emitter = null;
+                ticket.abandon();
+            }
+        }
+    }
+
+    private Ticket findTicket(String ticketId) {
+        Ticket ticket = tickets.get(ticketId);
+        if (ticket == null || ticket.isExpired() || ticket.used.get()) {
+            throw new WaitingRoomTicketException(messages.get(WaitingRoomTicketException.WAITING_ROOM_TICKET_EXCEPTION_MESSAGE_KEY));
+        }
+        return ticket;
+    }
+
+    private WaitingRoomTicket toModel(Ticket ticket) {
+        if (ticket.isAdmitted()) {
+            return new WaitingRoomTicket(ticket.id, ticket.productId, 0, true, 0, ticket.admittedUntil);
+        }
+        long position = rooms.get(ticket.productId).positionOf(ticket);
+        return new WaitingRoomTicket(ticket.id, ticket.productId, position, false, estimatedWaitSeconds(position), null);
+    }
+
+    private long estimatedWaitSeconds(long position) {
+        return (long) Math.ceil(position / admissionsPerSecond);
+    }
+
+    /**
+     * Queue of the tickets waiting for a product. The tickets are numbered in arrival order,
+     * so the place of a ticket is its number minus the number of the last admitted one,
+     * at most that many once the tickets ahead of it are dropped.
+     */
+    private class Room {
+        private final Queue<Ticket> waiting = new ConcurrentLinkedQueue<>();
+        private long issued;
+        private int waitingCount;
+        private volatile long admitted;
+
+        private synchronized Ticket admitNext() {
+            Ticket ticket = waiting.poll();
+            if (ticket != null) {
+                ticket.admittedUntil = System.currentTimeMillis() + admissionTtlMillis;
+                admitted = ticket.sequence;
+                waitingCount--;
+            }
+            return ticket;
+        }
+
+        private synchronized List<Ticket> drop(Predicate<Ticket> condition) {
+            List<Ticket> dropped = new ArrayList<>();
+            for (Iterator<Ticket> iterator = waiting.iterator(); iterator.hasNext(); ) {
+                Ticket ticket = iterator.next();
+                if (condition.test(ticket)) {
+                    iterator.remove();
+                    dropped.add(ticket);
+                }
+            }
+            waitingCount -= dropped.size();
+            return dropped;
+        }
+
+        private long positionOf(Ticket ticket) {
+            return Math.max(1, ticket.sequence - admitted);
+        }
+    }
+
+    private class Ticket {
+        private final String id;
+        private final Long productId;
+        private final AtomicBoolean used = new AtomicBoolean();
+        private long sequence;
+        private volatile long admittedUntil;
+        private volatile SseEmitter emitter;
+        private long sentPosition = -1;
+
+        /**
+         * Time the stream of the waiting ticket ended at, 0 while it's followed or polled
+         */
+        private volatile long abandonedAt;
+
+        private Ticket(String id, Long productId) {
+            this.id = id;
+            this.productId = productId;
+        }
+
+        private boolean isAdmitted() {
+            return admittedUntil > 0;
+        }
+
+        private boolean isExpired() {
+            return isAdmitted() && System.currentTimeMillis() > admittedUntil;
+        }
+
+        private void abandon() {
+            if (!isAdmitted()) {
+                abandonedAt = System.currentTimeMillis();
+            }
+        }
+    }
+}
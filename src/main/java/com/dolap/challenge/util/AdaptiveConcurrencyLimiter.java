@@ -0,0 +1,97 @@
+package com.dolap.challenge.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Concurrency limit that adapts to the observed latency with additive increase and multiplicative decrease (AIMD).
+ * While the requests complete within {@code latencyThresholdMillis} and the limit is actually used, it grows
+ * by about one per limit-worth of requests. When a request is slower than the threshold or is dropped,
+ * it shrinks by {@code backoffRatio}, at most once per round of requests in flight, so a burst of slow responses
+ * started under the old limit doesn't collapse it.
+ *
+ * Thread-safe.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    /**
+     * Returned from {@link #tryAcquire()} when the request is rejected.
+     * The start times come from {@link System#nanoTime()}, which may be negative, so any other value lets the request in.
+     */
+    public static final long REJECTED = Long.MIN_VALUE;
+
+    private Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos = System.nanoTime();
+
+    /**
+     * Constructs an AdaptiveConcurrencyLimiter
+     *
+     * @param name is used in the logs
+     * @param initialLimit is the limit to start with
+     * @param minLimit is the lowest the limit goes
+     * @param maxLimit is the highest the limit goes
+     * @param latencyThresholdMillis is the latency above which a request counts as a sign of overload
+     * @param backoffRatio is the ratio the limit is multiplied with on overload, between 0 and 1
+     */
+    public AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit,
+                                      long latencyThresholdMillis, double backoffRatio) {
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThresholdMillis * 1_000_000;
+        this.backoffRatio = backoffRatio;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Lets the request in if there's room under the current limit, every request let in must be followed
+     * by {@link #onComplete(long, boolean)}
+     *
+     * @return the start time of the request to pass to {@link #onComplete(long, boolean)}, {@link #REJECTED} when it's rejected
+     */
+    public synchronized long tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return REJECTED;
+        }
+        inFlight++;
+        long now = System.nanoTime();
+        return now != REJECTED ? now : now + 1;
+    }
+
+    /**
+     * Records the completion of a request and adapts the limit
+     *
+     * @param startNanos is the value returned from {@link #tryAcquire()}
+     * @param dropped whether the request is dropped because the system behind is overloaded, e.g. the bank is busy
+     */
+    public synchronized void onComplete(long startNanos, boolean dropped) {
+        inFlight--;
+        long now = System.nanoTime();
+        if (dropped || now - startNanos > latencyThresholdNanos) {
+            if (startNanos - lastDecreaseNanos >= 0 && limit > minLimit) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = now;
+                logger.warn("Concurrency limit of {} decreased to {}", name, (int) limit);
+            }
+        } else if (inFlight * 2 >= limit && limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,170 @@
+package com.dolap.challenge.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Count based circuit breaker.
+ * The outcomes of the last {@code windowSize} calls are kept while the circuit is closed. Once at least
+ * {@code minimumCalls} of them are recorded and either the ratio of the failed ones or the ratio of the slow ones
+ * reaches its threshold, the circuit opens and the calls are rejected right away for {@code openMillis}.
+ * After that the circuit is half-open, {@code probeCalls} calls are let through and it closes again if they
+ * stay under the thresholds, otherwise it opens for another {@code openMillis}.
+ *
+ * Thread-safe.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final String name;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallMillis;
+    private final long openMillis;
+    private final int probeCalls;
+
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int recorded;
+    private int next;
+    private int failedCount;
+    private int slowCount;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight;
+
+    /**
+     * Constructs a closed CircuitBreaker
+     *
+     * @param name is used in the logs
+     * @param windowSize is the number of the last calls the rates are calculated over
+     * @param minimumCalls is the number of calls recorded before the rates are taken into account
+     * @param failureRateThreshold is the ratio of the failed calls the circuit opens at, between 0 and 1
+     * @param slowCallRateThreshold is the ratio of the slow calls the circuit opens at, between 0 and 1
+     * @param slowCallMillis is the duration a call is counted as slow from
+     * @param openMillis is how long the calls are rejected once the circuit opens
+     * @param probeCalls is the number of calls let through while half-open
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold,
+                          double slowCallRateThreshold, long slowCallMillis, long openMillis, int probeCalls) {
+        this.name = name;
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.probeCalls = probeCalls;
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+    }
+
+    /**
+     * Asks for a permission to make a call, every call permitted must be followed by either
+     * {@link #onResult(long, boolean)} or {@link #releasePermission()}
+     *
+     * @return true when the call can be made, false when it should fail fast
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight + recorded >= probeCalls) {
+                return false;
+            }
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    /**
+     * Gives the permission back without recording an outcome, e.g. when the call is not made after all
+     */
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && probesInFlight > 0) {
+            probesInFlight--;
+        }
+    }
+
+    /**
+     * Records the outcome of a call made with a permission
+     *
+     * @param durationMillis is how long the call took
+     * @param callFailed whether the call failed
+     */
+    public synchronized void onResult(long durationMillis, boolean callFailed) {
+        if (state == State.OPEN) {
+            // a call made before the circuit opened
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+        }
+        record(callFailed, durationMillis >= slowCallMillis);
+
+        if (state == State.HALF_OPEN) {
+            if (exceedsThresholds()) {
+                open();
+            } else if (recorded >= probeCalls) {
+                transitionTo(State.CLOSED);
+            }
+        } else if (recorded >= minimumCalls && exceedsThresholds()) {
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    private void record(boolean callFailed, boolean callSlow) {
+        if (recorded == windowSize) {
+            failedCount -= failed[next] ? 1 : 0;
+            slowCount -= slow[next] ? 1 : 0;
+        } else {
+            recorded++;
+        }
+        failed[next] = callFailed;
+        slow[next] = callSlow;
+        failedCount += callFailed ? 1 : 0;
+        slowCount += callSlow ? 1 : 0;
+        next = (next + 1) % windowSize;
+    }
+
+    private boolean exceedsThresholds() {
+        return failedCount >= failureRateThreshold * recorded || slowCount >= slowCallRateThreshold * recorded;
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        logger.warn("Circuit {} opened, {} of the last {} calls failed and {} were slow", name, failedCount, recorded, slowCount);
+        transitionTo(State.OPEN);
+    }
+
+    private void transitionTo(State newState) {
+        if (newState != State.OPEN) {
+            logger.info("Circuit {} is {}", name, newState);
+        }
+        state = newState;
+        recorded = 0;
+        next = 0;
+        failedCount = 0;
+        slowCount = 0;
+        probesInFlight = 0;
+    }
+}
@@ -0,0 +1,54 @@
+package com.dolap.challenge.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the last calls and tells a percentile of them.
+ * The percentile is recalculated once every {@code windowSize / 10} latencies recorded,
+ * so reading it costs nothing on the hot path.
+ *
+ * Thread-safe.
+ */
+public class LatencyRecorder {
+
+    private final long[] latencies;
+    private final double percentile;
+    private final int recalculateEvery;
+    private int recorded;
+    private int next;
+    private int sinceRecalculation;
+    private volatile long value;
+
+    /**
+     * Constructs a LatencyRecorder
+     *
+     * @param windowSize is the number of the last latencies kept
+     * @param percentile is the percentile reported, e.g. 95
+     * @param initialValue is reported until enough latencies are recorded
+     */
+    public LatencyRecorder(int windowSize, double percentile, long initialValue) {
+        this.latencies = new long[windowSize];
+        this.percentile = percentile;
+        this.recalculateEvery = Math.max(1, windowSize / 10);
+        this.value = initialValue;
+    }
+
+    public synchronized void record(long latencyMillis) {
+        latencies[next] = latencyMillis;
+        next = (next + 1) % latencies.length;
+        recorded = Math.min(recorded + 1, latencies.length);
+        if (++sinceRecalculation >= recalculateEvery) {
+            sinceRecalculation = 0;
+            long[] sorted = Arrays.copyOf(latencies, recorded);
+            Arrays.sort(sorted);
+            value = sorted[(int) Math.min(recorded - 1, Math.ceil(percentile / 100 * recorded) - 1)];
+        }
+    }
+
+    /**
+     * @return the percentile of the recorded latencies in milliseconds
+     */
+    public long getPercentile() {
+        return value;
+    }
+}
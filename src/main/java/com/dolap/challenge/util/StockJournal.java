@@ -0,0 +1,177 @@
+package com.dolap.challenge.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only journal of the stock changes that are not written to the database yet.
+ * The journal is split into numbered segments, a segment is closed every time the changes are flushed
+ * to the database and can be deleted once the flush is committed. Each line of a segment is
+ * {@code productId,delta}.
+ *
+ * Not thread-safe, the callers are expected to synchronize the calls.
+ */
+public class StockJournal {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private Path directory;
+    private boolean fsync;
+    private long segment;
+    private FileOutputStream outputStream;
+    private BufferedWriter writer;
+
+    /**
+     * Constructs a StockJournal in the given directory
+     *
+     * @param directory is where the segments are kept
+     * @param fsync whether every change is forced to the disk, otherwise it's only handed over to the operating system
+     *              which survives the crashes of the app but not the crashes of the machine
+     */
+    public StockJournal(Path directory, boolean fsync) {
+        this.directory = directory;
+        this.fsync = fsync;
+    }
+
+    /**
+     * @return the numbers of the segments in the journal directory in ascending order
+     */
+    public List<Long> segments() {
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                return files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                        .map(name -> Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sums up the changes in the given segments per product
+     *
+     * @param segments are the numbers of the segments to read
+     * @return the total change per product id
+     */
+    public Map<Long, Integer> read(List<Long> segments) {
+        Map<Long, Integer> deltas = new HashMap<>();
+        for (Long segment : segments) {
+            try (Stream<String> lines = Files.lines(segmentPath(segment), StandardCharsets.UTF_8)) {
+                lines.filter(line -> !line.isEmpty()).forEach(line -> {
+                    String[] parts = line.split(",");
+                    deltas.merge(Long.valueOf(parts[0]), Integer.valueOf(parts[1]), Integer::sum);
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Opens a new segment, all the changes are appended to it until it's rotated
+     *
+     * @param segment is the number of the segment
+     */
+    public void open(long segment) {
+        try {
+            Files.createDirectories(directory);
+            this.segment = segment;
+            this.outputStream = new FileOutputStream(segmentPath(segment).toFile(), true);
+            this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends a change to the current segment
+     *
+     * @param productId is the id of the product
+     * @param delta is the change in the stocks of the product
+     */
+    public void append(Long productId, int delta) {
+        try {
+            writer.write(productId + "," + delta);
+            writer.newLine();
+            writer.flush();
+            if (fsync) {
+                outputStream.getFD().sync();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Closes the current segment and opens the next one
+     *
+     * @return the number of the segment closed
+     */
+    public long rotate() {
+        long closedSegment = segment;
+        close();
+        open(closedSegment + 1);
+        return closedSegment;
+    }
+
+    /**
+     * Deletes the given segments, once their changes are written to the database
+     *
+     * @param segments are the numbers of the segments to delete
+     */
+    public void delete(List<Long> segments) {
+        try {
+            for (Long segment : segments) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void close() {
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the numbers of the segments that come after the given one
+     */
+    public List<Long> segmentsAfter(long segment) {
+        List<Long> segments = new ArrayList<>();
+        for (Long existing : segments()) {
+            if (existing > segment) {
+                segments.add(existing);
+            }
+        }
+        return segments;
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,71 @@
+package com.dolap.challenge.util;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Runs the in-memory side of a change, e.g. updating a cache or a counter, once the surrounding transaction ends,
+ * so the memory never gets ahead of the database. Without a transaction the callbacks run right away.
+ */
+public final class TransactionCallbacks {
+
+    private TransactionCallbacks() {
+    }
+
+    /**
+     * Runs the callback once the current transaction commits, never when it rolls back
+     *
+     * @param callback is run on commit
+     */
+    public static void afterCommit(Runnable callback) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            callback.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                callback.run();
+            }
+        });
+    }
+
+    /**
+     * Runs the callback when the current transaction rolls back, to undo what's already done in memory.
+     * Nothing is run without a transaction since there's nothing to roll back.
+     *
+     * @param callback is run on rollback
+     */
+    public static void afterRollback(Runnable callback) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == TransactionSynchronization.STATUS_ROLLED_BACK) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the callback once the current transaction completes, whether it commits or rolls back
+     *
+     * @param callback is run on completion
+     */
+    public static void afterCompletion(Runnable callback) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            callback.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                callback.run();
+            }
+        });
+    }
+}
@@ -126,7 +126,7 @@ public class CategoriesControllerTest {
         child1Category.setParentCategory(parentCategoryResponse);
 
         Category childCategoryResponse = controller.addCategory(child1Category);
-        Category freshParentResponse = controller.findCategory(parentCategoryResponse.getId());
+        Category freshParentResponse = controller.findCategory(parentCategoryResponse.getId(), null);
 
         Assert.assertNotNull(childCategoryResponse);
         Assert.assertNotNull(childCategoryResponse.getParentCategory());
@@ -136,6 +136,28 @@ public class CategoriesControllerTest {
         Assert.assertEquals(1, freshParentResponse.getSubCategoryList().size());
     }
 
+    @Test
+    public void should_stop_at_the_given_depth_when_finding_category() {
+        CategoriesController controller = new CategoriesController(categoryService);
+
+        Category parentCategoryResponse = controller.addCategory(rootCategory1);
+        child1Category.setParentCategory(parentCategoryResponse);
+        Category childCategoryResponse = controller.addCategory(child1Category);
+        child2Category.setParentCategory(childCategoryResponse);
+        controller.addCategory(child2Category);
+
+        Category topLevelResponse = controller.findCategory(parentCategoryResponse.getId(), 0);
+        Assert.assertNull(topLevelResponse.getSubCategoryList());
+
+        Category oneLevelResponse = controller.findCategory(parentCategoryResponse.getId(), 1);
+        Assert.assertEquals(1, oneLevelResponse.getSubCategoryList().size());
+        Assert.assertNull(oneLevelResponse.getSubCategoryList().get(0).getSubCategoryList());
+
+        Category allLevelsResponse = controller.findCategory(parentCategoryResponse.getId(), null);
+        Assert.assertEquals(1, allLevelsResponse.getSubCategoryList().get(0).getSubCategoryList().size());
+        Assert.assertEquals(0, allLevelsResponse.getSubCategoryList().get(0).getSubCategoryList().get(0).getSubCategoryList().size());
+    }
+
     @Test
     public void should_throw_exception_when_setting_invalid_parent() {
         CategoriesController controller = new CategoriesController(categoryService);
@@ -166,7 +188,7 @@ public class CategoriesControllerTest {
         Exception exception = null;
         Category freshCategory = null;
         try {
-            freshCategory = controller.findCategory(parentCategoryResponse.getId());
+            freshCategory = controller.findCategory(parentCategoryResponse.getId(), null);
         } catch (Exception ex) {
             exception = ex;
         }
@@ -196,7 +218,7 @@ public class CategoriesControllerTest {
             exception = ex;
         }
 
-        Category freshCategoryResponse = controller.findCategory(categoryResponse.getId());
+        Category freshCategoryResponse = controller.findCategory(categoryResponse.getId(), null);
 
         Assert.assertNotNull(exception);
         Assert.assertNotNull(freshCategoryResponse);
@@ -221,7 +243,7 @@ public class CategoriesControllerTest {
         CategoriesController controller = new CategoriesController(categoryService);
         Category responseCategory = controller.addCategory(rootCategory1);
 
-        Category freshCategory = controller.findCategory(responseCategory.getId());
+        Category freshCategory = controller.findCategory(responseCategory.getId(), null);
 
         Assert.assertNotNull(freshCategory);
         Assert.assertNotNull(responseCategory);
@@ -236,7 +258,7 @@ public class CategoriesControllerTest {
         Exception exception = null;
         Category freshCategory = null;
         try {
-            freshCategory = controller.findCategory(Long.MAX_VALUE);
+            freshCategory = controller.findCategory(Long.MAX_VALUE, null);
         } catch (Exception ex) {
             exception = ex;
         }
@@ -87,6 +87,25 @@ public class PaymentsControllerIT {
         Assert.assertEquals("200", (responseJson.get("bankResponse").getAsString()));
     }
 
+    @Test
+    public void should_pay_async_with_single_quantity() throws Exception {
+        MockHttpServletRequestBuilder request = MockMvcRequestBuilders.post("/payments/async");
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.addProperty("productId", product.getId());
+        jsonObject.addProperty("quantity", 1);
+        request.content(jsonObject.toString());
+        request.contentType("application/json");
+
+        MvcResult asyncResult = mvc.perform(request).andReturn();
+        asyncResult.getAsyncResult();
+        MvcResult mvcResult = mvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult)).andReturn();
+        JsonObject responseJson = new JsonParser().parse(mvcResult.getResponse().getContentAsString()).getAsJsonObject();
+
+        Assert.assertEquals(HttpStatus.OK.value(), mvcResult.getResponse().getStatus());
+        Assert.assertEquals(product.getPrice(), BigDecimal.valueOf((responseJson.get("price").getAsDouble())));
+        Assert.assertEquals("200", (responseJson.get("bankResponse").getAsString()));
+    }
+
     @Test
     public void should_throw_exception_when_try_to_purchase_more_than_the_stock() throws Exception {
         MockHttpServletRequestBuilder request = MockMvcRequestBuilders.post("/payments");
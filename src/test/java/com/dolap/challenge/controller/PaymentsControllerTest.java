@@ -1,13 +1,33 @@
 package com.dolap.challenge.controller;
 
+import com.dolap.challenge.configuration.Messages;
 import com.dolap.challenge.entity.Category;
 import com.dolap.challenge.entity.Payment;
+import com.dolap.challenge.entity.RevenueRollup;
+import com.dolap.challenge.entity.StockReservation;
+import com.dolap.challenge.model.BankPaymentResponse;
+import com.dolap.challenge.model.Cart;
 import com.dolap.challenge.model.PaymentItem;
+import com.dolap.challenge.model.PaymentPage;
+import com.dolap.challenge.model.RevenueBucket;
 import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.exception.IdempotencyKeyConflictException;
 import com.dolap.challenge.exception.OutOfStockException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.exception.WaitingRoomTicketException;
+import com.dolap.challenge.model.WaitingRoomTicket;
+import com.dolap.challenge.repository.ProductRepository;
 import com.dolap.challenge.service.CategoryService;
+import com.dolap.challenge.service.IdempotencyService;
+import com.dolap.challenge.service.PaymentExportService;
+import com.dolap.challenge.service.PaymentSagaService;
 import com.dolap.challenge.service.PaymentService;
 import com.dolap.challenge.service.ProductService;
+import com.dolap.challenge.service.RevenueRollupService;
+import com.dolap.challenge.service.SoldOutCache;
+import com.dolap.challenge.service.StockReservationService;
+import com.dolap.challenge.service.WaitingRoomService;
+import com.dolap.challenge.util.AdaptiveConcurrencyLimiter;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -15,11 +35,19 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -39,6 +67,36 @@ public class PaymentsControllerTest {
     @Autowired
     private CategoryService categoryService;
 
+    @Autowired
+    private StockReservationService stockReservationService;
+
+    @Autowired
+    private PaymentSagaService paymentSagaService;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    @Autowired
+    private PaymentExportService paymentExportService;
+
+    @Autowired
+    private RevenueRollupService revenueRollupService;
+
+    @Autowired
+    private WaitingRoomService waitingRoomService;
+
+    @Autowired
+    private SoldOutCache soldOutCache;
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private AdaptiveConcurrencyLimiter paymentLimiter;
+
+    @Autowired
+    private Messages messages;
+
     private Product product;
 
     private Category category;
@@ -67,11 +125,11 @@ public class PaymentsControllerTest {
         paymentItem.setProductId(product.getId());
         paymentItem.setQuantity(1);
 
-        PaymentsController controller = new PaymentsController(paymentService, productService);
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
         Exception exception = null;
         Payment payment = null;
         try {
-            payment = controller.pay(paymentItem);
+            payment = controller.pay(null, null, paymentItem);
         } catch (Exception e) {
             exception = e;
         }
@@ -93,11 +151,11 @@ public class PaymentsControllerTest {
         paymentItem.setProductId(product.getId());
         paymentItem.setQuantity(product.getRemainingStockCount());
 
-        PaymentsController controller = new PaymentsController(paymentService, productService);
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
         Exception exception = null;
         Payment payment = null;
         try {
-            payment = controller.pay(paymentItem);
+            payment = controller.pay(null, null, paymentItem);
         } catch (Exception e) {
             exception = e;
         }
@@ -113,17 +171,282 @@ public class PaymentsControllerTest {
         Assert.assertEquals(refreshedProduct.getRemainingStockCount(), Integer.valueOf(expectedRemainingProductCount));
     }
 
+    @Test
+    public void should_pay_async_with_single_quantity() throws ExecutionException, InterruptedException {
+        PaymentItem paymentItem = new PaymentItem();
+        paymentItem.setProductId(product.getId());
+        paymentItem.setQuantity(1);
+
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
+        Payment payment = controller.payAsync(null, null, paymentItem).get();
+
+        Assert.assertNotNull(payment);
+        Assert.assertEquals(payment.getPrice(), product.getPrice());
+        Assert.assertEquals(payment.getBankResponse(), "200");
+
+        int expectedRemainingProductCount = product.getRemainingStockCount() - 1;
+        Product refreshedProduct = productService.findProduct(product.getId());
+        Assert.assertEquals(refreshedProduct.getRemainingStockCount(), Integer.valueOf(expectedRemainingProductCount));
+    }
+
+    @Test
+    public void should_pay_for_the_whole_cart_at_once() {
+        Product otherProduct = addProduct(5);
+        Cart cart = new Cart();
+        cart.setItems(Arrays.asList(paymentItem(otherProduct.getId(), 2), paymentItem(product.getId(), 1), paymentItem(otherProduct.getId(), 1)));
+
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
+        Payment payment = controller.payCart(null, null, cart);
+
+        Assert.assertEquals(payment.getBankResponse(), "200");
+        Assert.assertEquals(0, payment.getPrice().compareTo(new BigDecimal("39.96")));
+        Assert.assertEquals(Integer.valueOf(98), productService.findProduct(product.getId()).getRemainingStockCount());
+        Assert.assertEquals(Integer.valueOf(2), productService.findProduct(otherProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_reserve_nothing_when_any_line_of_the_cart_is_out_of_stock() {
+        Product otherProduct = addProduct(5);
+        Cart cart = new Cart();
+        cart.setItems(Arrays.asList(paymentItem(product.getId(), 1), paymentItem(otherProduct.getId(), 6)));
+
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
+        Exception exception = null;
+        try {
+            controller.payCart(null, null, cart);
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        Assert.assertTrue(exception instanceof OutOfStockException);
+        Assert.assertEquals(Integer.valueOf(99), productService.findProduct(product.getId()).getRemainingStockCount());
+        Assert.assertEquals(Integer.valueOf(5), productService.findProduct(otherProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_release_all_the_lines_of_the_cart_together() {
+        Product otherProduct = addProduct(5);
+        List<StockReservation> reservations = stockReservationService.reserveAll(
+                Arrays.asList(paymentItem(otherProduct.getId(), 3), paymentItem(product.getId(), 4)));
+
+        stockReservationService.releaseAll(reservations);
+        stockReservationService.releaseAll(reservations);
+
+        Assert.assertEquals(Integer.valueOf(99), productService.findProduct(product.getId()).getRemainingStockCount());
+        Assert.assertEquals(Integer.valueOf(5), productService.findProduct(otherProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_pay_once_for_the_retries_with_the_same_idempotency_key() {
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
+        String idempotencyKey = "retry-" + System.nanoTime();
+
+        Payment payment = controller.pay(idempotencyKey, null, paymentItem(product.getId(), 2));
+        Payment retriedPayment = controller.pay(idempotencyKey, null, paymentItem(product.getId(), 2));
+
+        Assert.assertEquals(payment.getId(), retriedPayment.getId());
+        Assert.assertEquals(Integer.valueOf(97), productService.findProduct(product.getId()).getRemainingStockCount());
+
+        Exception exception = null;
+        try {
+            controller.pay(idempotencyKey, null, paymentItem(product.getId(), 3));
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof IdempotencyKeyConflictException);
+    }
+
+    @Test
+    public void should_attach_the_concurrent_retries_to_the_payment_in_progress() throws ExecutionException, InterruptedException {
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
+        String idempotencyKey = "in-flight-" + System.nanoTime();
+
+        CompletableFuture<Payment> future = controller.payAsync(idempotencyKey, null, paymentItem(product.getId(), 1));
+        CompletableFuture<Payment> retriedFuture = controller.payAsync(idempotencyKey, null, paymentItem(product.getId(), 1));
+
+        Assert.assertEquals(future.get().getId(), retriedFuture.get().getId());
+        Assert.assertEquals(Integer.valueOf(98), productService.findProduct(product.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_list_the_payments_page_by_page() {
+        LocalDateTime from = LocalDateTime.now();
+        List<Long> paymentIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            paymentIds.add(0, paymentService.saveBankResponse(product.getPrice(), new BankPaymentResponse(BankPaymentResponse.RESULT_CODE_SUCCESS)).getId());
+        }
+
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
+        List<Long> listedIds = new ArrayList<>();
+        Long cursor = null;
+        int pageCount = 0;
+        do {
+            PaymentPage page = controller.getPayments(cursor, from, null, 2);
+            page.getPayments().forEach(payment -> listedIds.add(payment.getId()));
+            cursor = page.getNextCursor();
+            pageCount++;
+        } while (cursor != null);
+
+        Assert.assertEquals(paymentIds, listedIds);
+        Assert.assertEquals(3, pageCount);
+        Assert.assertTrue(controller.getPayments(null, from.minusDays(2), from.minusDays(1), 20).getPayments().isEmpty());
+    }
+
+    @Test
+    public void should_export_the_payments_as_ndjson_and_csv() throws IOException {
+        LocalDateTime from = LocalDateTime.now();
+        Payment first = paymentService.saveBankResponse(new BigDecimal("9.99"), new BankPaymentResponse(BankPaymentResponse.RESULT_CODE_SUCCESS));
+        Payment second = paymentService.saveBankResponse(new BigDecimal("19.98"), new BankPaymentResponse(BankPaymentResponse.RESULT_CODE_TIMEOUT));
+
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
+
+        ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+        controller.exportPaymentsAsNdjson(from, null).getBody().writeTo(ndjson);
+        String[] ndjsonLines = ndjson.toString("UTF-8").split("\n");
+        Assert.assertEquals(2, ndjsonLines.length);
+        Assert.assertTrue(ndjsonLines[0].contains("\"id\":" + first.getId()));
+        Assert.assertTrue(ndjsonLines[1].contains("\"bankResponse\":\"TIMEOUT\""));
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        controller.exportPaymentsAsCsv(from, null).getBody().writeTo(csv);
+        String[] csvLines = csv.toString("UTF-8").split("\n");
+        Assert.assertEquals(3, csvLines.length);
+        Assert.assertEquals("id,price,bankResponse,createdAt", csvLines[0]);
+        Assert.assertTrue(csvLines[2].startsWith(second.getId() + ",19.98,TIMEOUT,"));
+    }
+
+    @Test
+    public void should_add_the_paid_products_to_the_revenue_rollups() {
+        Product otherProduct = addProduct(10);
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
+        controller.pay(null, null, paymentItem(product.getId(), 2));
+        Cart cart = new Cart();
+        cart.setItems(Arrays.asList(paymentItem(product.getId(), 1), paymentItem(otherProduct.getId(), 3)));
+        controller.payCart(null, null, cart);
+
+        RevenueController revenueController = new RevenueController(revenueRollupService);
+        List<RevenueBucket> buckets = revenueController.getProductRevenue(product.getId(), RevenueRollup.Granularity.DAY, null, null);
+        Assert.assertEquals(1, buckets.size());
+        Assert.assertEquals(2, buckets.get(0).getPaymentCount());
+        Assert.assertEquals(0, new BigDecimal("29.97").compareTo(buckets.get(0).getRevenue()));
+
+        revenueRollupService.flush();
+        buckets = revenueController.getProductRevenue(otherProduct.getId(), RevenueRollup.Granularity.MINUTE, null, null);
+        Assert.assertEquals(1, buckets.stream().mapToLong(RevenueBucket::getPaymentCount).sum());
+        Assert.assertFalse(revenueController.getRevenue(RevenueRollup.Granularity.HOUR, null, null).isEmpty());
+    }
+
+    @Test
+    public void should_shed_the_payments_over_the_limit_before_reserving_the_stocks() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 1, 1, 10000, 0.5);
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService,
+                paymentExportService, waitingRoomService, soldOutCache, limiter, messages, 3);
+        CompletableFuture<Payment> inProgress = controller.payAsync(null, null, paymentItem(product.getId(), 1));
+
+        ResponseEntity<Object> response = null;
+        try {
+            controller.pay(null, null, paymentItem(product.getId(), 1));
+        } catch (ServiceBusyException e) {
+            response = controller.handleException(e);
+        }
+
+        Assert.assertNotNull(response);
+        Assert.assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        Assert.assertEquals("3", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        Assert.assertEquals(Integer.valueOf(product.getRemainingStockCount() - 1),
+                productService.findProduct(product.getId()).getRemainingStockCount());
+
+        Assert.assertTrue(inProgress.join().isSuccessful());
+        Assert.assertEquals(0, limiter.getInFlight());
+        Assert.assertTrue(controller.pay(null, null, paymentItem(product.getId(), 1)).isSuccessful());
+    }
+
+    @Test
+    public void should_reject_the_requests_over_the_limit_only() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 2, 2, 2, 100, 0.5);
+        long first = limiter.tryAcquire();
+        long second = limiter.tryAcquire();
+        Assert.assertNotEquals(AdaptiveConcurrencyLimiter.REJECTED, first);
+        Assert.assertNotEquals(AdaptiveConcurrencyLimiter.REJECTED, second);
+        Assert.assertEquals(AdaptiveConcurrencyLimiter.REJECTED, limiter.tryAcquire());
+        Assert.assertEquals(2, limiter.getInFlight());
+
+        limiter.onComplete(first, false);
+        Assert.assertNotEquals(AdaptiveConcurrencyLimiter.REJECTED, limiter.tryAcquire());
+    }
+
+    @Test
+    public void should_adapt_the_limit_to_the_latency() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 10, 2, 20, 100, 0.5);
+        long[] starts = new long[8];
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < starts.length; j++) {
+                starts[j] = limiter.tryAcquire();
+            }
+            for (long start : starts) {
+                limiter.onComplete(start, false);
+            }
+        }
+        Assert.assertTrue(limiter.getLimit() > 10);
+
+        int limit = limiter.getLimit();
+        limiter.onComplete(limiter.tryAcquire(), true);
+        Assert.assertEquals(limit / 2, limiter.getLimit());
+        // the requests started before the decrease don't decrease it again
+        limiter.onComplete(limiter.tryAcquire() - 1_000_000_000L, false);
+        Assert.assertEquals(limit / 2, limiter.getLimit());
+    }
+
+    @Test
+    public void should_pay_for_the_flash_sale_products_only_with_an_admitted_ticket() {
+        product.setFlashSale(true);
+        productService.updateProduct(product.getId(), product);
+        // not scheduled, so the tickets are admitted only when the test ticks
+        WaitingRoomService waitingRoom = new WaitingRoomService(productRepository, messages, 10, 100, 100, 60000, 1000, 60000);
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoom, soldOutCache, paymentLimiter, messages, 1);
+
+        WaitingRoomTicket ticket = waitingRoom.join(product.getId());
+        Assert.assertFalse(ticket.isAdmitted());
+        Exception exception = null;
+        try {
+            controller.pay(null, null, paymentItem(product.getId(), 1));
+        } catch (WaitingRoomTicketException e) {
+            exception = e;
+        }
+        Assert.assertNotNull(exception);
+        exception = null;
+        try {
+            controller.pay(null, Collections.singletonList(ticket.getTicket()), paymentItem(product.getId(), 1));
+        } catch (WaitingRoomTicketException e) {
+            exception = e;
+        }
+        Assert.assertNotNull(exception);
+
+        waitingRoom.admit();
+        Assert.assertTrue(controller.pay(null, Collections.singletonList(ticket.getTicket()), paymentItem(product.getId(), 1)).isSuccessful());
+        Assert.assertEquals(Integer.valueOf(98), productService.findProduct(product.getId()).getRemainingStockCount());
+
+        // the ticket pays once
+        exception = null;
+        try {
+            controller.pay(null, Collections.singletonList(ticket.getTicket()), paymentItem(product.getId(), 1));
+        } catch (WaitingRoomTicketException e) {
+            exception = e;
+        }
+        Assert.assertNotNull(exception);
+    }
+
     @Test
     public void should_throw_exception_when_try_to_purchase_more_than_the_stock() {
         PaymentItem paymentItem = new PaymentItem();
         paymentItem.setProductId(product.getId());
         paymentItem.setQuantity(product.getRemainingStockCount() + 10);
 
-        PaymentsController controller = new PaymentsController(paymentService, productService);
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
         Exception exception = null;
         Payment payment = null;
         try {
-            payment = controller.pay(paymentItem);
+            payment = controller.pay(null, null, paymentItem);
         } catch (Exception e) {
             exception = e;
         }
@@ -140,7 +463,7 @@ public class PaymentsControllerTest {
 
     @Test
     public void should_handle_concurrent_txns_properly() throws ExecutionException, InterruptedException {
-        PaymentsController controller = new PaymentsController(paymentService, productService);
+        PaymentsController controller = new PaymentsController(paymentService, paymentSagaService, idempotencyService, paymentExportService, waitingRoomService, soldOutCache, paymentLimiter, messages, 1);
 
         List<CompletableFuture> futures = new ArrayList<>();
         List<Payment> payments = new ArrayList<>();
@@ -181,11 +504,28 @@ public class PaymentsControllerTest {
         Assert.assertEquals(totalSuccessfullPayments, 2);
     }
 
+    private Product addProduct(int remainingStockCount) {
+        Product otherProduct = new Product();
+        otherProduct.setName("The other product");
+        otherProduct.setDescription("Goes well with the great product");
+        otherProduct.setPrice(new BigDecimal("9.99"));
+        otherProduct.setRemainingStockCount(remainingStockCount);
+        otherProduct.setCategory(category);
+        return productService.addProduct(otherProduct);
+    }
+
+    private PaymentItem paymentItem(Long productId, int quantity) {
+        PaymentItem paymentItem = new PaymentItem();
+        paymentItem.setProductId(productId);
+        paymentItem.setQuantity(quantity);
+        return paymentItem;
+    }
+
     protected  CompletableFuture<Payment> paymentWithQuantity(PaymentsController controller, PaymentItem paymentItem) {
         return CompletableFuture.supplyAsync(() -> {
             Payment payment = null;
             try {
-                payment = controller.pay(paymentItem);
+                payment = controller.pay(null, null, paymentItem);
             } catch (Exception ignored) {
             }
             return payment;
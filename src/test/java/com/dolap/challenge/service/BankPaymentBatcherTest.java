@@ -0,0 +1,95 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.model.BankPaymentRequest;
+import com.dolap.challenge.model.BankPaymentResponse;
+import com.dolap.challenge.util.CircuitBreaker;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class BankPaymentBatcherTest {
+
+    @Autowired
+    private Messages messages;
+
+    private AtomicInteger settlements = new AtomicInteger();
+
+    private BankService countingBankService() {
+        BankSimulator bankSimulator = BankSimulator.fixed(10);
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 100, 100, 1, 1, Long.MAX_VALUE, 0, 1);
+        return new BankService(messages, bankSimulator, bankSimulator, circuitBreaker, 1000, 10, false, 95, 10) {
+            @Override
+            public CompletableFuture<List<BankPaymentResponse>> settle(List<BankPaymentRequest> requests) {
+                settlements.incrementAndGet();
+                return super.settle(requests);
+            }
+        };
+    }
+
+    private BankPaymentRequest request(int price) {
+        BankPaymentRequest request = new BankPaymentRequest();
+        request.setPrice(new BigDecimal(price));
+        return request;
+    }
+
+    @Test
+    public void should_settle_many_payments_with_a_single_bank_call() {
+        BankPaymentBatcher batcher = new BankPaymentBatcher(countingBankService(), messages, true, 100, 200, 100);
+        batcher.start();
+
+        List<CompletableFuture<BankPaymentResponse>> futures = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            futures.add(batcher.pay(request(i)));
+        }
+        futures.forEach(future -> Assert.assertTrue(future.join().isSuccessful()));
+
+        Assert.assertEquals(1, settlements.get());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void should_flush_when_the_batch_is_full() {
+        BankPaymentBatcher batcher = new BankPaymentBatcher(countingBankService(), messages, true, 5, 10000, 100);
+
+        List<CompletableFuture<BankPaymentResponse>> futures = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            futures.add(batcher.pay(request(i)));
+        }
+        batcher.start();
+        futures.forEach(future -> Assert.assertTrue(future.join().isSuccessful()));
+
+        Assert.assertEquals(2, settlements.get());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void should_reject_when_too_many_payments_are_waiting() {
+        BankPaymentBatcher batcher = new BankPaymentBatcher(countingBankService(), messages, true, 5, 50, 1);
+
+        batcher.pay(request(1));
+        Exception exception = null;
+        try {
+            batcher.pay(request(2));
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        Assert.assertNotNull(exception);
+        Assert.assertTrue(exception instanceof ServiceBusyException);
+    }
+}
@@ -0,0 +1,236 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.exception.BankUnavailableException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.model.BankPaymentRequest;
+import com.dolap.challenge.model.BankPaymentResponse;
+import com.dolap.challenge.util.CircuitBreaker;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class BankServiceTest {
+
+    @Autowired
+    private Messages messages;
+
+    private BankPaymentRequest request() {
+        BankPaymentRequest request = new BankPaymentRequest();
+        request.setPrice(new BigDecimal("9.99"));
+        return request;
+    }
+
+    private BankService bankService(BankClient bankClient, long timeoutMillis, int maxConcurrentCalls) {
+        return bankService(bankClient, bankClient, closedCircuit(), timeoutMillis, maxConcurrentCalls, false);
+    }
+
+    private BankService bankService(BankClient bankClient, BankClient alternateBankClient, CircuitBreaker circuitBreaker,
+                                    long timeoutMillis, int maxConcurrentCalls, boolean hedgingEnabled) {
+        return new BankService(messages, bankClient, alternateBankClient, circuitBreaker, timeoutMillis, maxConcurrentCalls,
+                hedgingEnabled, 95, 10);
+    }
+
+    private CircuitBreaker closedCircuit() {
+        return new CircuitBreaker("test", 100, 100, 1, 1, Long.MAX_VALUE, 0, 1);
+    }
+
+    @Test
+    public void should_pay_when_bank_responds_in_time() {
+        BankService bankService = bankService(BankSimulator.fixed(10), 1000, 1);
+
+        BankPaymentResponse response = bankService.pay(request()).join();
+
+        Assert.assertEquals(BankPaymentResponse.RESULT_CODE_SUCCESS, response.getResultCode());
+        Assert.assertTrue(response.isSuccessful());
+        bankService.shutdown();
+    }
+
+    @Test
+    public void should_time_out_when_bank_is_slow() {
+        BankService bankService = bankService(BankSimulator.fixed(1000), 10, 1);
+
+        BankPaymentResponse response = bankService.pay(request()).join();
+
+        Assert.assertEquals(BankPaymentResponse.RESULT_CODE_TIMEOUT, response.getResultCode());
+        Assert.assertFalse(response.isSuccessful());
+        bankService.shutdown();
+    }
+
+    @Test
+    public void should_reject_when_too_many_calls_are_in_flight() {
+        BankService bankService = bankService(BankSimulator.fixed(100), 1000, 1);
+
+        CompletableFuture<BankPaymentResponse> first = bankService.pay(request());
+        Exception exception = null;
+        try {
+            bankService.pay(request());
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        Assert.assertNotNull(exception);
+        Assert.assertTrue(exception instanceof ServiceBusyException);
+
+        // the permit is given back once the first call completes
+        Assert.assertTrue(first.join().isSuccessful());
+        Assert.assertTrue(bankService.pay(request()).join().isSuccessful());
+        bankService.shutdown();
+    }
+
+    @Test
+    public void should_complete_with_the_injected_faults() {
+        BankService decliningBank = bankService(new BankSimulator(BankSimulator.LatencyProfile.FIXED, 10, 0, 0, 0, 0, 0, 1), 1000, 1);
+        Assert.assertEquals(BankPaymentResponse.RESULT_CODE_DECLINED, decliningBank.pay(request()).join().getResultCode());
+
+        BankService failingBank = bankService(new BankSimulator(BankSimulator.LatencyProfile.FIXED, 10, 0, 0, 0, 1, 0, 0), 1000, 1);
+        Assert.assertEquals(BankPaymentResponse.RESULT_CODE_ERROR, failingBank.pay(request()).join().getResultCode());
+
+        BankService hangingBank = bankService(new BankSimulator(BankSimulator.LatencyProfile.FIXED, 10, 0, 0, 0, 0, 1, 0), 50, 1);
+        Assert.assertEquals(BankPaymentResponse.RESULT_CODE_TIMEOUT, hangingBank.pay(request()).join().getResultCode());
+
+        decliningBank.shutdown();
+        failingBank.shutdown();
+        hangingBank.shutdown();
+    }
+
+    @Test
+    public void should_draw_the_latencies_from_the_profile() {
+        BankSimulator uniform = new BankSimulator(BankSimulator.LatencyProfile.UNIFORM, 0, 100, 200, 0, 0, 0, 0);
+        BankSimulator logNormal = new BankSimulator(BankSimulator.LatencyProfile.LOG_NORMAL, 100, 10, 5000, 1, 0, 0, 0);
+
+        long[] latencies = new long[10000];
+        for (int i = 0; i < latencies.length; i++) {
+            long latency = uniform.sampleLatencyMillis();
+            Assert.assertTrue(latency >= 100 && latency <= 200);
+            latencies[i] = logNormal.sampleLatencyMillis();
+            Assert.assertTrue(latencies[i] >= 10 && latencies[i] <= 5000);
+        }
+
+        // the median stays around the configured one while the tail is several times longer
+        Arrays.sort(latencies);
+        Assert.assertTrue(latencies[5000] > 80 && latencies[5000] < 120);
+        Assert.assertTrue(latencies[9900] > 500);
+        uniform.shutdown();
+        logNormal.shutdown();
+    }
+
+    @Test
+    public void should_fail_fast_while_the_circuit_is_open_and_close_it_after_the_probes() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 10, 4, 0.5, 1, 1000, 100, 2);
+        BankService failingBank = bankService(new BankSimulator(BankSimulator.LatencyProfile.FIXED, 1, 0, 0, 0, 1, 0, 0),
+                null, circuitBreaker, 1000, 10, false);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(BankPaymentResponse.RESULT_CODE_ERROR, failingBank.pay(request()).join().getResultCode());
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, failingBank.getCircuitState());
+
+        Exception exception = null;
+        try {
+            failingBank.pay(request());
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof BankUnavailableException);
+
+        // the bank recovers, the probes close the circuit once the open period is over
+        Thread.sleep(150);
+        BankService recoveredBank = bankService(BankSimulator.fixed(1), null, circuitBreaker, 1000, 10, false);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, recoveredBank.getCircuitState());
+        Assert.assertTrue(recoveredBank.pay(request()).join().isSuccessful());
+        Assert.assertTrue(recoveredBank.pay(request()).join().isSuccessful());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, recoveredBank.getCircuitState());
+        failingBank.shutdown();
+        recoveredBank.shutdown();
+    }
+
+    @Test
+    public void should_open_the_circuit_when_the_bank_is_slow() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 10, 2, 1, 0.5, 20, 10000, 1);
+        BankService slowBank = bankService(BankSimulator.fixed(50), null, circuitBreaker, 1000, 10, false);
+
+        Assert.assertTrue(slowBank.pay(request()).join().isSuccessful());
+        Assert.assertTrue(slowBank.pay(request()).join().isSuccessful());
+
+        Assert.assertEquals(CircuitBreaker.State.OPEN, slowBank.getCircuitState());
+        slowBank.shutdown();
+    }
+
+    @Test
+    public void should_take_the_first_response_of_the_hedged_requests() {
+        BankSimulator usualBank = new BankSimulator(BankSimulator.LatencyProfile.UNIFORM, 0, 5, 15, 0, 0, 0, 0);
+        BankSimulator slowBank = BankSimulator.fixed(500);
+        AtomicBoolean slow = new AtomicBoolean();
+        BankClient primary = new BankClient() {
+            @Override
+            public CompletableFuture<BankPaymentResponse> pay(BankPaymentRequest request) {
+                return slow.get() ? slowBank.pay(request) : usualBank.pay(request);
+            }
+
+            @Override
+            public CompletableFuture<List<BankPaymentResponse>> settle(List<BankPaymentRequest> requests) {
+                return usualBank.settle(requests);
+            }
+        };
+        BankService bankService = bankService(primary, BankSimulator.fixed(1), closedCircuit(), 1000, 1000, true);
+
+        // the usual latencies of the bank are learnt first
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(bankService.pay(request()).join().isSuccessful());
+        }
+        // only the slowest few percent of the calls are hedged
+        Assert.assertTrue(bankService.getHedgedCalls() < 40);
+
+        slow.set(true);
+        long wonBefore = bankService.getHedgedCallsWon();
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(bankService.pay(request()).join().isSuccessful());
+        Assert.assertTrue(System.currentTimeMillis() - start < 500);
+        Assert.assertEquals(wonBefore + 1, bankService.getHedgedCallsWon());
+        bankService.shutdown();
+    }
+
+    @Test
+    public void should_skip_the_hedged_request_when_no_bulkhead_permit_is_free() {
+        BankSimulator usualBank = new BankSimulator(BankSimulator.LatencyProfile.UNIFORM, 0, 5, 15, 0, 0, 0, 0);
+        BankService bankService = bankService(usualBank, BankSimulator.fixed(1), closedCircuit(), 1000, 1, true);
+
+        // the slowest calls would be hedged, but the only permit is held by the call itself
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(bankService.pay(request()).join().isSuccessful());
+        }
+
+        Assert.assertEquals(0, bankService.getHedgedCalls());
+        bankService.shutdown();
+    }
+
+    @Test
+    public void should_charge_a_request_id_once_on_every_instance_of_the_bank() {
+        BankSimulator bank = new BankSimulator(BankSimulator.LatencyProfile.FIXED, 1, 1, 1, 0, 0, 0, 0.5);
+        BankSimulator otherInstance = bank.copy();
+        BankPaymentRequest request = request();
+        request.setRequestId(UUID.randomUUID().toString());
+
+        String resultCode = bank.pay(request).join().getResultCode();
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(resultCode, bank.pay(request).join().getResultCode());
+            Assert.assertEquals(resultCode, otherInstance.pay(request).join().getResultCode());
+        }
+        bank.shutdown();
+        otherInstance.shutdown();
+    }
+}
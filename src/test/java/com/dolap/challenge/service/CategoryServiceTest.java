@@ -3,6 +3,10 @@ package com.dolap.challenge.service;
 import com.dolap.challenge.entity.Category;
 import com.dolap.challenge.entity.Product;
 import com.dolap.challenge.exception.CategoryNotFoundException;
+import com.dolap.challenge.exception.InvalidCategoryParentException;
+import com.dolap.challenge.repository.CategoryRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,6 +16,7 @@ import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import javax.persistence.EntityManagerFactory;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
@@ -27,6 +32,12 @@ public class CategoryServiceTest {
     @Autowired
     private ProductService productService;
 
+    @Autowired
+    private CategoryRepository categoryRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
     private Category rootCategory1;
     private Category rootCategory2;
     private Category child1Category;
@@ -163,6 +174,108 @@ public class CategoryServiceTest {
         Assert.assertEquals(parentCategory2.getId(), childCategory.getParentCategory().getId());
     }
 
+    @Test
+    public void should_list_the_products_of_the_moved_subtree_under_the_new_parent() {
+        Category parentCategory1 = categoryService.addCategory(rootCategory1);
+        Category parentCategory2 = categoryService.addCategory(rootCategory2);
+        child1Category.setParentCategory(parentCategory1);
+        Category childCategory = categoryService.addCategory(child1Category);
+        child11Category.setParentCategory(childCategory);
+        categoryService.addCategory(child11Category);
+
+        Product product = new Product();
+        product.setName("Mavi Elbise");
+        product.setDescription("Mavi renkte bir elbisedir");
+        product.setRemainingStockCount(99);
+        product.setPrice(new BigDecimal("9.99"));
+        product.setCategory(child11Category);
+        productService.addProduct(product);
+        Assert.assertEquals(1, productService.getAll(parentCategory1.getId(), "id", "asc", 0, 10).getTotalElements());
+
+        childCategory.setParentCategory(parentCategory2);
+        categoryService.updateCategory(childCategory.getId(), childCategory);
+
+        Assert.assertEquals(0, productService.getAll(parentCategory1.getId(), "id", "asc", 0, 10).getTotalElements());
+        Assert.assertEquals(1, productService.getAll(parentCategory2.getId(), "id", "asc", 0, 10).getTotalElements());
+        Assert.assertEquals(1, productService.getAll(childCategory.getId(), "id", "asc", 0, 10).getTotalElements());
+    }
+
+    @Test
+    public void should_throw_exception_when_moving_category_under_its_sub_category() {
+        Category parentCategory1 = categoryService.addCategory(rootCategory1);
+        child1Category.setParentCategory(parentCategory1);
+        Category childCategory = categoryService.addCategory(child1Category);
+
+        parentCategory1.setParentCategory(childCategory);
+        Exception exception = null;
+        try {
+            categoryService.updateCategory(parentCategory1.getId(), parentCategory1);
+        } catch (Exception ex) {
+            exception = ex;
+        }
+
+        Assert.assertTrue(exception instanceof InvalidCategoryParentException);
+        Assert.assertNull(categoryService.findCategory(parentCategory1.getId()).getParentCategory());
+    }
+
+    @Test
+    public void should_serve_the_categories_from_the_snapshot_until_they_are_changed() {
+        Category parentCategory1 = categoryService.addCategory(rootCategory1);
+        child1Category.setParentCategory(parentCategory1);
+        categoryService.addCategory(child1Category);
+        Assert.assertEquals(1, categoryService.findCategory(parentCategory1.getId()).getSubCategoryList().size());
+
+        // changed behind the service's back, the snapshot doesn't see it
+        Category category = categoryRepository.findById(parentCategory1.getId()).get();
+        category.setName("Changed behind the back");
+        categoryRepository.save(category);
+        Assert.assertEquals(rootCategory1.getName(), categoryService.findCategory(parentCategory1.getId()).getName());
+
+        child2Category.setParentCategory(parentCategory1);
+        categoryService.addCategory(child2Category);
+        Category freshCategory = categoryService.findCategory(parentCategory1.getId());
+        Assert.assertEquals("Changed behind the back", freshCategory.getName());
+        Assert.assertEquals(2, freshCategory.getSubCategoryList().size());
+        Assert.assertEquals(child1Category.getId(), freshCategory.getSubCategoryList().get(0).getId()); // ordered by orderNum
+    }
+
+    @Test
+    public void should_not_load_the_tree_below_the_category_of_a_product() {
+        Category parentCategory1 = categoryService.addCategory(rootCategory1);
+        for (Category childCategory : new Category[]{child1Category, child2Category}) {
+            childCategory.setParentCategory(parentCategory1);
+            categoryService.addCategory(childCategory);
+        }
+        child11Category.setParentCategory(child1Category);
+        categoryService.addCategory(child11Category);
+        child12Category.setParentCategory(child1Category);
+        categoryService.addCategory(child12Category);
+
+        Product product = new Product();
+        product.setName("Mavi Elbise");
+        product.setDescription("Mavi renkte bir elbisedir");
+        product.setRemainingStockCount(99);
+        product.setPrice(new BigDecimal("9.99"));
+        product.setCategory(parentCategory1);
+        Long productId = productService.addProduct(product).getId();
+
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        statistics.setStatisticsEnabled(true);
+        try {
+            productService.findProduct(productId);
+            Assert.assertEquals(1, statistics.getPrepareStatementCount());
+
+            statistics.clear();
+            Category updatedCategory = categoryService.updateCategory(parentCategory1.getId(), parentCategory1);
+            Assert.assertEquals(2, updatedCategory.getSubCategoryList().size());
+            Assert.assertEquals(child12Category.getId(), updatedCategory.getSubCategoryList().get(0).getSubCategoryList().get(0).getId()); // ordered by orderNum
+            Assert.assertTrue(statistics.getPrepareStatementCount() <= 3); // select, update, subtree select
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
     @Test
     public void should_throw_exception_when_trying_to_add_category_with_invalid_parent() {
         Category parentCategory1 = categoryService.addCategory(rootCategory1);
@@ -0,0 +1,180 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.entity.Payment;
+import com.dolap.challenge.entity.PaymentSaga;
+import com.dolap.challenge.exception.IdempotencyKeyConflictException;
+import com.dolap.challenge.exception.OutOfStockException;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.model.BankPaymentResponse;
+import com.dolap.challenge.repository.IdempotencyKeyRepository;
+import com.dolap.challenge.repository.PaymentRepository;
+import com.dolap.challenge.repository.PaymentSagaRepository;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class IdempotencyServiceTest {
+
+    @Autowired
+    private IdempotencyKeyRepository idempotencyKeyRepository;
+
+    @Autowired
+    private PaymentRepository paymentRepository;
+
+    @Autowired
+    private PaymentSagaRepository paymentSagaRepository;
+
+    @Autowired
+    private PaymentService paymentService;
+
+    @Autowired
+    private Messages messages;
+
+    private AtomicInteger paymentCount;
+
+    @Before
+    public void setup() {
+        paymentCount = new AtomicInteger();
+    }
+
+    private Supplier<CompletableFuture<Payment>> payment() {
+        return () -> {
+            paymentCount.incrementAndGet();
+            return CompletableFuture.completedFuture(paymentService.saveBankResponse(BigDecimal.TEN, successfulResponse()));
+        };
+    }
+
+    private BankPaymentResponse successfulResponse() {
+        return new BankPaymentResponse(BankPaymentResponse.RESULT_CODE_SUCCESS);
+    }
+
+    @Test
+    public void should_replay_the_stored_payment_after_the_key_is_evicted_from_the_cache() {
+        IdempotencyService idempotencyService = new IdempotencyService(idempotencyKeyRepository, paymentRepository, paymentSagaRepository, messages, 1, 60000);
+        String idempotencyKey = "evicted-" + System.nanoTime();
+
+        Payment payment = idempotencyService.execute(idempotencyKey, "/payments 1x1", payment()).join();
+        idempotencyService.execute("other-" + System.nanoTime(), "/payments 1x1", payment()).join();
+        Payment retriedPayment = idempotencyService.execute(idempotencyKey, "/payments 1x1", payment()).join();
+
+        Assert.assertEquals(payment.getId(), retriedPayment.getId());
+        Assert.assertEquals(2, paymentCount.get());
+    }
+
+    @Test
+    public void should_reject_the_key_while_its_payment_is_in_progress_on_another_instance() {
+        IdempotencyService idempotencyService = new IdempotencyService(idempotencyKeyRepository, paymentRepository, paymentSagaRepository, messages, 10, 60000);
+        IdempotencyService otherInstance = new IdempotencyService(idempotencyKeyRepository, paymentRepository, paymentSagaRepository, messages, 10, 60000);
+        String idempotencyKey = "other-instance-" + System.nanoTime();
+
+        CompletableFuture<Payment> inProgress = new CompletableFuture<>();
+        idempotencyService.execute(idempotencyKey, "/payments 1x1", () -> inProgress);
+
+        Exception exception = null;
+        try {
+            otherInstance.execute(idempotencyKey, "/payments 1x1", payment());
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof IdempotencyKeyConflictException);
+        Assert.assertEquals(0, paymentCount.get());
+    }
+
+    @Test
+    public void should_let_the_client_retry_when_nothing_is_charged() {
+        IdempotencyService idempotencyService = new IdempotencyService(idempotencyKeyRepository, paymentRepository, paymentSagaRepository, messages, 10, 60000);
+        String idempotencyKey = "out-of-stock-" + System.nanoTime();
+
+        Exception exception = null;
+        try {
+            idempotencyService.execute(idempotencyKey, "/payments 1x1", () -> {
+                throw new OutOfStockException("out of stock");
+            });
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof OutOfStockException);
+
+        idempotencyService.execute(idempotencyKey, "/payments 1x1", payment()).join();
+        Assert.assertEquals(1, paymentCount.get());
+    }
+
+    @Test
+    public void should_keep_the_key_claimed_when_the_failed_payment_is_left_to_the_recovery() {
+        IdempotencyService idempotencyService = new IdempotencyService(idempotencyKeyRepository, paymentRepository, paymentSagaRepository, messages, 10, 60000);
+        String idempotencyKey = "charging-" + System.nanoTime();
+
+        CompletableFuture<Payment> failed = new CompletableFuture<>();
+        CompletableFuture<Payment> result = idempotencyService.execute(idempotencyKey, "/payments 1x1", () -> failed);
+        // the bank is called, then the payment can't be completed right away
+        PaymentSaga paymentSaga = new PaymentSaga();
+        paymentSaga.setRequestId(UUID.randomUUID().toString());
+        paymentSaga.setIdempotencyKey(idempotencyKey);
+        paymentSaga.setPrice(BigDecimal.TEN);
+        paymentSaga.setState(PaymentSaga.State.CHARGING);
+        paymentSaga.setCreatedAt(LocalDateTime.now());
+        paymentSaga.setUpdatedAt(paymentSaga.getCreatedAt());
+        paymentSagaRepository.save(paymentSaga);
+        failed.completeExceptionally(new IllegalStateException("completion rejected"));
+        Assert.assertTrue(result.isCompletedExceptionally());
+
+        Exception exception = null;
+        try {
+            idempotencyService.execute(idempotencyKey, "/payments 1x1", payment());
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof IdempotencyKeyConflictException);
+        Assert.assertEquals(0, paymentCount.get());
+    }
+
+    @Test
+    public void should_keep_the_key_claimed_when_the_synchronous_payment_times_out_at_the_bank() {
+        IdempotencyService idempotencyService = new IdempotencyService(idempotencyKeyRepository, paymentRepository, paymentSagaRepository, messages, 10, 60000);
+        String idempotencyKey = "sync-charging-" + System.nanoTime();
+
+        Exception exception = null;
+        try {
+            idempotencyService.execute(idempotencyKey, "/payments 1x1", () -> {
+                // the bank times out, the payment is left CHARGING for the recovery and the caller is told to retry
+                PaymentSaga paymentSaga = new PaymentSaga();
+                paymentSaga.setRequestId(UUID.randomUUID().toString());
+                paymentSaga.setIdempotencyKey(idempotencyKey);
+                paymentSaga.setPrice(BigDecimal.TEN);
+                paymentSaga.setState(PaymentSaga.State.CHARGING);
+                paymentSaga.setCreatedAt(LocalDateTime.now());
+                paymentSaga.setUpdatedAt(paymentSaga.getCreatedAt());
+                paymentSagaRepository.save(paymentSaga);
+                throw new ServiceBusyException("bank timed out");
+            });
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof ServiceBusyException);
+
+        exception = null;
+        try {
+            idempotencyService.execute(idempotencyKey, "/payments 1x1", payment());
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof IdempotencyKeyConflictException);
+        Assert.assertEquals(0, paymentCount.get());
+    }
+}
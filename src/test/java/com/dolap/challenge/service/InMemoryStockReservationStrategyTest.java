@@ -0,0 +1,131 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.Category;
+import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.repository.ProductRepository;
+import com.dolap.challenge.repository.StockJournalCheckpointRepository;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class InMemoryStockReservationStrategyTest {
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private StockJournalCheckpointRepository checkpointRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private CategoryService categoryService;
+
+    private Product product;
+
+    private String journalDirectory;
+
+    @Before
+    public void setup() {
+        Category category = new Category();
+        category.setName("Cat cat");
+        category.setDescription("Where kittens hangout");
+        category.setOrderNum(1);
+        categoryService.addCategory(category);
+
+        product = new Product();
+        product.setName("Mavi Elbise");
+        product.setDescription("Mavi renkte bir elbisedir");
+        product.setRemainingStockCount(10);
+        product.setPrice(new BigDecimal("9.99"));
+        product.setCategory(category);
+        productService.addProduct(product);
+
+        journalDirectory = "target/stock-journal-test/" + System.nanoTime();
+    }
+
+    private InMemoryStockReservationStrategy startStrategy() {
+        InMemoryStockReservationStrategy strategy = new InMemoryStockReservationStrategy(productRepository,
+                checkpointRepository, transactionManager, InMemoryStockReservationStrategy.NAME, journalDirectory, false);
+        strategy.start();
+        return strategy;
+    }
+
+    private int remainingStockCount() {
+        return productService.findProduct(product.getId()).getRemainingStockCount();
+    }
+
+    @Test
+    public void should_reserve_in_memory_and_write_the_stocks_on_flush() {
+        InMemoryStockReservationStrategy strategy = startStrategy();
+
+        Assert.assertTrue(strategy.reserve(product.getId(), 4));
+        Assert.assertFalse(strategy.reserve(product.getId(), 7));
+        strategy.release(product.getId(), 1);
+        Assert.assertFalse(strategy.reserve(Long.MAX_VALUE, 1));
+        Assert.assertEquals(10, remainingStockCount());
+
+        strategy.flush();
+        Assert.assertEquals(7, remainingStockCount());
+        strategy.stop();
+    }
+
+    @Test
+    public void should_recover_the_stocks_from_the_journal_after_a_crash() {
+        InMemoryStockReservationStrategy crashedStrategy = startStrategy();
+        Assert.assertTrue(crashedStrategy.reserve(product.getId(), 3));
+        Assert.assertEquals(10, remainingStockCount());
+
+        InMemoryStockReservationStrategy strategy = startStrategy();
+        Assert.assertEquals(7, remainingStockCount());
+        Assert.assertTrue(strategy.reserve(product.getId(), 7));
+        Assert.assertFalse(strategy.reserve(product.getId(), 1));
+        strategy.stop();
+    }
+
+    @Test
+    public void should_give_the_stocks_back_when_the_transaction_rolls_back() {
+        InMemoryStockReservationStrategy strategy = startStrategy();
+
+        new TransactionTemplate(transactionManager).execute(status -> {
+            Assert.assertTrue(strategy.reserve(product.getId(), 10));
+            status.setRollbackOnly();
+            return null;
+        });
+
+        Assert.assertTrue(strategy.reserve(product.getId(), 10));
+        strategy.flush();
+        Assert.assertEquals(0, remainingStockCount());
+        strategy.stop();
+    }
+
+    @Test
+    public void should_keep_the_reservations_not_written_yet_when_the_stocks_are_overwritten() {
+        InMemoryStockReservationStrategy strategy = startStrategy();
+        Assert.assertTrue(strategy.reserve(product.getId(), 3));
+
+        Assert.assertTrue(strategy.overwrite(product.getId(), 20));
+        Assert.assertTrue(strategy.reserve(product.getId(), 20));
+        Assert.assertFalse(strategy.reserve(product.getId(), 1));
+
+        strategy.flush();
+        Assert.assertEquals(0, remainingStockCount());
+        strategy.stop();
+    }
+}
@@ -0,0 +1,240 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.Category;
+import com.dolap.challenge.entity.IdempotencyKey;
+import com.dolap.challenge.entity.Payment;
+import com.dolap.challenge.entity.PaymentSaga;
+import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.entity.StockReservation;
+import com.dolap.challenge.exception.OutOfStockException;
+import com.dolap.challenge.model.PaymentItem;
+import com.dolap.challenge.repository.FlashSaleGrantRepository;
+import com.dolap.challenge.repository.IdempotencyKeyRepository;
+import com.dolap.challenge.repository.PaymentSagaRepository;
+import com.dolap.challenge.repository.StockReservationRepository;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class PaymentSagaServiceTest {
+
+    @Autowired
+    private PaymentSagaService paymentSagaService;
+
+    @Autowired
+    private PaymentSagaRepository paymentSagaRepository;
+
+    @Autowired
+    private StockReservationRepository stockReservationRepository;
+
+    @Autowired
+    private IdempotencyKeyRepository idempotencyKeyRepository;
+
+    @Autowired
+    private FlashSaleGrantRepository flashSaleGrantRepository;
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private StockReservationService stockReservationService;
+
+    @Autowired
+    private CategoryService categoryService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Category category;
+    private Product product;
+
+    @Before
+    public void setup() {
+        category = new Category();
+        category.setName("Saga");
+        category.setDescription("Long running payments");
+        category.setOrderNum(1);
+        categoryService.addCategory(category);
+
+        product = new Product();
+        product.setName("Recovered product");
+        product.setDescription("Survives the crashes");
+        product.setPrice(new BigDecimal("4.50"));
+        product.setRemainingStockCount(10);
+        product.setCategory(category);
+        productService.addProduct(product);
+    }
+
+    @Test
+    public void should_record_the_payment_as_charged_with_its_payment_log() {
+        Payment payment = paymentSagaService.pay(items(2));
+
+        PaymentSaga paymentSaga = paymentSagaRepository.findAll().stream()
+                .filter(saga -> payment.getId().equals(saga.getPaymentId()))
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+        Assert.assertEquals(PaymentSaga.State.CHARGED, paymentSaga.getState());
+        Assert.assertEquals(0, new BigDecimal("9.00").compareTo(paymentSaga.getPrice()));
+        Assert.assertEquals(Integer.valueOf(8), productService.findProduct(product.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_release_the_stocks_of_the_payments_stuck_before_the_bank_call() {
+        // the app crashes right after the stocks are reserved
+        PaymentSaga paymentSaga = paymentSagaService.start(items(3), null).getPaymentSaga();
+        Assert.assertEquals(Integer.valueOf(7), productService.findProduct(product.getId()).getRemainingStockCount());
+
+        Assert.assertTrue(paymentSagaService.recover(LocalDateTime.now().plusSeconds(1)) >= 1);
+
+        Assert.assertEquals(PaymentSaga.State.RELEASED, paymentSagaRepository.findById(paymentSaga.getId()).get().getState());
+        Assert.assertEquals(Integer.valueOf(10), productService.findProduct(product.getId()).getRemainingStockCount());
+        List<StockReservation> reservations = stockReservationRepository.findAllBySagaId(paymentSaga.getId());
+        Assert.assertEquals(StockReservation.State.RELEASED, reservations.get(0).getState());
+    }
+
+    @Test
+    public void should_ask_the_bank_again_for_the_payments_stuck_in_the_bank_call() {
+        // the app crashes while waiting for the bank
+        PaymentSaga paymentSaga = paymentSagaService.start(items(1), null).getPaymentSaga();
+        new TransactionTemplate(transactionManager).execute(status -> paymentSagaRepository.updateState(paymentSaga.getId(),
+                PaymentSaga.State.RESERVED, PaymentSaga.State.CHARGING, LocalDateTime.now()));
+
+        Assert.assertTrue(paymentSagaService.recover(LocalDateTime.now().plusSeconds(1)) >= 1);
+
+        PaymentSaga recovered = paymentSagaRepository.findById(paymentSaga.getId()).get();
+        Assert.assertEquals(PaymentSaga.State.CHARGED, recovered.getState());
+        Assert.assertNotNull(recovered.getPaymentId());
+        Assert.assertEquals(Integer.valueOf(9), productService.findProduct(product.getId()).getRemainingStockCount());
+        Assert.assertEquals(StockReservation.State.CONFIRMED,
+                stockReservationRepository.findAllBySagaId(paymentSaga.getId()).get(0).getState());
+    }
+
+    @Test
+    public void should_point_the_idempotency_key_to_the_payment_completed_by_the_recovery() {
+        IdempotencyKey idempotencyKey = new IdempotencyKey();
+        idempotencyKey.setIdempotencyKey("recovered-" + System.nanoTime());
+        idempotencyKey.setFingerprint("/payments 1x1");
+        idempotencyKey.setCreatedAt(LocalDateTime.now());
+        idempotencyKeyRepository.save(idempotencyKey);
+        // the app crashes while waiting for the bank
+        PaymentSaga paymentSaga = paymentSagaService.start(items(1), idempotencyKey.getIdempotencyKey()).getPaymentSaga();
+        new TransactionTemplate(transactionManager).execute(status -> paymentSagaRepository.updateState(paymentSaga.getId(),
+                PaymentSaga.State.RESERVED, PaymentSaga.State.CHARGING, LocalDateTime.now()));
+
+        Assert.assertTrue(paymentSagaService.recover(LocalDateTime.now().plusSeconds(1)) >= 1);
+
+        Long paymentId = paymentSagaRepository.findById(paymentSaga.getId()).get().getPaymentId();
+        Assert.assertNotNull(paymentId);
+        Assert.assertEquals(paymentId, idempotencyKeyRepository.findByIdempotencyKey(idempotencyKey.getIdempotencyKey()).getPaymentId());
+    }
+
+    @Test
+    public void should_confirm_every_product_of_the_cart_stuck_in_the_bank_call() {
+        Product otherProduct = new Product();
+        otherProduct.setName("Other recovered product");
+        otherProduct.setDescription("Survives the crashes too");
+        otherProduct.setPrice(new BigDecimal("1.50"));
+        otherProduct.setRemainingStockCount(10);
+        otherProduct.setCategory(category);
+        productService.addProduct(otherProduct);
+        PaymentItem otherItem = new PaymentItem();
+        otherItem.setProductId(otherProduct.getId());
+        otherItem.setQuantity(3);
+        // the app crashes while waiting for the bank
+        PaymentSaga paymentSaga = paymentSagaService.start(Arrays.asList(items(2).get(0), otherItem), null).getPaymentSaga();
+        new TransactionTemplate(transactionManager).execute(status -> paymentSagaRepository.updateState(paymentSaga.getId(),
+                PaymentSaga.State.RESERVED, PaymentSaga.State.CHARGING, LocalDateTime.now()));
+
+        Assert.assertTrue(paymentSagaService.recover(LocalDateTime.now().plusSeconds(1)) >= 1);
+
+        Assert.assertEquals(PaymentSaga.State.CHARGED, paymentSagaRepository.findById(paymentSaga.getId()).get().getState());
+        List<StockReservation> reservations = stockReservationRepository.findAllBySagaId(paymentSaga.getId());
+        Assert.assertEquals(2, reservations.size());
+        reservations.forEach(reservation -> Assert.assertEquals(StockReservation.State.CONFIRMED, reservation.getState()));
+        Assert.assertEquals(Integer.valueOf(8), productService.findProduct(product.getId()).getRemainingStockCount());
+        Assert.assertEquals(Integer.valueOf(7), productService.findProduct(otherProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_keep_the_expired_reservations_of_the_payments_in_the_bank_call() {
+        PaymentSaga paymentSaga = paymentSagaService.start(items(4), null).getPaymentSaga();
+        new TransactionTemplate(transactionManager).execute(status -> paymentSagaRepository.updateState(paymentSaga.getId(),
+                PaymentSaga.State.RESERVED, PaymentSaga.State.CHARGING, LocalDateTime.now()));
+        StockReservation reservation = stockReservationRepository.findAllBySagaId(paymentSaga.getId()).get(0);
+        reservation.setExpiresAt(LocalDateTime.now().minusMinutes(1));
+        stockReservationRepository.save(reservation);
+
+        // the bank may have charged it, so its stocks aren't given back before the bank answers
+        stockReservationService.expireReservations();
+
+        Assert.assertEquals(StockReservation.State.RESERVED, stockReservationRepository.findById(reservation.getId()).get().getState());
+        Assert.assertEquals(Integer.valueOf(6), productService.findProduct(product.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_give_the_flash_sale_stocks_back_when_the_cart_can_not_be_reserved() {
+        Product flashSaleProduct = new Product();
+        flashSaleProduct.setName("Flash sale product");
+        flashSaleProduct.setDescription("Queued outside of the reservation transaction");
+        flashSaleProduct.setPrice(new BigDecimal("2.00"));
+        flashSaleProduct.setRemainingStockCount(5);
+        flashSaleProduct.setFlashSale(true);
+        flashSaleProduct.setCategory(category);
+        productService.addProduct(flashSaleProduct);
+        Product lastProduct = new Product();
+        lastProduct.setName("Last product");
+        lastProduct.setDescription("Reserved after the flash sale product");
+        lastProduct.setPrice(new BigDecimal("1.00"));
+        lastProduct.setRemainingStockCount(1);
+        lastProduct.setCategory(category);
+        productService.addProduct(lastProduct);
+        PaymentItem flashSaleItem = new PaymentItem();
+        flashSaleItem.setProductId(flashSaleProduct.getId());
+        flashSaleItem.setQuantity(2);
+        PaymentItem lastItem = new PaymentItem();
+        lastItem.setProductId(lastProduct.getId());
+        lastItem.setQuantity(2);
+
+        // the grant is never claimed when a product before it is out of stock, and rolled back when one after it is
+        try {
+            paymentSagaService.start(Arrays.asList(items(11).get(0), flashSaleItem), null);
+            Assert.fail();
+        } catch (OutOfStockException ignored) {
+        }
+        try {
+            paymentSagaService.start(Arrays.asList(flashSaleItem, lastItem), null);
+            Assert.fail();
+        } catch (OutOfStockException ignored) {
+        }
+        Assert.assertEquals(Integer.valueOf(5), productService.findProduct(flashSaleProduct.getId()).getRemainingStockCount());
+
+        PaymentSaga paymentSaga = paymentSagaService.start(Arrays.asList(items(1).get(0), flashSaleItem), null).getPaymentSaga();
+        Assert.assertEquals(2, stockReservationRepository.findAllBySagaId(paymentSaga.getId()).size());
+        Assert.assertEquals(Integer.valueOf(3), productService.findProduct(flashSaleProduct.getId()).getRemainingStockCount());
+        Assert.assertFalse(flashSaleGrantRepository.findAll().stream()
+                .anyMatch(grant -> grant.getProductId().equals(flashSaleProduct.getId())));
+    }
+
+    private List<PaymentItem> items(int quantity) {
+        PaymentItem paymentItem = new PaymentItem();
+        paymentItem.setProductId(product.getId());
+        paymentItem.setQuantity(quantity);
+        return Collections.singletonList(paymentItem);
+    }
+}
@@ -1,10 +1,14 @@
 package com.dolap.challenge.service;
 
 import com.dolap.challenge.entity.Category;
+import com.dolap.challenge.entity.FlashSaleGrant;
 import com.dolap.challenge.entity.Product;
 import com.dolap.challenge.exception.CategoryNotFoundException;
+import com.dolap.challenge.exception.InvalidCursorException;
 import com.dolap.challenge.exception.OutOfStockException;
 import com.dolap.challenge.exception.ProductNotFoundException;
+import com.dolap.challenge.model.ProductPage;
+import com.dolap.challenge.repository.FlashSaleGrantRepository;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -15,8 +19,11 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.domain.Page;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -34,6 +41,18 @@ public class ProductServiceTest {
     @Autowired
     private CategoryService categoryService;
 
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private SoldOutCache soldOutCache;
+
+    @Autowired
+    private FlashSaleService flashSaleService;
+
+    @Autowired
+    private FlashSaleGrantRepository flashSaleGrantRepository;
+
     private Category rootCategory;
     private Category child1Category;
     private Category child2Category;
@@ -272,6 +291,64 @@ public class ProductServiceTest {
         Assert.assertEquals(Integer.valueOf(0), Integer.valueOf(responseProducts.getContent().size())); // product only
     }
 
+    @Test
+    public void should_walk_all_products_by_cursor_without_repeating_the_ties() {
+        addProducts();
+        // the same price as the 10th product, the tie is broken by the id
+        for (int i = 0; i < 3; i++) {
+            Product sameProduct = new Product();
+            sameProduct.setName("Same price " + i);
+            sameProduct.setDescription("Same price desc " + i);
+            sameProduct.setRemainingStockCount(1);
+            sameProduct.setPrice(new BigDecimal("100.00"));
+            sameProduct.setCategory(child11Category);
+            productService.addProduct(sameProduct);
+        }
+
+        List<Product> walkedProducts = new ArrayList<>();
+        String cursor = "";
+        int pages = 0;
+        do {
+            ProductPage productPage = productService.getAllByCursor(child1Category.getId(), "price", "asc", cursor, 4);
+            Assert.assertTrue(productPage.getProducts().size() <= 4);
+            walkedProducts.addAll(productPage.getProducts());
+            cursor = productPage.getNext();
+            pages++;
+        } while (cursor != null);
+
+        Assert.assertEquals(23, walkedProducts.size()); // child1Category + child11Category + child12Category
+        Assert.assertEquals(6, pages);
+        for (int i = 1; i < walkedProducts.size(); i++) {
+            Product previous = walkedProducts.get(i - 1);
+            Product current = walkedProducts.get(i);
+            int order = previous.getPrice().compareTo(current.getPrice());
+            Assert.assertTrue(order < 0 || (order == 0 && previous.getId() < current.getId()));
+        }
+    }
+
+    @Test
+    public void should_throw_exception_when_the_cursor_is_used_with_another_sort() {
+        addProducts();
+        String cursor = productService.getAllByCursor(child1Category.getId(), "price", "asc", null, 5).getNext();
+        Assert.assertNotNull(cursor);
+
+        Exception exception = null;
+        try {
+            productService.getAllByCursor(child1Category.getId(), "name", "asc", cursor, 5);
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof InvalidCursorException);
+
+        exception = null;
+        try {
+            productService.getAllByCursor(child1Category.getId(), "category", "asc", null, 5);
+        } catch (Exception e) {
+            exception = e;
+        }
+        Assert.assertTrue(exception instanceof InvalidCursorException);
+    }
+
     @Test
     public void should_throw_exception_when_trying_to_get_all_products_invalid_category() {
         String sortBy = "id";
@@ -406,6 +483,28 @@ public class ProductServiceTest {
         Assert.assertEquals(freshProduct.getRemainingStockCount(), Integer.valueOf(expectedRemainingQuantity));
     }
 
+    @Test
+    public void should_return_the_price_when_reserving_product() {
+        Product addedProduct = productService.addProduct(product);
+
+        BigDecimal price = productService.reserveStockForProduct(addedProduct.getId(), 1);
+
+        Assert.assertEquals(0, addedProduct.getPrice().compareTo(price));
+    }
+
+    @Test
+    public void should_throw_exception_when_reserving_invalid_product() {
+        Exception exception = null;
+        try {
+            productService.reserveStockForProduct(Long.MAX_VALUE, 1);
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        Assert.assertNotNull(exception);
+        Assert.assertTrue(exception instanceof ProductNotFoundException);
+    }
+
     @Test
     public void should_throw_exception_when_trying_over_reserve() {
         Product addedProduct = productService.addProduct(product);
@@ -514,6 +613,182 @@ public class ProductServiceTest {
         Assert.assertEquals(freshProduct.getRemainingStockCount(), Integer.valueOf(expectedRemainingQuantity));
     }
 
+    @Test
+    public void should_sum_the_shards_when_reading_sharded_product() {
+        product.setStockShardCount(4);
+        Product addedProduct = productService.addProduct(product);
+
+        productService.reserveStockForProduct(addedProduct.getId(), 2);
+        productService.releaseReservedStockForProduct(addedProduct.getId(), 1);
+
+        Assert.assertEquals(Integer.valueOf(98), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_reserve_sharded_product_across_the_shards() {
+        product.setRemainingStockCount(4);
+        product.setStockShardCount(4);
+        Product addedProduct = productService.addProduct(product);
+
+        // every shard has a single stock, so the reservation has to be collected from several shards
+        productService.reserveStockForProduct(addedProduct.getId(), 3);
+
+        Exception exception = null;
+        try {
+            productService.reserveStockForProduct(addedProduct.getId(), 2);
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        Assert.assertTrue(exception instanceof OutOfStockException);
+        Assert.assertEquals(Integer.valueOf(1), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_handle_concurrent_reserve_requests_of_sharded_product_properly() throws ExecutionException, InterruptedException {
+        product.setRemainingStockCount(10);
+        product.setStockShardCount(3);
+        Product addedProduct = productService.addProduct(product);
+
+        List<CompletableFuture<Exception>> futures = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            futures.add(reserveWithQuantity(productService, addedProduct.getId(), 1));
+        }
+        long failedReserves = 0;
+        for (CompletableFuture<Exception> future : futures) {
+            failedReserves += future.get() == null ? 0 : 1;
+        }
+
+        Assert.assertEquals(2, failedReserves);
+        Assert.assertEquals(Integer.valueOf(0), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_redistribute_the_stocks_when_the_shard_count_is_updated() {
+        Product addedProduct = productService.addProduct(product);
+
+        Product updatedProduct = new Product();
+        updatedProduct.setName(product.getName());
+        updatedProduct.setDescription(product.getDescription());
+        updatedProduct.setPrice(product.getPrice());
+        updatedProduct.setCategory(product.getCategory());
+        updatedProduct.setRemainingStockCount(20);
+        updatedProduct.setStockShardCount(8);
+        productService.updateProduct(addedProduct.getId(), updatedProduct);
+        productService.reserveStockForProduct(addedProduct.getId(), 5);
+        Assert.assertEquals(Integer.valueOf(15), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+
+        updatedProduct.setRemainingStockCount(7);
+        updatedProduct.setStockShardCount(1);
+        productService.updateProduct(addedProduct.getId(), updatedProduct);
+        productService.reserveStockForProduct(addedProduct.getId(), 7);
+        Assert.assertEquals(Integer.valueOf(0), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_reserve_flash_sale_product_through_its_queue() throws ExecutionException, InterruptedException {
+        product.setRemainingStockCount(10);
+        product.setFlashSale(true);
+        Product addedProduct = productService.addProduct(product);
+
+        List<CompletableFuture<Exception>> futures = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            futures.add(reserveWithQuantity(productService, addedProduct.getId(), 1));
+        }
+        long failedReserves = 0;
+        for (CompletableFuture<Exception> future : futures) {
+            Exception exception = future.get();
+            Assert.assertTrue(exception == null || exception instanceof OutOfStockException);
+            failedReserves += exception == null ? 0 : 1;
+        }
+
+        Assert.assertEquals(20, failedReserves);
+        Assert.assertEquals(Integer.valueOf(0), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+
+        // the stocks given back are open for the reservations right away
+        productService.releaseReservedStockForProduct(addedProduct.getId(), 1);
+        productService.reserveStockForProduct(addedProduct.getId(), 1);
+        Assert.assertEquals(Integer.valueOf(0), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_give_the_flash_sale_stocks_back_when_the_transaction_rolls_back() {
+        product.setRemainingStockCount(5);
+        product.setFlashSale(true);
+        Product addedProduct = productService.addProduct(product);
+
+        new TransactionTemplate(transactionManager).execute(status -> {
+            productService.reserveStockForProduct(addedProduct.getId(), 5);
+            status.setRollbackOnly();
+            return null;
+        });
+
+        Assert.assertEquals(Integer.valueOf(5), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+        productService.reserveStockForProduct(addedProduct.getId(), 5);
+        Assert.assertEquals(Integer.valueOf(0), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+    }
+
+    @Test
+    public void should_give_the_stocks_of_the_flash_sale_grant_left_behind_back() {
+        product.setRemainingStockCount(3);
+        product.setFlashSale(true);
+        Product addedProduct = productService.addProduct(product);
+        productService.reserveStockForProduct(addedProduct.getId(), 1);
+        Assert.assertFalse(flashSaleGrantRepository.findAll().stream()
+                .anyMatch(grant -> grant.getProductId().equals(addedProduct.getId())));
+
+        // the stocks are taken by the worker, but the buyer never recorded its reservation
+        FlashSaleGrant grant = new FlashSaleGrant();
+        grant.setId("left-behind-" + addedProduct.getId());
+        grant.setProductId(addedProduct.getId());
+        grant.setQuantity(2);
+        grant.setCreatedAt(LocalDateTime.now().minusHours(1));
+        flashSaleGrantRepository.save(grant);
+
+        // the scheduled sweep may get to it first, the stocks are given back once either way
+        flashSaleService.reclaimGrants();
+        flashSaleService.reclaimGrants();
+        Assert.assertEquals(Integer.valueOf(4), productService.findProduct(addedProduct.getId()).getRemainingStockCount());
+        Assert.assertFalse(flashSaleGrantRepository.existsById(grant.getId()));
+    }
+
+    @Test
+    public void should_reject_the_sold_out_product_until_it_is_restocked() {
+        product.setRemainingStockCount(1);
+        Product addedProduct = productService.addProduct(product);
+        productService.reserveStockForProduct(addedProduct.getId(), 1);
+        Assert.assertFalse(soldOutCache.isSoldOut(addedProduct.getId()));
+
+        Exception exception = null;
+        try {
+            productService.reserveStockForProduct(addedProduct.getId(), 1);
+        } catch (OutOfStockException e) {
+            exception = e;
+        }
+        Assert.assertNotNull(exception);
+        Assert.assertTrue(soldOutCache.isSoldOut(addedProduct.getId()));
+
+        addedProduct.setRemainingStockCount(3);
+        productService.updateProduct(addedProduct.getId(), addedProduct);
+        Assert.assertFalse(soldOutCache.isSoldOut(addedProduct.getId()));
+        productService.reserveStockForProduct(addedProduct.getId(), 3);
+
+        productService.releaseReservedStockForProduct(addedProduct.getId(), 1);
+        productService.reserveStockForProduct(addedProduct.getId(), 1);
+    }
+
+    @Test
+    public void should_not_mark_the_product_sold_out_when_it_is_restocked_after_the_stocks_are_read() {
+        Long productId = System.nanoTime();
+        long snapshot = soldOutCache.snapshot();
+        soldOutCache.restocked(productId);
+        soldOutCache.markSoldOut(productId, snapshot);
+        Assert.assertFalse(soldOutCache.isSoldOut(productId));
+
+        soldOutCache.markSoldOut(productId, soldOutCache.snapshot());
+        Assert.assertTrue(soldOutCache.isSoldOut(productId));
+    }
+
     protected CompletableFuture<Exception> reserveWithQuantity(ProductService productService, Long productId, int quantity) {
         return CompletableFuture.supplyAsync(() -> {
             Exception exception = null;
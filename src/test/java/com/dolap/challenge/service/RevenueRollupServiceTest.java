@@ -0,0 +1,72 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.RevenueRollup;
+import com.dolap.challenge.model.RevenueBucket;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class RevenueRollupServiceTest {
+
+    @Autowired
+    private RevenueRollupService revenueRollupService;
+
+    private Long productId;
+
+    @Before
+    public void setup() {
+        productId = System.nanoTime();
+    }
+
+    @Test
+    public void should_sum_the_payments_per_bucket_before_and_after_flush() {
+        LocalDateTime time = LocalDateTime.of(2018, 3, 1, 10, 15, 30);
+        revenueRollupService.record(productId, new BigDecimal("9.99"), time);
+        revenueRollupService.record(productId, new BigDecimal("0.01"), time.plusMinutes(1));
+
+        List<RevenueBucket> minutes = revenueRollupService.getBuckets(productId, RevenueRollup.Granularity.MINUTE, time, time.plusHours(1));
+        Assert.assertEquals(2, minutes.size());
+        Assert.assertEquals(LocalDateTime.of(2018, 3, 1, 10, 15), minutes.get(0).getBucketStart());
+        Assert.assertEquals(1, minutes.get(0).getPaymentCount());
+
+        revenueRollupService.flush();
+        revenueRollupService.record(productId, new BigDecimal("5.00"), time.plusMinutes(5));
+
+        List<RevenueBucket> hours = revenueRollupService.getBuckets(productId, RevenueRollup.Granularity.HOUR, time, time.plusHours(1));
+        Assert.assertEquals(1, hours.size());
+        Assert.assertEquals(LocalDateTime.of(2018, 3, 1, 10, 0), hours.get(0).getBucketStart());
+        Assert.assertEquals(3, hours.get(0).getPaymentCount());
+        Assert.assertEquals(0, new BigDecimal("15.00").compareTo(hours.get(0).getRevenue()));
+
+        revenueRollupService.flush();
+        List<RevenueBucket> days = revenueRollupService.getBuckets(productId, RevenueRollup.Granularity.DAY, time, time.plusDays(1));
+        Assert.assertEquals(1, days.size());
+        Assert.assertEquals(3, days.get(0).getPaymentCount());
+        Assert.assertEquals(0, new BigDecimal("15.00").compareTo(days.get(0).getRevenue()));
+    }
+
+    @Test
+    public void should_leave_out_the_buckets_outside_the_range() {
+        LocalDateTime time = LocalDateTime.of(2018, 3, 1, 10, 0);
+        revenueRollupService.record(productId, BigDecimal.ONE, time.minusHours(1));
+        revenueRollupService.record(productId, BigDecimal.ONE, time);
+        revenueRollupService.record(productId, BigDecimal.ONE, time.plusHours(1));
+        revenueRollupService.flush();
+
+        List<RevenueBucket> hours = revenueRollupService.getBuckets(productId, RevenueRollup.Granularity.HOUR, time, time.plusHours(1));
+        Assert.assertEquals(1, hours.size());
+        Assert.assertEquals(time, hours.get(0).getBucketStart());
+    }
+}
@@ -0,0 +1,160 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.Category;
+import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.entity.StockReservation;
+import com.dolap.challenge.exception.OutOfStockException;
+import com.dolap.challenge.repository.StockReservationRepository;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class StockReservationServiceTest {
+
+    @Autowired
+    private StockReservationService stockReservationService;
+
+    @Autowired
+    private StockReservationRepository stockReservationRepository;
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private CategoryService categoryService;
+
+    private Product product;
+
+    @Before
+    public void setup() {
+        Category category = new Category();
+        category.setName("Cat cat");
+        category.setDescription("Where kittens hangout");
+        category.setOrderNum(1);
+        categoryService.addCategory(category);
+
+        product = new Product();
+        product.setName("Mavi Elbise");
+        product.setDescription("Mavi renkte bir elbisedir");
+        product.setRemainingStockCount(10);
+        product.setPrice(new BigDecimal("9.99"));
+        product.setCategory(category);
+        productService.addProduct(product);
+    }
+
+    private int remainingStockCount() {
+        return productService.findProduct(product.getId()).getRemainingStockCount();
+    }
+
+    @Test
+    public void should_take_the_stocks_when_reserved() {
+        StockReservation reservation = stockReservationService.reserve(product.getId(), 3);
+
+        Assert.assertNotNull(reservation.getId());
+        Assert.assertEquals(StockReservation.State.RESERVED, reservation.getState());
+        Assert.assertTrue(reservation.getExpiresAt().isAfter(LocalDateTime.now()));
+        Assert.assertEquals(7, remainingStockCount());
+    }
+
+    @Test
+    public void should_throw_exception_and_record_nothing_when_trying_over_reserve() {
+        long reservationCount = stockReservationRepository.count();
+
+        Exception exception = null;
+        try {
+            stockReservationService.reserve(product.getId(), 11);
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        Assert.assertNotNull(exception);
+        Assert.assertTrue(exception instanceof OutOfStockException);
+        Assert.assertEquals(reservationCount, stockReservationRepository.count());
+        Assert.assertEquals(10, remainingStockCount());
+    }
+
+    @Test
+    public void should_keep_the_stocks_when_confirmed() {
+        StockReservation reservation = stockReservationService.reserve(product.getId(), 3);
+        stockReservationService.confirm(reservation);
+
+        Assert.assertEquals(StockReservation.State.CONFIRMED, stockReservationRepository.findById(reservation.getId()).get().getState());
+        Assert.assertEquals(7, remainingStockCount());
+    }
+
+    @Test
+    public void should_confirm_the_expired_reservation_even_when_the_product_is_sold_out_since() {
+        StockReservation reservation = stockReservationService.reserve(product.getId(), 3);
+        reservation.setExpiresAt(LocalDateTime.now().minusSeconds(1));
+        stockReservationRepository.save(reservation);
+        stockReservationService.expireReservations();
+        stockReservationService.reserve(product.getId(), 10);
+
+        // the payment is captured already, so the confirmation should commit rather than roll back
+        stockReservationService.confirm(reservation);
+
+        Assert.assertEquals(StockReservation.State.EXPIRED, stockReservationRepository.findById(reservation.getId()).get().getState());
+        Assert.assertEquals(0, remainingStockCount());
+    }
+
+    @Test
+    public void should_give_the_stocks_back_only_once_when_released() {
+        StockReservation reservation = stockReservationService.reserve(product.getId(), 3);
+        stockReservationService.release(reservation);
+        stockReservationService.release(reservation);
+
+        Assert.assertEquals(StockReservation.State.RELEASED, stockReservationRepository.findById(reservation.getId()).get().getState());
+        Assert.assertEquals(10, remainingStockCount());
+    }
+
+    @Test
+    public void should_give_the_stocks_of_every_product_back_when_the_cart_is_released() {
+        Product otherProduct = new Product();
+        otherProduct.setName("Kirmizi Elbise");
+        otherProduct.setDescription("Kirmizi renkte bir elbisedir");
+        otherProduct.setRemainingStockCount(5);
+        otherProduct.setPrice(new BigDecimal("19.99"));
+        otherProduct.setCategory(product.getCategory());
+        productService.addProduct(otherProduct);
+
+        StockReservation reservation = stockReservationService.reserve(product.getId(), 3);
+        StockReservation otherReservation = stockReservationService.reserve(otherProduct.getId(), 4);
+        stockReservationService.releaseAll(Arrays.asList(reservation, otherReservation));
+
+        Assert.assertEquals(10, remainingStockCount());
+        Assert.assertEquals(5, productService.findProduct(otherProduct.getId()).getRemainingStockCount().intValue());
+        Assert.assertEquals(StockReservation.State.RELEASED, stockReservationRepository.findById(otherReservation.getId()).get().getState());
+    }
+
+    @Test
+    public void should_give_the_stocks_of_the_expired_reservations_back() {
+        StockReservation reservation1 = stockReservationService.reserve(product.getId(), 3);
+        StockReservation reservation2 = stockReservationService.reserve(product.getId(), 2);
+        StockReservation reservation3 = stockReservationService.reserve(product.getId(), 1);
+        reservation1.setExpiresAt(LocalDateTime.now().minusSeconds(1));
+        reservation2.setExpiresAt(LocalDateTime.now().minusSeconds(1));
+        stockReservationRepository.save(reservation1);
+        stockReservationRepository.save(reservation2);
+
+        stockReservationService.expireReservations();
+        // releasing after the expiry should not give the stocks back once more
+        stockReservationService.release(reservation1);
+
+        Assert.assertEquals(StockReservation.State.EXPIRED, stockReservationRepository.findById(reservation1.getId()).get().getState());
+        Assert.assertEquals(StockReservation.State.EXPIRED, stockReservationRepository.findById(reservation2.getId()).get().getState());
+        Assert.assertEquals(StockReservation.State.RESERVED, stockReservationRepository.findById(reservation3.getId()).get().getState());
+        Assert.assertEquals(9, remainingStockCount());
+    }
+}
@@ -0,0 +1,126 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.entity.Category;
+import com.dolap.challenge.entity.Product;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class StockReservationStrategyTest {
+
+    @Autowired
+    private List<StockReservationStrategy> strategies;
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private CategoryService categoryService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Category category;
+
+    /**
+     * The in-memory strategy is only active when it's configured, see {@link InMemoryStockReservationStrategyTest}
+     */
+    private List<StockReservationStrategy> databaseStrategies() {
+        return strategies.stream()
+                .filter(strategy -> !InMemoryStockReservationStrategy.NAME.equals(strategy.getName()))
+                .collect(Collectors.toList());
+    }
+
+    @Before
+    public void setup() {
+        category = new Category();
+        category.setName("Cat cat");
+        category.setDescription("Where kittens hangout");
+        category.setOrderNum(1);
+        categoryService.addCategory(category);
+    }
+
+    private Product addProduct(int remainingStockCount) {
+        Product product = new Product();
+        product.setName("Mavi Elbise");
+        product.setDescription("Mavi renkte bir elbisedir");
+        product.setRemainingStockCount(remainingStockCount);
+        product.setPrice(new BigDecimal("9.99"));
+        product.setCategory(category);
+        return productService.addProduct(product);
+    }
+
+    private boolean reserve(StockReservationStrategy strategy, Long productId, int quantity) {
+        return new TransactionTemplate(transactionManager).execute(status -> strategy.reserve(productId, quantity));
+    }
+
+    private void release(StockReservationStrategy strategy, Long productId, int quantity) {
+        new TransactionTemplate(transactionManager).execute(status -> {
+            strategy.release(productId, quantity);
+            return null;
+        });
+    }
+
+    @Test
+    public void should_provide_all_the_strategies() {
+        Assert.assertEquals(4, strategies.size());
+    }
+
+    @Test
+    public void should_reserve_and_release_with_every_strategy() {
+        for (StockReservationStrategy strategy : databaseStrategies()) {
+            Product product = addProduct(10);
+
+            Assert.assertTrue(strategy.getName(), reserve(strategy, product.getId(), 4));
+            Assert.assertFalse(strategy.getName(), reserve(strategy, product.getId(), 7));
+            release(strategy, product.getId(), 1);
+
+            Product freshProduct = productService.findProduct(product.getId());
+            Assert.assertEquals(strategy.getName(), Integer.valueOf(7), freshProduct.getRemainingStockCount());
+            Assert.assertTrue(strategy.getName(), freshProduct.getVersion() > product.getVersion());
+        }
+    }
+
+    @Test
+    public void should_not_reserve_invalid_product_with_any_strategy() {
+        for (StockReservationStrategy strategy : databaseStrategies()) {
+            Assert.assertFalse(strategy.getName(), reserve(strategy, Long.MAX_VALUE, 1));
+        }
+    }
+
+    @Test
+    public void should_handle_concurrent_reserve_requests_with_every_strategy() {
+        for (StockReservationStrategy strategy : databaseStrategies()) {
+            Product product = addProduct(99);
+
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            futures.add(CompletableFuture.supplyAsync(() -> reserve(strategy, product.getId(), 98)));
+            futures.add(CompletableFuture.supplyAsync(() -> reserve(strategy, product.getId(), 1)));
+            futures.add(CompletableFuture.supplyAsync(() -> reserve(strategy, product.getId(), 1)));
+
+            long reserved = futures.stream().filter(CompletableFuture::join).count();
+            int reservedQuantity = (futures.get(0).join() ? 98 : 0) + (futures.get(1).join() ? 1 : 0) + (futures.get(2).join() ? 1 : 0);
+
+            // either the big one and a single one, or both single ones when they come first
+            Assert.assertEquals(strategy.getName(), 2, reserved);
+            Assert.assertEquals(strategy.getName(), Integer.valueOf(99 - reservedQuantity),
+                    productService.findProduct(product.getId()).getRemainingStockCount());
+        }
+    }
+}
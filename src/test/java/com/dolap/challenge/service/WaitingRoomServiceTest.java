@@ -0,0 +1,171 @@
+package com.dolap.challenge.service;
+
+import com.dolap.challenge.configuration.Messages;
+import com.dolap.challenge.entity.Category;
+import com.dolap.challenge.entity.Product;
+import com.dolap.challenge.exception.ServiceBusyException;
+import com.dolap.challenge.exception.WaitingRoomTicketException;
+import com.dolap.challenge.model.WaitingRoomTicket;
+import com.dolap.challenge.repository.ProductRepository;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+@EnableAutoConfiguration
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class WaitingRoomServiceTest {
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private CategoryService categoryService;
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private WaitingRoomService waitingRoomService;
+
+    @Autowired
+    private Messages messages;
+
+    private Category category;
+
+    @Before
+    public void setup() {
+        category = new Category();
+        category.setName("Flash");
+        category.setDescription("Sells out in seconds");
+        category.setOrderNum(1);
+        categoryService.addCategory(category);
+    }
+
+    @Test
+    public void should_admit_the_tickets_in_arrival_order_at_the_configured_rate() {
+        // 2 admissions per tick
+        WaitingRoomService waitingRoom = new WaitingRoomService(productRepository, messages, 20, 100, 100, 60000, 1000, 60000);
+        Long productId = addProduct(true).getId();
+
+        WaitingRoomTicket first = waitingRoom.join(productId);
+        WaitingRoomTicket second = waitingRoom.join(productId);
+        WaitingRoomTicket third = waitingRoom.join(productId);
+        Assert.assertEquals(1, first.getPosition());
+        Assert.assertEquals(2, second.getPosition());
+        Assert.assertEquals(3, third.getPosition());
+        Assert.assertFalse(first.isAdmitted());
+
+        waitingRoom.admit();
+        Assert.assertTrue(waitingRoom.getTicket(first.getTicket()).isAdmitted());
+        Assert.assertTrue(waitingRoom.getTicket(second.getTicket()).isAdmitted());
+        Assert.assertEquals(1, waitingRoom.getTicket(third.getTicket()).getPosition());
+
+        waitingRoom.admit();
+        Assert.assertTrue(waitingRoom.getTicket(third.getTicket()).isAdmitted());
+    }
+
+    @Test
+    public void should_admit_the_products_round_robin() {
+        WaitingRoomService waitingRoom = new WaitingRoomService(productRepository, messages, 20, 100, 100, 60000, 1000, 60000);
+        Long crowdedProductId = addProduct(true).getId();
+        Long otherProductId = addProduct(true).getId();
+
+        for (int i = 0; i < 5; i++) {
+            waitingRoom.join(crowdedProductId);
+        }
+        WaitingRoomTicket ticket = waitingRoom.join(otherProductId);
+
+        waitingRoom.admit();
+        Assert.assertTrue(waitingRoom.getTicket(ticket.getTicket()).isAdmitted());
+    }
+
+    @Test
+    public void should_admit_the_products_not_on_flash_sale_right_away() {
+        WaitingRoomService waitingRoom = new WaitingRoomService(productRepository, messages, 20, 100, 100, 60000, 1000, 60000);
+
+        WaitingRoomTicket ticket = waitingRoom.join(addProduct(false).getId());
+        Assert.assertTrue(ticket.isAdmitted());
+        Assert.assertEquals(0, ticket.getPosition());
+    }
+
+    @Test
+    public void should_turn_away_the_buyers_over_the_maximum_waiting() {
+        WaitingRoomService waitingRoom = new WaitingRoomService(productRepository, messages, 1, 100, 2, 60000, 1000, 60000);
+        Long productId = addProduct(true).getId();
+        waitingRoom.join(productId);
+        waitingRoom.join(productId);
+
+        ServiceBusyException exception = null;
+        try {
+            waitingRoom.join(productId);
+        } catch (ServiceBusyException e) {
+            exception = e;
+        }
+        Assert.assertNotNull(exception);
+        Assert.assertEquals(Long.valueOf(2), exception.getRetryAfterSeconds());
+    }
+
+    @Test
+    public void should_drop_the_waiting_tickets_whose_buyers_are_gone() throws InterruptedException {
+        // 1 admission per tick, positions sent on every tick and the buyers gone dropped after 50 ms
+        WaitingRoomService waitingRoom = new WaitingRoomService(productRepository, messages, 10, 100, 3, 50, 0, 60000);
+        Long productId = addProduct(true).getId();
+        waitingRoom.join(productId);
+        waitingRoom.join(productId);
+        WaitingRoomTicket gone = waitingRoom.join(productId);
+        // the buyer closes the page, so its next position can't be sent
+        waitingRoom.subscribe(gone.getTicket()).complete();
+
+        waitingRoom.admit();
+        Thread.sleep(100);
+        waitingRoom.admit();
+
+        WaitingRoomTicketException exception = null;
+        try {
+            waitingRoom.getTicket(gone.getTicket());
+        } catch (WaitingRoomTicketException e) {
+            exception = e;
+        }
+        Assert.assertNotNull(exception);
+        // its place is free for a new buyer
+        for (int i = 0; i < 3; i++) {
+            waitingRoom.join(productId);
+        }
+    }
+
+    @Test
+    public void should_let_the_product_in_without_a_ticket_once_it_is_taken_off_flash_sale() {
+        Product product = addProduct(true);
+        WaitingRoomTicketException exception = null;
+        try {
+            waitingRoomService.enter(null, Collections.singletonList(product.getId()));
+        } catch (WaitingRoomTicketException e) {
+            exception = e;
+        }
+        Assert.assertNotNull(exception);
+
+        product.setFlashSale(false);
+        productService.updateProduct(product.getId(), product);
+        waitingRoomService.enter(null, Collections.singletonList(product.getId()));
+    }
+
+    private Product addProduct(boolean flashSale) {
+        Product product = new Product();
+        product.setName("Flash product");
+        product.setDescription("Sold out before you read this");
+        product.setPrice(new BigDecimal("1.99"));
+        product.setRemainingStockCount(10);
+        product.setFlashSale(flashSale);
+        product.setCategory(category);
+        return productService.addProduct(product);
+    }
+}